@@ -0,0 +1,224 @@
+package jp.ats.relay;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+
+/**
+ * 処理対象ごとにタスクを生成し、同時実行数をセマフォで制限する<br>
+ * {@link ConcurrentExecutor}のように固定数のworkerスレッドを持たないので、
+ * 仮想スレッドのようにスレッド生成が安価なExecutorServiceと組み合わせて、大きな同時実行数で使用する
+ * @param <T> 処理対象の型
+ */
+public class BoundedExecutor<T> implements TaskExecutor<T> {
+
+	/**
+	 * mainがはけるのをwaitするときの待ちミリ秒
+	 */
+	private static final int WAIT_MILLIS = 500;
+
+	private final ExecutorService executor;
+
+	private final Consumer<T> consumer;
+
+	private final Disposer<T> disposer;
+
+	private final ResizableSemaphore semaphore;
+
+	private final AtomicInteger running = new AtomicInteger(0);
+
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	private final Object parking = new Object();
+
+	private volatile int concurrency;
+
+	private volatile RateLimiter rateLimiter;
+
+	private volatile ToLongFunction<? super T> sizeFunction;
+
+	/**
+	 * @param concurrency 同時実行数
+	 * @param consumer 処理対象ごとに行う処理
+	 * @param executor 処理対象ごとのタスクを実行する
+	 * @param disposer 例外処理
+	 */
+	public BoundedExecutor(
+		int concurrency,
+		Consumer<T> consumer,
+		ExecutorService executor,
+		Disposer<T> disposer) {
+		this.concurrency = concurrency;
+		this.consumer = consumer;
+		this.executor = executor;
+		this.disposer = disposer;
+		semaphore = new ResizableSemaphore(concurrency);
+	}
+
+	@Override
+	public void setRateLimiter(RateLimiter rateLimiter, ToLongFunction<? super T> sizeFunction) {
+		this.sizeFunction = sizeFunction;
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * タスクは処理対象ごとに生成されるので、何もしない
+	 */
+	@Override
+	public void start() {}
+
+	@Override
+	public boolean isResizable() {
+		return true;
+	}
+
+	@Override
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	@Override
+	public synchronized void resize(int concurrency) {
+		if (concurrency < 1) throw new IllegalArgumentException("concurrency: " + concurrency);
+
+		int difference = concurrency - this.concurrency;
+		if (difference > 0) {
+			semaphore.release(difference);
+		} else if (difference < 0) {
+			//実行中のタスクはそのまま終了させ、以降の取得を制限する
+			semaphore.reducePermits(-difference);
+		}
+
+		this.concurrency = concurrency;
+	}
+
+	@Override
+	public void execute(List<T> values) {
+		execute(values.stream());
+	}
+
+	@Override
+	public void execute(Stream<T> values) {
+		values.forEach(value -> {
+			semaphore.acquireUninterruptibly();
+			submit(value);
+		});
+	}
+
+	@Override
+	public void execute(Stream<T> values, int chunk, Runnable interval) throws InterruptedException {
+		int[] counter = { 0 };
+		try {
+			values.forEach(value -> {
+				try {
+					semaphore.acquire();
+				} catch (InterruptedException e) {
+					throw new Interrupted(e);
+				}
+
+				submit(value);
+
+				if (++counter[0] % chunk == 0) {
+					try {
+						waitUntilDrained();
+					} catch (InterruptedException e) {
+						throw new Interrupted(e);
+					}
+
+					interval.run();
+				}
+			});
+		} catch (Interrupted e) {
+			throw e.original;
+		}
+	}
+
+	@Override
+	public void waitUntilDrained() throws InterruptedException {
+		while (running.get() > 0) {
+			synchronized (parking) {
+				//メインがここに到達する前にタスクがすべて終了したときの場合に備えてtimeoutを設定
+				parking.wait(WAIT_MILLIS);
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		try {
+			waitUntilDrained();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		executor.shutdown();
+	}
+
+	//セマフォ取得後に実行すること
+	private void submit(T value) {
+		long seq = sequence.getAndIncrement();
+		running.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					acquire(value);
+					consumer.accept(value);
+				} catch (Throwable t) {
+					disposer.onEvent(t, seq, value);
+				} finally {
+					finish();
+				}
+			});
+		} catch (RuntimeException e) {
+			//タスクを開始できなかった
+			finish();
+			throw e;
+		}
+	}
+
+	private void finish() {
+		semaphore.release();
+		running.decrementAndGet();
+
+		synchronized (parking) {
+			parking.notify();
+		}
+	}
+
+	private void acquire(T value) throws InterruptedException {
+		RateLimiter limiter = rateLimiter;
+		if (limiter == null) return;
+
+		limiter.acquire(limiter.limitsBytes() ? sizeFunction.applyAsLong(value) : 0);
+	}
+
+	@SuppressWarnings("serial")
+	private static class ResizableSemaphore extends Semaphore {
+
+		private ResizableSemaphore(int permits) {
+			super(permits);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Interrupted extends RuntimeException {
+
+		private final InterruptedException original;
+
+		private Interrupted(InterruptedException original) {
+			this.original = original;
+		}
+	}
+}
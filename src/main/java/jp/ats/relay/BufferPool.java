@@ -0,0 +1,252 @@
+package jp.ats.relay;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 読み書き用のバッファを、プロセス内で再利用する<br>
+ * バッファは4KBから4MBまでの2のべき乗の大きさごとに、ヒープとダイレクトに分けて保持される<br>
+ * {@link #registerCurrentThread()}で登録したスレッドは少数のバッファを自分用に保持し、取得、返却の大半はスレッド間で同期せずに行われる<br>
+ * 登録されていないスレッドは、プロセス全体で共有するバッファを直接使用する<br>
+ * 4MBを超える大きさは保持せず、都度生成する<br>
+ * システムプロパティ {@value #LEAK_DETECTION_PROPERTY} に true を指定すると、返却されていないバッファを取得箇所付きで検出できる（テスト用）
+ * @see Shell#bufferPool()
+ */
+public class BufferPool {
+
+	/**
+	 * 返却漏れの検出を有効にするシステムプロパティ
+	 */
+	public static final String LEAK_DETECTION_PROPERTY = "relay.buffer-pool.leak-detection";
+
+	private static final int MIN_SHIFT = 12;
+
+	private static final int MAX_SHIFT = 22;
+
+	private static final int BUCKETS = MAX_SHIFT - MIN_SHIFT + 1;
+
+	//スレッドごとに、大きさごとに保持する数
+	private static final int LOCAL_CAPACITY = 4;
+
+	//プロセス全体で、大きさごとに保持する最大バイト数
+	private static final int GLOBAL_BYTES_PER_BUCKET = 1024 * 1024 * 16;
+
+	private static final BufferPool instance = new BufferPool(Boolean.getBoolean(LEAK_DETECTION_PROPERTY));
+
+	private final Bucket[] heap = new Bucket[BUCKETS];
+
+	private final Bucket[] direct = new Bucket[BUCKETS];
+
+	//自分用のバッファを保持するスレッド
+	private static final ThreadLocal<Boolean> registeredThreadLocal = new ThreadLocal<>();
+
+	private final ThreadLocal<Local> localThreadLocal = ThreadLocal.withInitial(Local::new);
+
+	//返却漏れの検出を行わない場合は null
+	private final Map<ByteBuffer, Throwable> outstanding;
+
+	/**
+	 * @return プロセス内で共有のインスタンス
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * 現在のスレッドを、自分用のバッファを保持するスレッドとして登録する<br>
+	 * 自分用のバッファはスレッドの終了とともに破棄されるので、処理を繰り返し実行するスレッドのみ登録すること<br>
+	 * 短命なスレッドや仮想スレッドでは、返却したバッファが再利用されずに失われてしまう
+	 */
+	static void registerCurrentThread() {
+		registeredThreadLocal.set(Boolean.TRUE);
+	}
+
+	/**
+	 * @param leakDetection 返却漏れの検出を行うか
+	 */
+	BufferPool(boolean leakDetection) {
+		for (int i = 0; i < BUCKETS; i++) {
+			int capacity = Math.max(1, GLOBAL_BYTES_PER_BUCKET >> (MIN_SHIFT + i));
+			heap[i] = new Bucket(capacity);
+			direct[i] = new Bucket(capacity);
+		}
+
+		outstanding = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+	}
+
+	/**
+	 * ヒープのバッファを取得する<br>
+	 * バッファのlimitはsizeとなり、配列は{@link ByteBuffer#array()}で取得できる
+	 * @param size 必要なバイト数
+	 * @return バッファ 使用後は{@link #release(ByteBuffer)}で返却すること
+	 */
+	public ByteBuffer acquire(int size) {
+		return acquire(size, false);
+	}
+
+	/**
+	 * ダイレクトバッファを取得する<br>
+	 * バッファのlimitはsizeとなる
+	 * @param size 必要なバイト数
+	 * @return バッファ 使用後は{@link #release(ByteBuffer)}で返却すること
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		return acquire(size, true);
+	}
+
+	/**
+	 * バッファを返却する<br>
+	 * 返却後のバッファは、他で使用されるので参照しないこと
+	 * @param buffer {@link #acquire(int)}、{@link #acquireDirect(int)}で取得したバッファ
+	 */
+	public void release(ByteBuffer buffer) {
+		if (outstanding != null && outstanding.remove(buffer) == null)
+			throw new IllegalStateException("buffer is not acquired or already released.");
+
+		int index = index(buffer.capacity());
+
+		//保持しない大きさ、または他で生成されたもの
+		if (index < 0 || buffer.capacity() != 1 << (MIN_SHIFT + index)) return;
+
+		buffer.clear();
+
+		Local local = local();
+		if (local != null) {
+			ArrayDeque<ByteBuffer> slots = buffer.isDirect() ? local.direct[index] : local.heap[index];
+			if (slots.size() < LOCAL_CAPACITY) {
+				slots.push(buffer);
+				return;
+			}
+		}
+
+		(buffer.isDirect() ? direct : heap)[index].offer(buffer);
+	}
+
+	/**
+	 * 返却漏れの検出が有効な場合のみ使用可能
+	 * @return 取得されて返却されていないバッファの取得箇所
+	 */
+	public List<Throwable> outstanding() {
+		if (outstanding == null) throw new IllegalStateException(LEAK_DETECTION_PROPERTY + " is not enabled.");
+
+		synchronized (outstanding) {
+			return new ArrayList<>(outstanding.values());
+		}
+	}
+
+	private ByteBuffer acquire(int size, boolean isDirect) {
+		ByteBuffer buffer = take(size, isDirect);
+		buffer.limit(size);
+
+		if (outstanding != null) outstanding.put(buffer, new Throwable("acquired here"));
+
+		return buffer;
+	}
+
+	private ByteBuffer take(int size, boolean isDirect) {
+		int index = index(size);
+		if (index < 0) return allocate(size, isDirect);
+
+		Local local = local();
+		if (local != null) {
+			ByteBuffer buffer = (isDirect ? local.direct[index] : local.heap[index]).poll();
+			if (buffer != null) return buffer;
+		}
+
+		ByteBuffer buffer = (isDirect ? direct : heap)[index].poll();
+		if (buffer != null) return buffer;
+
+		return allocate(1 << (MIN_SHIFT + index), isDirect);
+	}
+
+	/**
+	 * @param size 必要なバイト数
+	 * @return sizeで取得した場合に、実際に確保されるバッファの大きさ
+	 */
+	static int capacity(int size) {
+		int index = index(size);
+		return index < 0 ? size : 1 << (MIN_SHIFT + index);
+	}
+
+	/**
+	 * @return 登録されていないスレッドの場合は null
+	 */
+	private Local local() {
+		return registeredThreadLocal.get() == null ? null : localThreadLocal.get();
+	}
+
+	private static ByteBuffer allocate(int capacity, boolean isDirect) {
+		return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * @return sizeを格納できる最小の大きさの位置 保持しない大きさの場合は-1
+	 */
+	private static int index(int size) {
+		if (size > 1 << MAX_SHIFT) return -1;
+		if (size <= 1 << MIN_SHIFT) return 0;
+
+		//size以上の最小の2のべき乗
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift - MIN_SHIFT;
+	}
+
+	/**
+	 * プロセス全体で共有する、同じ大きさのバッファ
+	 */
+	private static class Bucket {
+
+		private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		private final int capacity;
+
+		private Bucket(int capacity) {
+			this.capacity = capacity;
+		}
+
+		private ByteBuffer poll() {
+			ByteBuffer buffer = buffers.poll();
+			if (buffer != null) size.decrementAndGet();
+			return buffer;
+		}
+
+		private void offer(ByteBuffer buffer) {
+			//一杯の場合は破棄
+			if (size.incrementAndGet() > capacity) {
+				size.decrementAndGet();
+				return;
+			}
+
+			buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * スレッドごとに保持するバッファ
+	 */
+	private static class Local {
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private final ArrayDeque<ByteBuffer>[] heap = new ArrayDeque[BUCKETS];
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private final ArrayDeque<ByteBuffer>[] direct = new ArrayDeque[BUCKETS];
+
+		private Local() {
+			for (int i = 0; i < BUCKETS; i++) {
+				heap[i] = new ArrayDeque<>(LOCAL_CAPACITY);
+				direct[i] = new ArrayDeque<>(LOCAL_CAPACITY);
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package jp.ats.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 外部コマンドの標準出力を{@link CommandResultCache}に保持し、同じ実行では外部コマンドを起動せずに返す<br>
+ * 標準出力を行で受け取る形式のものは、すべて保持した結果から渡される<br>
+ * 標準出力をバイトのまま受け取る形式、ファイルへ書き込む形式のものは、文字列として保持すると内容が変わってしまうため、保持せずに毎回実行する
+ * @see CommandExecutor#withCache()
+ */
+class CachingCommandExecutor extends CommandExecutor {
+
+	private final CommandExecutor delegate;
+
+	private final CommandResultCache cache;
+
+	CachingCommandExecutor(CommandExecutor delegate, CommandResultCache cache) {
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	@Override
+	public List<String> execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset)
+		throws InterruptedException {
+		byte[] input = readAll(in);
+		String key = key(configFunction, charset, input);
+
+		List<String> cached = cache.get(key);
+		if (cached != null) return cached;
+
+		return cache.put(key, delegate.execute(configFunction, new ByteArrayInputStream(input), charset));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset) {
+		byte[] input = readAll(in);
+		String key = key(configFunction, charset, input);
+
+		List<String> cached = cache.get(key);
+		if (cached != null) return CompletableFuture.completedFuture(cached);
+
+		return delegate.executeAsync(configFunction, new ByteArrayInputStream(input), charset)
+			.thenApply(lines -> cache.put(key, lines));
+	}
+
+	@Override
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer)
+		throws InterruptedException {
+		delegate.execute(configFunction, in, chunkConsumer);
+	}
+
+	@Override
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output)
+		throws InterruptedException {
+		delegate.execute(configFunction, in, output);
+	}
+
+	@Override
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer) {
+		return delegate.executeAsync(configFunction, in, chunkConsumer);
+	}
+
+	@Override
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output) {
+		return delegate.executeAsync(configFunction, in, output);
+	}
+
+	@Override
+	public CommandExecutor withTimeout(long timeout, TimeUnit unit) {
+		return new CachingCommandExecutor(delegate.withTimeout(timeout, unit), cache);
+	}
+
+	@Override
+	public byte[] call(String command, byte[] request) throws InterruptedException {
+		return delegate.call(command, request);
+	}
+
+	private static String key(Consumer<ProcessBuilder> configFunction, Charset charset, byte[] input) {
+		//キーの作成にのみ使用し、起動はしない
+		ProcessBuilder builder = new ProcessBuilder();
+		if (configFunction != null) configFunction.accept(builder);
+
+		Path directory = builder.directory() == null ? null : builder.directory().toPath();
+
+		return CommandResultCache.key(builder.command(), directory, builder.environment(), charset, input);
+	}
+
+	private static byte[] readAll(InputStream in) {
+		if (in == null) return new byte[0];
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+		try {
+			byte[] b = buffer.array();
+			int readed;
+			while ((readed = in.read(b, 0, BUFFER_SIZE)) > 0) {
+				out.write(b, 0, readed);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.release(buffer);
+		}
+
+		return out.toByteArray();
+	}
+
+	private static final int BUFFER_SIZE = 1024 * 8;
+}
@@ -0,0 +1,352 @@
+package jp.ats.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 同じ外部コマンドを繰り返し実行する場合に、外部コマンドを常駐させ、標準入出力で要求と応答をやりとりする<br>
+ * 外部コマンドは、標準入力から要求を読み込み、標準出力へ応答を書き込むことを、標準入力が閉じられるまで繰り返すこと<br>
+ * 要求と応答はいずれも以下の形式（数値はビッグエンディアンの4バイト整数）
+ * <pre>
+ * 要求: 種類（0: 処理 1: 死活確認） 内容のバイト数 内容
+ * 応答: 結果（0: 正常 それ以外: エラー） 内容のバイト数 内容（エラーの場合はUTF-8のメッセージ）
+ * </pre>
+ * 死活確認には、結果0、内容なしで応答すること<br>
+ * 一定時間使用されなかったプロセスは、使用前に死活確認を行う<br>
+ * 要求の途中で終了したプロセスは新しく起動したものに置き換えられ、その要求は一度だけ再実行される<br>
+ * 応答の内容のバイト数が上限を超える等、形式に従わない出力をしたプロセスは停止され、要求は再実行されない<br>
+ * タイムアウトを指定した場合、要求から応答までがタイムアウトしたプロセスはその子孫と共に停止され、要求は再実行されない<br>
+ * 常駐するプロセスは{@link ProcessLauncher}を経由せずに起動し、標準入出力も要求したスレッドで読み書きするので、
+ * {@link Config#getMaxChildProcesses()}の対象外となる（最大プロセス数は{@link Config#getCoProcessPoolSize()}で別に制限される）<br>
+ * 常駐している間、外部コマンドの同時実行数の枠を占有し続けないようにするため<br>
+ * {@link CoProcessStub}は要求をそのまま返す実装で、テストに使用可能
+ */
+public class CoProcessPool {
+
+	/**
+	 * 要求の種類: 処理
+	 */
+	static final int REQUEST = 0;
+
+	/**
+	 * 要求の種類: 死活確認
+	 */
+	static final int PING = 1;
+
+	/**
+	 * 応答の結果: 正常
+	 */
+	static final int OK = 0;
+
+	//使用前に死活確認を行う、未使用期間
+	private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	//読み書きに失敗したプロセスが、終了したかを確認するまでの最大待機時間
+	private static final long EXIT_WAIT_MILLIS = 1000;
+
+	/**
+	 * 応答の内容の最大バイト数
+	 */
+	static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+	private static final Map<String, CoProcessPool> pools = new ConcurrentHashMap<>();
+
+	static {
+		//常駐させた外部コマンドを残さないように
+		Shell.onShutdown(() -> pools.values().forEach(CoProcessPool::close));
+	}
+
+	private final String[] command;
+
+	private final Semaphore permits;
+
+	private final long timeoutMillis;
+
+	private final Deque<CoProcess> idle = new ArrayDeque<>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * コマンドごとに一つのプールを、プロセス内で共有する<br>
+	 * タイムアウトは、外部コマンドのタイムアウトの設定を使用する
+	 * @param command コマンドとパラメータ
+	 * @return プール
+	 */
+	public static CoProcessPool of(String command) {
+		return pools.computeIfAbsent(command, c -> {
+			Config config = Shell.config();
+			return new CoProcessPool(
+				c,
+				config.getCoProcessPoolSize(),
+				TimeUnit.SECONDS.toMillis(config.getCommandTimeoutSeconds()));
+		});
+	}
+
+	/**
+	 * @param command コマンドとパラメータ
+	 * @param maxSize 最大プロセス数
+	 */
+	public CoProcessPool(String command, int maxSize) {
+		this(command, maxSize, 0);
+	}
+
+	/**
+	 * @param command コマンドとパラメータ
+	 * @param maxSize 最大プロセス数
+	 * @param timeoutMillis 要求から応答までのタイムアウト 0以下の場合はタイムアウトしない
+	 */
+	public CoProcessPool(String command, int maxSize, long timeoutMillis) {
+		this.command = CommandExecutor.prepareCommand(command);
+		permits = new Semaphore(maxSize);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * 要求を送信し、応答を返す<br>
+	 * 最大プロセス数のプロセスが使用中の場合は、空くまで待つ
+	 * @param request 要求の内容
+	 * @return 応答の内容
+	 * @throws InterruptedException
+	 */
+	public byte[] call(byte[] request) throws InterruptedException {
+		if (closed) throw new IllegalStateException("closed.");
+
+		permits.acquire();
+		try {
+			Response response = exchange(request);
+
+			if (response.status != OK)
+				throw new RuntimeException("co-process error: " + new String(response.body, StandardCharsets.UTF_8));
+
+			return response.body;
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * 常駐しているプロセスをすべて停止する
+	 */
+	public void close() {
+		closed = true;
+
+		synchronized (idle) {
+			idle.forEach(CoProcess::destroy);
+			idle.clear();
+		}
+	}
+
+	private Response exchange(byte[] request) {
+		CoProcess process = borrow();
+		try {
+			Response response = process.exchange(REQUEST, request);
+			giveBack(process);
+			return response;
+		} catch (IOException e) {
+			//応答しない要求は、再実行しても応答しない可能性が高い
+			if (process.timedOut) {
+				process.destroy();
+				throw timeout(process);
+			}
+
+			//形式に従わない出力をしたものは、再実行しても同じ出力をする可能性が高い
+			if (!process.exited()) {
+				process.destroy();
+				throw new RuntimeException("co-process protocol violation: " + process.err, e);
+			}
+
+			process.destroy();
+		} catch (Throwable t) {
+			//状態が不明なものはプールに戻さない
+			process.destroy();
+			throw t;
+		}
+
+		//停止していたので、新しく起動したもので一度だけ再実行する
+		CoProcess restarted = start();
+		try {
+			Response response = restarted.exchange(REQUEST, request);
+			giveBack(restarted);
+			return response;
+		} catch (IOException e) {
+			restarted.destroy();
+
+			if (restarted.timedOut) throw timeout(restarted);
+
+			throw new RuntimeException("co-process crashed: " + restarted.err, e);
+		} catch (Throwable t) {
+			restarted.destroy();
+			throw t;
+		}
+	}
+
+	private RuntimeException timeout(CoProcess process) {
+		return new RuntimeException(
+			"co-process timed out: " + String.join(" ", command) + " " + process.err,
+			new TimeoutException());
+	}
+
+	private CoProcess borrow() {
+		while (true) {
+			CoProcess process;
+			synchronized (idle) {
+				process = idle.pollFirst();
+			}
+
+			if (process == null) return start();
+
+			if (process.isHealthy()) return process;
+
+			process.destroy();
+		}
+	}
+
+	private void giveBack(CoProcess process) {
+		synchronized (idle) {
+			if (!closed) {
+				//直前に使用したものから使用し、使用されないものは死活確認の対象になるように
+				idle.addFirst(process);
+				return;
+			}
+		}
+
+		process.destroy();
+	}
+
+	private CoProcess start() {
+		try {
+			return new CoProcess(new ProcessBuilder(command).start(), timeoutMillis);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class Response {
+
+		private final int status;
+
+		private final byte[] body;
+
+		private Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	private static class CoProcess {
+
+		private final Process process;
+
+		private final DataOutputStream output;
+
+		private final DataInputStream input;
+
+		//異常終了時の報告用
+		private final ErrorTail err = new ErrorTail();
+
+		private final long timeoutMillis;
+
+		private long lastUsedNanos = System.nanoTime();
+
+		//タイムアウトにより停止された
+		private volatile boolean timedOut = false;
+
+		private CoProcess(Process process, long timeoutMillis) {
+			this.process = process;
+			this.timeoutMillis = timeoutMillis;
+			output = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			input = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+
+			Thread errThread = new Thread(() -> {
+				try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+					for (String line; (line = reader.readLine()) != null;) {
+						err.add(line);
+					}
+				} catch (IOException e) {}
+			}, "co-process-err");
+			errThread.setDaemon(true);
+			errThread.start();
+		}
+
+		private boolean isHealthy() {
+			if (!process.isAlive()) return false;
+
+			if (System.nanoTime() - lastUsedNanos < IDLE_CHECK_NANOS) return true;
+
+			try {
+				return exchange(PING, new byte[0]).status == OK;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		private Response exchange(int kind, byte[] body) throws IOException {
+			//停止させると読み書きが例外で終了する
+			ScheduledFuture<?> timeout = timeoutMillis > 0
+				? ProcessLauncher.getInstance().schedule(() -> {
+					timedOut = true;
+					ProcessTree.kill(process);
+				}, timeoutMillis)
+				: null;
+
+			try {
+				output.writeInt(kind);
+				output.writeInt(body.length);
+				output.write(body);
+				output.flush();
+
+				int status = input.readInt();
+
+				//形式に従わない出力を長さとして読み込むと、巨大な配列を確保してしまう
+				int length = input.readInt();
+				if (length < 0 || length > MAX_BODY_BYTES) throw new IOException("illegal response length: " + length);
+
+				byte[] response = new byte[length];
+				input.readFully(response);
+
+				lastUsedNanos = System.nanoTime();
+
+				return new Response(status, response);
+			} finally {
+				if (timeout != null) timeout.cancel(false);
+			}
+		}
+
+		/**
+		 * 標準出力が閉じられてから終了するまでの間に確認した場合に備えて、少し待つ
+		 * @return 終了していた場合true
+		 */
+		private boolean exited() {
+			try {
+				return process.waitFor(EXIT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		private void destroy() {
+			try {
+				//標準入力を閉じて終了を促す
+				output.close();
+			} catch (IOException e) {}
+
+			process.destroy();
+		}
+	}
+}
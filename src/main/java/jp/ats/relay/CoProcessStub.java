@@ -0,0 +1,44 @@
+package jp.ats.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * {@link CoProcessPool}で常駐させる外部コマンドのスタブ<br>
+ * 要求の内容をそのまま応答として返す<br>
+ * java -cp relay.jar jp.ats.relay.CoProcessStub として起動する
+ */
+public class CoProcessStub {
+
+	public static void main(String[] args) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(System.out));
+
+		while (true) {
+			int kind;
+			try {
+				kind = input.readInt();
+			} catch (EOFException e) {
+				//標準入力が閉じられたので終了
+				return;
+			}
+
+			byte[] body = new byte[input.readInt()];
+			input.readFully(body);
+
+			output.writeInt(CoProcessPool.OK);
+			if (kind == CoProcessPool.PING) {
+				output.writeInt(0);
+			} else {
+				output.writeInt(body.length);
+				output.write(body);
+			}
+
+			output.flush();
+		}
+	}
+}
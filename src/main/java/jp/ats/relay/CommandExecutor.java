@@ -1,16 +1,25 @@
 package jp.ats.relay;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 public abstract class CommandExecutor {
 
 	private static final Charset DEFAULT = Charset.defaultCharset();
 
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	/**
 	 * コマンド、パラメータ付きコマンド、パラメータ、複数パラメータ等、すべてをスペースで分割し、配列化する
 	 * @param command
@@ -79,6 +88,221 @@ public abstract class CommandExecutor {
 		Charset charset)
 		throws InterruptedException;
 
+	/**
+	 * 外部コマンドを実行し、標準出力を出力先のファイルへ直接書き込む<br>
+	 * 出力先には実行中から書き込まれるので、次処理のキューディレクトリ内を直接指定しないこと（書き込み途中のファイルが処理対象となる）<br>
+	 * 次処理に引き渡す場合は、{@link QueueProcess#createNextOutputFile()}で作成した一時ファイルを指定する<br>
+	 * 標準出力がJavaのヒープを経由するかは、{@link #execute(Consumer, InputStream, Path)}の実装による
+	 * @param output 標準出力の出力先
+	 * @param command コマンドとパラメータ
+	 * @throws InterruptedException
+	 */
+	public void execute(Path output, String... command) throws InterruptedException {
+		execute(b -> b.command(prepareCommand(command)), null, output);
+	}
+
+	/**
+	 * 外部コマンドを実行し、標準出力を一行ずつ渡す<br>
+	 * 標準出力は保持されないので、出力が大量でもメモリを消費しない（実装クラスで置き換えない場合は、すべて保持した後に渡される）<br>
+	 * lineConsumerは、標準出力を読み込むスレッドで実行される<br>
+	 * lineConsumer内で他の外部コマンドを実行し、終了を待つことはできない（IllegalStateExceptionとなる）
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param charset 出力の文字コード
+	 * @param lineConsumer 標準出力の各行を受け取る
+	 * @throws InterruptedException
+	 */
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset,
+		Consumer<String> lineConsumer)
+		throws InterruptedException {
+		//標準出力を保持してしまうので、実装クラスで置き換えること
+		execute(configFunction, in, charset).forEach(lineConsumer);
+	}
+
+	/**
+	 * 外部コマンドを実行し、標準出力を読み込んだ単位で渡す<br>
+	 * 渡されたバッファは再利用されるので、chunkConsumer内で処理し終えること<br>
+	 * chunkConsumerは、標準出力を読み込むスレッドで実行される<br>
+	 * chunkConsumer内で他の外部コマンドを実行し、終了を待つことはできない（IllegalStateExceptionとなる）<br>
+	 * 実装クラスで置き換えない場合、標準出力はすべて保持された後、デフォルトの文字コードの行として読み直して渡されるので、
+	 * 改行コードが統一され、文字コードで表せないバイトは置き換えられる（バイナリの出力には使用できない）
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param chunkConsumer 標準出力の内容を受け取る
+	 * @throws InterruptedException
+	 */
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer)
+		throws InterruptedException {
+		//標準出力を保持してしまうので、実装クラスで置き換えること
+		for (String line : execute(configFunction, in, DEFAULT)) {
+			chunkConsumer.accept(ByteBuffer.wrap((line + LINE_SEPARATOR).getBytes(DEFAULT)));
+		}
+	}
+
+	/**
+	 * 外部コマンドを実行し、標準出力を出力先のファイルへ書き込む<br>
+	 * 出力先の扱いは{@link #execute(Path, String...)}と同じ<br>
+	 * 実装クラスで置き換えない場合、標準出力はすべて保持された後、デフォルトの文字コードの行として読み直して書き込まれるので、
+	 * 改行コードが統一され、文字コードで表せないバイトは置き換えられる（バイナリの出力には使用できない）<br>
+	 * {@link CommandExecutorImpl}では、標準出力はJavaのヒープを経由せずに直接書き込まれ、内容も変わらない
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param output 標準出力の出力先
+	 * @throws InterruptedException
+	 */
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output)
+		throws InterruptedException {
+		//標準出力を保持してしまうので、実装クラスで置き換えること
+		try {
+			Files.write(output, execute(configFunction, in, DEFAULT), DEFAULT);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * 外部コマンドを非同期で実行する
+	 * @param command コマンドとパラメータ
+	 * @return 外部コマンドの標準出力
+	 */
+	public CompletableFuture<List<String>> executeAsync(String... command) {
+		return executeAsync(b -> b.command(prepareCommand(command)), null, DEFAULT);
+	}
+
+	/**
+	 * 外部コマンドを非同期で実行する<br>
+	 * 呼び出し側は外部コマンドの終了を待たずに復帰する
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param charset 出力の文字コード
+	 * @return 外部コマンドの標準出力
+	 */
+	public CompletableFuture<List<String>> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset) {
+		//実装クラスで置き換えない場合は、呼び出し側のスレッドで実行される
+		return complete(() -> execute(configFunction, in, charset));
+	}
+
+	/**
+	 * {@link #execute(Consumer, InputStream, Charset, Consumer)}を非同期で実行する
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param charset 出力の文字コード
+	 * @param lineConsumer 標準出力の各行を受け取る
+	 * @return 外部コマンドの終了
+	 */
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset,
+		Consumer<String> lineConsumer) {
+		return complete(() -> {
+			execute(configFunction, in, charset, lineConsumer);
+			return null;
+		});
+	}
+
+	/**
+	 * {@link #execute(Consumer, InputStream, Consumer)}を非同期で実行する
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param chunkConsumer 標準出力の内容を受け取る
+	 * @return 外部コマンドの終了
+	 */
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer) {
+		return complete(() -> {
+			execute(configFunction, in, chunkConsumer);
+			return null;
+		});
+	}
+
+	/**
+	 * {@link #execute(Consumer, InputStream, Path)}を非同期で実行する
+	 * @param configFunction ProcessBuilderに設定をするラムダ式
+	 * @param in null可 外部コマンドに渡す
+	 * @param output 標準出力の出力先
+	 * @return 外部コマンドの終了
+	 */
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output) {
+		return complete(() -> {
+			execute(configFunction, in, output);
+			return null;
+		});
+	}
+
+	/**
+	 * 実行する外部コマンドが、指定時間内に終了しなかった場合に停止させるインスタンスを返す<br>
+	 * 停止させた場合、実行メソッドは{@link java.util.concurrent.TimeoutException}を原因とする例外を投げる<br>
+	 * 指定しない場合のタイムアウトは、実装クラスに依存する<br>
+	 * 外部コマンドを停止できない実装クラスのために、デフォルトではタイムアウトを設定せずにこのインスタンスを返す
+	 * @param timeout タイムアウト 0の場合はタイムアウトしない
+	 * @param unit timeoutの単位
+	 * @return タイムアウトが設定されたインスタンス
+	 */
+	public CommandExecutor withTimeout(long timeout, TimeUnit unit) {
+		return this;
+	}
+
+	/**
+	 * 外部コマンドの標準出力を、プロセス内で共有の{@link CommandResultCache}に保持するインスタンスを返す<br>
+	 * 同じ入力に対して常に同じ結果を返す外部コマンドにのみ使用すること
+	 * @return 結果を保持するインスタンス
+	 */
+	public CommandExecutor withCache() {
+		return withCache(CommandResultCache.getInstance());
+	}
+
+	/**
+	 * 外部コマンドの標準出力を、指定された{@link CommandResultCache}に保持するインスタンスを返す<br>
+	 * 同じ入力に対して常に同じ結果を返す外部コマンドにのみ使用すること
+	 * @param cache 結果の保持先
+	 * @return 結果を保持するインスタンス
+	 */
+	public CommandExecutor withCache(CommandResultCache cache) {
+		return new CachingCommandExecutor(this, cache);
+	}
+
+	/**
+	 * 外部コマンドを常駐させ、要求を送信して応答を返す<br>
+	 * 同じ外部コマンドを繰り返し実行する場合に、プロセスの起動を省略する<br>
+	 * 外部コマンドは{@link CoProcessPool}の形式で要求と応答をやりとりすること
+	 * @param command コマンドとパラメータ
+	 * @param request 要求の内容
+	 * @return 応答の内容
+	 * @throws InterruptedException
+	 */
+	public byte[] call(String command, byte[] request) throws InterruptedException {
+		return CoProcessPool.of(command).call(request);
+	}
+
+	private static <T> CompletableFuture<T> complete(Callable<T> callable) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			future.complete(callable.call());
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+		}
+
+		return future;
+	}
+
 	private static String trim(String target) {
 		return target == null ? "" : target.trim();
 	}
@@ -1,20 +1,48 @@
 package jp.ats.relay;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import jp.ats.relay.ProcessLauncher.StreamReader;
+
+/**
+ * 外部コマンドの起動と標準入出力の読み書きは、{@link ProcessLauncher}によりプロセス全体で共有のスレッドで行われる<br>
+ * 同時に実行される外部コマンドの数は、同期、非同期の呼び出しにかかわらず{@link Config#getMaxChildProcesses()}に制限される<br>
+ * タイムアウトした外部コマンドは、そこから起動された子孫のプロセスも含めて停止される
+ */
+@ThreadSafe
 public class CommandExecutorImpl extends CommandExecutor {
 
-	private static final String lineSeparator = System.getProperty("line.separator");
+	//0未満の場合は設定値を使用する
+	private final long timeoutMillis;
+
+	/**
+	 * タイムアウトには{@link Config#getCommandTimeoutSeconds()}を使用する
+	 */
+	public CommandExecutorImpl() {
+		timeoutMillis = -1;
+	}
+
+	private CommandExecutorImpl(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public CommandExecutor withTimeout(long timeout, TimeUnit unit) {
+		return new CommandExecutorImpl(unit.toMillis(timeout));
+	}
 
 	/**
 	 * 外部コマンドを実行する
@@ -30,132 +58,149 @@ public class CommandExecutorImpl extends CommandExecutor {
 		InputStream in,
 		Charset charset)
 		throws InterruptedException {
-		ProcessBuilder pb = new ProcessBuilder();
-		if (configFunction != null) configFunction.accept(pb);
-
-		Process process;
-		try {
-			process = pb.start();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-
-		List<String> out = new LinkedList<>();
-		List<String> err = new LinkedList<>();
-
-		int result = execute(process, in, out, err, charset);
+		return await(() -> executeAsync(configFunction, in, charset));
+	}
 
-		if (result != 0 || hasError(err)) {
-			synchronized (err) {
-				throw new RuntimeException("Process実行エラー: " + String.join(lineSeparator, err));
-			}
-		}
+	@Override
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset,
+		Consumer<String> lineConsumer)
+		throws InterruptedException {
+		await(() -> executeAsync(configFunction, in, charset, lineConsumer));
+	}
 
-		synchronized (out) {
-			return new LinkedList<>(out);
-		}
+	@Override
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer)
+		throws InterruptedException {
+		await(() -> executeAsync(configFunction, in, chunkConsumer));
 	}
 
-	private static boolean hasError(List<String> err) {
-		synchronized (err) {
-			return err.size() > 0;
-		}
+	@Override
+	public void execute(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output)
+		throws InterruptedException {
+		await(() -> executeAsync(configFunction, in, output));
 	}
 
-	private static int execute(
-		Process process,
+	@Override
+	public CompletableFuture<List<String>> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
 		InputStream in,
-		List<String> out,
-		List<String> err,
 		Charset charset) {
-		InputStream outStream = new BufferedInputStream(
-			process.getInputStream());
-		InputStream errStream = new BufferedInputStream(
-			process.getErrorStream());
-		OutputStream sendStream = new BufferedOutputStream(
-			process.getOutputStream());
+		List<String> out = new LinkedList<>();
 
-		try {
-			Thread outThread = skip(outStream, out, charset);
-			Thread errThread = skip(errStream, err, charset);
+		//完了後に参照されるので、同期は不要
+		return executeAsync(configFunction, in, charset, out::add).thenApply(v -> out);
+	}
 
-			if (in != null) sendBytes(in, sendStream);
+	@Override
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset,
+		Consumer<String> lineConsumer) {
+		return launch(configFunction, in, charset, stream -> readLines(stream, charset, lineConsumer));
+	}
 
-			sendStream.close();
+	@Override
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Consumer<ByteBuffer> chunkConsumer) {
+		return launch(configFunction, in, Charset.defaultCharset(), stream -> readChunks(stream, chunkConsumer));
+	}
 
-			process.waitFor();
+	@Override
+	public CompletableFuture<Void> executeAsync(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Path output) {
+		return launch(
+			b -> {
+				if (configFunction != null) configFunction.accept(b);
+				b.redirectOutput(output.toFile());
+			},
+			in,
+			Charset.defaultCharset(),
+			null);
+	}
 
-			outThread.join();
-			errThread.join();
+	/**
+	 * @param outReader null の場合、標準出力はProcessBuilderで設定された出力先へ出力される
+	 */
+	private CompletableFuture<Void> launch(
+		Consumer<ProcessBuilder> configFunction,
+		InputStream in,
+		Charset charset,
+		StreamReader outReader) {
+		ProcessBuilder pb = new ProcessBuilder();
+		if (configFunction != null) configFunction.accept(pb);
 
-			return process.exitValue();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
-		} finally {
-			try {
-				outStream.close();
-			} catch (IOException e) {}
+		ErrorTail err = new ErrorTail();
 
-			try {
-				errStream.close();
-			} catch (IOException e) {}
-		}
+		return ProcessLauncher.getInstance()
+			.launch(pb, in, outReader, stream -> readLines(stream, charset, err::add), timeoutMillis())
+			.thenAccept(result -> {
+				if (result != 0 || !err.isEmpty()) {
+					throw new RuntimeException("Process実行エラー: " + err);
+				}
+			});
 	}
 
-	private static Thread skip(InputStream stream, List<String> buffer, Charset charset) {
-		Skipper skipper = new Skipper(stream, buffer, charset);
-		Thread runner = new Thread(skipper);
-		runner.start();
-		return runner;
-	}
+	private long timeoutMillis() {
+		if (timeoutMillis >= 0) return timeoutMillis;
 
-	private static class Skipper implements Runnable {
+		//Shell外から使用された場合はタイムアウトしない
+		if (Shell.resourceManager() == null) return 0;
 
-		private final InputStream stream;
+		return TimeUnit.SECONDS.toMillis(Shell.config().getCommandTimeoutSeconds());
+	}
 
-		private final List<String> buffer;
+	private static <T> T await(Supplier<CompletableFuture<T>> launcher) throws InterruptedException {
+		//起動する前に確認する
+		ProcessLauncher.checkWaitable();
 
-		private final Charset charset;
+		try {
+			return launcher.get().get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+
+			throw new RuntimeException(cause);
+		}
+	}
 
-		private Skipper(InputStream stream, List<String> buffer, Charset charset) {
-			this.stream = stream;
-			this.buffer = buffer;
-			this.charset = charset;
+	private static void readLines(InputStream stream, Charset charset, Consumer<String> consumer) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset));
+		for (String line; (line = reader.readLine()) != null;) {
+			consumer.accept(line);
 		}
+	}
 
-		@Override
-		public void run() {
-			try (BufferedReader reader = new BufferedReader(
-				new InputStreamReader(stream, charset))) {
-				synchronized (buffer) {
-					for (String line; (line = reader.readLine()) != null;) {
-						buffer.add(line);
-					}
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+	private static void readChunks(InputStream stream, Consumer<ByteBuffer> consumer) throws IOException {
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+		try {
+			byte[] b = buffer.array();
+			int readed;
+			while ((readed = stream.read(b, 0, BUFFER_SIZE)) > 0) {
+				buffer.clear();
+				buffer.limit(readed);
+				consumer.accept(buffer);
 			}
+		} finally {
+			pool.release(buffer);
 		}
 	}
 
 	private static final int BUFFER_SIZE = 1024 * 100;
-
-	/**
-	 * in から読み込めるだけ読み込み、out へ出力します。
-	 * @param in 
-	 * @param out 
-	 * @throws IOException 
-	 */
-	private static void sendBytes(InputStream in, OutputStream out)
-		throws IOException {
-		byte[] b = new byte[BUFFER_SIZE];
-		int readed;
-		while ((readed = in.read(b, 0, BUFFER_SIZE)) > 0) {
-			out.write(b, 0, readed);
-		}
-
-		out.flush();
-	}
 }
@@ -9,6 +9,7 @@ import java.util.function.Consumer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+@ThreadSafe
 public class CommandExecutorStub extends CommandExecutor {
 
 	private static final Logger logger = LogManager.getLogger("console-logger");
@@ -22,4 +23,10 @@ public class CommandExecutorStub extends CommandExecutor {
 		logger.info(CommandExecutorStub.class.getName() + " called.");
 		return Collections.EMPTY_LIST;
 	}
+
+	@Override
+	public byte[] call(String command, byte[] request) {
+		logger.info(CommandExecutorStub.class.getName() + " called. command: [" + command + "]");
+		return new byte[0];
+	}
 }
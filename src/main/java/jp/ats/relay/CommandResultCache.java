@@ -0,0 +1,354 @@
+package jp.ats.relay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 同じ入力に対して常に同じ結果を返す外部コマンドの、標準出力を保持する<br>
+ * キーはコマンド、パラメータ、作業ディレクトリ、環境変数、出力の文字コード、標準入力の内容のハッシュ値<br>
+ * 保持する件数を超えた場合は最も長く使用されていないものから、有効期間を過ぎた場合は使用時に破棄する<br>
+ * 保存先ディレクトリを指定した場合は、ファイルにも保存し、別のプロセスと共有する<br>
+ * 保存先ディレクトリは保存時に定期的に掃除され、有効期間を過ぎたもの、書き込み途中で残ったものが削除される<br>
+ * また、ファイルの件数も保持する件数までに制限され、超えた場合は古いものから削除される<br>
+ * 正常に終了した外部コマンドの結果のみ保持される
+ * @see CommandExecutor#withCache()
+ */
+public class CommandResultCache {
+
+	private static final Object lock = new Object();
+
+	private static volatile CommandResultCache instance;
+
+	//保存先ディレクトリを掃除する間隔
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	//書き込み途中の一時ファイルを、残ったものとみなすまでの時間
+	private static final long TEMP_FILE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final int maxEntries;
+
+	private final long ttlMillis;
+
+	private final Path directory;
+
+	private final Map<String, Result> entries;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	//次に保存先ディレクトリを掃除する時刻
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	/**
+	 * 初回の呼び出し時の設定で生成したものを、プロセス内で共有する
+	 * @return インスタンス
+	 */
+	public static CommandResultCache getInstance() {
+		if (instance != null) return instance;
+
+		synchronized (lock) {
+			if (instance == null) {
+				Config config = Shell.config();
+				instance = new CommandResultCache(
+					config.getCommandCacheSize(),
+					TimeUnit.SECONDS.toMillis(config.getCommandCacheTtlSeconds()),
+					config.getCommandCacheDirectory());
+			}
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param maxEntries メモリ上に保持する最大件数
+	 * @param ttlMillis 有効期間 0以下の場合は期限なし
+	 * @param directory null可 保存先ディレクトリ
+	 */
+	public CommandResultCache(int maxEntries, long ttlMillis, Path directory) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.directory = directory;
+
+		entries = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				return size() > CommandResultCache.this.maxEntries;
+			}
+		};
+
+		if (directory != null) {
+			try {
+				Files.createDirectories(directory);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return 生成以降に、保持していた結果を返した回数
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return 生成以降に、保持していなかった回数
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @param command コマンドとパラメータ
+	 * @param directory null可 作業ディレクトリ
+	 * @param environment 環境変数
+	 * @param charset 出力の文字コード
+	 * @param input 標準入力の内容
+	 * @return キー
+	 */
+	static String key(List<String> command, Path directory, Map<String, String> environment, Charset charset, byte[] input) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		for (String element : command) {
+			update(digest, element);
+		}
+
+		//区切りとして、コマンドには含まれない値を使用する
+		digest.update((byte) 0xff);
+		update(digest, directory == null ? "" : directory.toAbsolutePath().normalize().toString());
+
+		//順序に依存しないよう、並べ替える
+		for (Map.Entry<String, String> entry : new TreeMap<>(environment).entrySet()) {
+			update(digest, entry.getKey());
+			update(digest, entry.getValue());
+		}
+
+		digest.update((byte) 0xff);
+		update(digest, charset.name());
+		digest.update(input);
+
+		StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest()) {
+			builder.append(String.format("%02x", b));
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * @param key {@link #key(List, Path, Map, Charset, byte[])}で作成したキー
+	 * @return 有効な結果がない場合は null
+	 */
+	List<String> get(String key) {
+		long now = System.currentTimeMillis();
+
+		Result entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired(now)) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+
+		if (entry == null && directory != null) {
+			entry = load(key, now);
+			if (entry != null) {
+				synchronized (entries) {
+					entries.put(key, entry);
+				}
+			}
+		}
+
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return entry.lines;
+	}
+
+	/**
+	 * @param key {@link #key(List, Path, Map, Charset, byte[])}で作成したキー
+	 * @param lines 外部コマンドの標準出力
+	 * @return 変更不可の標準出力
+	 */
+	List<String> put(String key, List<String> lines) {
+		Result entry = new Result(
+			Collections.unmodifiableList(new ArrayList<>(lines)),
+			ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE);
+
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+
+		if (directory != null) {
+			store(key, entry);
+
+			long now = System.currentTimeMillis();
+			long next = nextSweep.get();
+
+			//一つのスレッドのみが掃除する
+			if (now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_MILLIS)) sweep(now);
+		}
+
+		return entry.lines;
+	}
+
+	/**
+	 * 保存先ディレクトリから、有効期間を過ぎたもの、書き込み途中で残った一時ファイル、保持する件数を超えた古いものを削除する
+	 * @param now 現在時刻
+	 * @return 削除したファイル数
+	 */
+	int sweep(long now) {
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(directory)) {
+			files = stream.collect(Collectors.toList());
+		} catch (IOException e) {
+			Shell.SHELL_LOGGER.warn("failed to sweep cache directory [" + directory + "]", e);
+			return 0;
+		}
+
+		int deleted = 0;
+		List<Map.Entry<Path, Long>> survivors = new ArrayList<>();
+		for (Path file : files) {
+			try {
+				long modified = Files.getLastModifiedTime(file).toMillis();
+
+				boolean obsolete;
+				if (file.getFileName().toString().startsWith(".")) {
+					//他のプロセスが書き込み中の可能性があるため、十分に古いもののみ
+					obsolete = modified + TEMP_FILE_MILLIS <= now;
+				} else {
+					obsolete = expiresAt(file) <= now;
+				}
+
+				if (obsolete) {
+					if (Files.deleteIfExists(file)) deleted++;
+				} else if (!file.getFileName().toString().startsWith(".")) {
+					survivors.add(new AbstractMap.SimpleEntry<>(file, modified));
+				}
+			} catch (IOException | RuntimeException e) {
+				//他のプロセスが削除した場合等は、対象外とする
+				Shell.SHELL_LOGGER.debug("failed to sweep cached result [" + file + "]", e);
+			}
+		}
+
+		int excess = survivors.size() - maxEntries;
+		if (excess <= 0) return deleted;
+
+		survivors.sort(Map.Entry.comparingByValue());
+		for (Map.Entry<Path, Long> survivor : survivors.subList(0, excess)) {
+			try {
+				if (Files.deleteIfExists(survivor.getKey())) deleted++;
+			} catch (IOException e) {
+				Shell.SHELL_LOGGER.debug("failed to sweep cached result [" + survivor.getKey() + "]", e);
+			}
+		}
+
+		return deleted;
+	}
+
+	private static long expiresAt(Path file) throws IOException {
+		//1行目は有効期限
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+
+			//壊れたものは期限切れとして扱う
+			return line == null ? 0 : Long.parseLong(line);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private Result load(String key, long now) {
+		Path file = directory.resolve(key);
+		if (!Files.exists(file)) return null;
+
+		try {
+			List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+			//1行目は有効期限
+			long expiresAt = Long.parseLong(lines.get(0));
+			if (expiresAt <= now) {
+				Files.deleteIfExists(file);
+				return null;
+			}
+
+			return new Result(Collections.unmodifiableList(new ArrayList<>(lines.subList(1, lines.size()))), expiresAt);
+		} catch (Exception e) {
+			//他のプロセスが削除した場合等は、保持していないものとして扱う
+			Shell.SHELL_LOGGER.warn("failed to load cached result [" + file + "]", e);
+			return null;
+		}
+	}
+
+	private void store(String key, Result entry) {
+		List<String> lines = new ArrayList<>(entry.lines.size() + 1);
+		lines.add(String.valueOf(entry.expiresAt));
+		lines.addAll(entry.lines);
+
+		Path file = directory.resolve(key);
+
+		//他のプロセスが書き込み途中のファイルを読まないように、隠しファイルに書き込んでから移動する
+		try {
+			Path temp = Files.createTempFile(directory, "." + key, null);
+			Files.write(temp, lines, StandardCharsets.UTF_8);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//保存できなくても、メモリ上では使用できる
+			Shell.SHELL_LOGGER.warn("failed to store cached result [" + file + "]", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static class Result {
+
+		private final List<String> lines;
+
+		private final long expiresAt;
+
+		private Result(List<String> lines, long expiresAt) {
+			this.lines = lines;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package jp.ats.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 起動済みのJVM内で、{@link Command}の代わりに{@link ShellClient}を実行するサーバー<br>
+ * ループバックアドレスで待ち受け、{@link CommandServerNextCommand}からの起動依頼（次工程のコマンドパス）を受け付ける<br>
+ * 起動依頼されたコマンドパスは、サーバー側の{@link Constants#COMMAND_SERVER_PROPERTIES}の定義でShellClientの実装クラスと起動パラメータに置き換える<br>
+ * 定義されていないコマンドパスは拒否するので、同じマシンの他のユーザーからの接続であっても、定義された処理以外は実行されない<br>
+ * 起動依頼ごとにスレッドを割り当て、{@link Shell#dispatch(String[], ResourceManager, ShellClient)}で独立した起動パラメータ、設定のもとで実行する<br>
+ * JVMの起動、クラスロード、DB接続の初期化が済んでいるので、新しいプロセスを起動するよりも早く処理を開始できる<br>
+ * 緊急停止指示フラグファイルが置かれると、受け付けを停止し、実行中のものが終了するのを待ってから終了する<br>
+ * {@link Command}から起動すること
+ */
+public class CommandServer implements ShellClient {
+
+	//緊急停止指示を確認する間隔
+	private static final int WAIT_MILLIS = 1000;
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	@Override
+	public void execute() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean usesDatabase() {
+		//DB接続は、DBを使用するShellClientが最初に実行された時に初期化され、以降はそのまま使用される
+		return false;
+	}
+
+	@Override
+	public void start() {
+		ResourceManager manager = Shell.resourceManager();
+		int port = Shell.config().getCommandServerPort();
+
+		ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "command-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(WAIT_MILLIS);
+
+			while (!QueueProcess.halted()) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+
+				executor.execute(() -> accept(socket, manager));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdown();
+
+			//Commandは戻った直後にJVMを終了するので、実行中の処理が処理対象の途中で止まらないように終了を待つ
+			awaitTermination(executor);
+		}
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			while (!executor.awaitTermination(WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				Shell.SHELL_LOGGER.info("waiting for running commands to finish.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void accept(Socket socket, ResourceManager manager) {
+		String[] command;
+		ShellClient client;
+		String launchClaim;
+		try (Socket s = socket) {
+			s.setSoTimeout(WAIT_MILLIS);
+
+			DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			String path = input.readUTF();
+			launchClaim = input.readUTF();
+
+			DataOutputStream output = new DataOutputStream(s.getOutputStream());
+			try {
+				//サーバー側で定義されているものだけを実行する
+				String invocation = ConfigCache.properties(manager, Constants.COMMAND_SERVER_PROPERTIES).getProperty(path);
+				if (invocation == null) throw new IllegalArgumentException("command [" + path + "] is not defined.");
+
+				command = CommandExecutor.prepareCommand(invocation);
+				client = Shell.newInstance(command[0]);
+			} catch (Exception e) {
+				//依頼元では、新しいプロセスで起動される
+				output.writeBoolean(false);
+				throw e;
+			}
+
+			//実行の終了は待たずに、受け付けたことのみを返す
+			output.writeBoolean(true);
+			output.flush();
+		} catch (Exception e) {
+			Shell.handleException(e);
+			return;
+		}
+
+		//先頭を除去
+		String[] args = new String[command.length - 1];
+		System.arraycopy(command, 1, args, 0, args.length);
+
+		//起動予約により依頼された場合、実行する処理が予約を解除できるように
+		WakeUp.setLaunchClaim(launchClaim.isEmpty() ? null : launchClaim);
+		try {
+			Shell.dispatch(args, manager, client);
+		} finally {
+			//スレッドは使い回されるので、次の起動依頼に持ち越さない
+			WakeUp.setLaunchClaim(null);
+		}
+	}
+
+	/**
+	 * 起動依頼を送信する
+	 * @param port ポート番号
+	 * @param timeoutMillis 接続と応答のタイムアウト
+	 * @param command {@link Constants#COMMAND_SERVER_PROPERTIES}に定義された次工程のコマンドパス
+	 * @param launchClaim 起動予約の識別子 起動予約によらない場合null
+	 * @return 受け付けられた場合true
+	 * @throws IOException 接続できなかった場合
+	 */
+	static boolean request(int port, int timeoutMillis, String command, String launchClaim) throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			output.writeUTF(command);
+			output.writeUTF(launchClaim == null ? "" : launchClaim);
+			output.flush();
+
+			return new DataInputStream(socket.getInputStream()).readBoolean();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+
+/**
+ * 次工程を、起動済みの{@link CommandServer}内で実行する<br>
+ * 次工程のコマンドパスが{@link Constants#COMMAND_SERVER_PROPERTIES}に定義されている場合、
+ * CommandServerにコマンドパスを送信して起動を依頼する<br>
+ * CommandServerは、CommandServer側の定義でShellClientの実装クラスと起動パラメータに置き換えて実行する<br>
+ * 定義されていないコマンド、CommandServerが起動していない場合は、{@link NextCommandImpl}と同様に新しいプロセスで起動する
+ */
+@ThreadSafe
+public class CommandServerNextCommand implements NextCommand {
+
+	//接続と応答のタイムアウト
+	private static final int TIMEOUT_MILLIS = 1000;
+
+	@Override
+	public void execute(String command) {
+		execute(command, null);
+	}
+
+	@Override
+	public void execute(String command, String launchClaim) {
+		String path = command.trim();
+		if (Shell.config(Constants.COMMAND_SERVER_PROPERTIES).getProperty(path) != null) {
+			try {
+				//実行するShellClientは、CommandServer側で定義から決定される
+				if (CommandServer.request(Shell.config().getCommandServerPort(), TIMEOUT_MILLIS, path, launchClaim)) return;
+			} catch (IOException e) {
+				//CommandServerが起動していない
+				Shell.SHELL_LOGGER.warn("command server is not available. [" + command + "] is executed as new process.", e);
+			}
+		}
+
+		new NextCommandImpl().execute(command, launchClaim);
+	}
+}
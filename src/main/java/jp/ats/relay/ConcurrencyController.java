@@ -0,0 +1,127 @@
+package jp.ats.relay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 実測したスループットと一件あたりの処理時間から、worker数を調整する<br>
+ * 一件あたりの処理時間が基準値から大きく悪化した場合（DB等の下流が飽和した場合）は乗算的に減らし、
+ * 前回増やしてもスループットが向上しなかった場合は一つ減らし、それ以外は一つずつ増やす（AIMD）<br>
+ * DBの応答時間は個別には計測せず、DBの待ちを含む一件あたりの処理時間全体で下流の飽和を判断する<br>
+ * worker数は、最大同時実行スレッド数と残件数を超えないように制限される
+ */
+public class ConcurrencyController {
+
+	/**
+	 * 一件あたりの処理時間が基準値の何倍を超えたら減らすか
+	 */
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * 減らす場合の倍率
+	 */
+	private static final double DECREASE_FACTOR = 0.75;
+
+	/**
+	 * 増やした場合に、向上したとみなすスループットの割合
+	 */
+	private static final double MIN_GAIN = 0.05;
+
+	/**
+	 * 基準となる処理時間を、調整ごとに緩めていく倍率<br>
+	 * 処理対象の性質が変わった場合に、過去の基準値に縛られ続けないように
+	 */
+	private static final double BASELINE_DECAY = 1.05;
+
+	private final int maxConcurrency;
+
+	private final LongAdder completed = new LongAdder();
+
+	private final LongAdder busyNanos = new LongAdder();
+
+	private long windowStartNanos;
+
+	private double lastThroughput = 0;
+
+	private int lastDirection = 0;
+
+	//一件あたりの処理時間の基準値
+	private double baselineLatency = Double.MAX_VALUE;
+
+	/**
+	 * @param maxConcurrency 最大同時実行スレッド数
+	 */
+	public ConcurrencyController(int maxConcurrency) {
+		this(maxConcurrency, System.nanoTime());
+	}
+
+	/**
+	 * @param maxConcurrency 最大同時実行スレッド数
+	 * @param now 計測の開始時刻（{@link System#nanoTime()}）
+	 */
+	ConcurrencyController(int maxConcurrency, long now) {
+		this.maxConcurrency = maxConcurrency;
+		windowStartNanos = now;
+	}
+
+	/**
+	 * workerが、一件の処理にかかった時間を記録する
+	 * @param nanos 処理時間
+	 */
+	public void record(long nanos) {
+		completed.increment();
+		busyNanos.add(nanos);
+	}
+
+	/**
+	 * 前回の調整から今回までの実績をもとに、次のworker数を決める<br>
+	 * mainスレッドが実行
+	 * @param current 現在のworker数
+	 * @param backlog 残件数
+	 * @return 次のworker数
+	 */
+	public int adjust(int current, int backlog) {
+		return adjust(current, backlog, System.nanoTime());
+	}
+
+	/**
+	 * @param current 現在のworker数
+	 * @param backlog 残件数
+	 * @param now 現在時刻（{@link System#nanoTime()}）
+	 * @return 次のworker数
+	 */
+	synchronized int adjust(int current, int backlog, long now) {
+		long count = completed.sumThenReset();
+		long busy = busyNanos.sumThenReset();
+		long elapsed = Math.max(now - windowStartNanos, 1);
+		windowStartNanos = now;
+
+		//最低1はあるように
+		int limit = Math.max(1, Math.min(maxConcurrency, backlog));
+
+		//実績がない場合は判断できないので、上限のみ適用
+		if (count == 0) return Math.min(current, limit);
+
+		double throughput = count / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+		double latency = busy / (double) count;
+
+		baselineLatency = Math.min(latency, baselineLatency * BASELINE_DECAY);
+
+		int next;
+		if (latency > baselineLatency * LATENCY_TOLERANCE) {
+			next = (int) (current * DECREASE_FACTOR);
+		} else if (lastDirection > 0 && throughput < lastThroughput * (1 + MIN_GAIN)) {
+			//増やしても効果がなかった
+			next = current - 1;
+		} else {
+			next = current + 1;
+		}
+
+		next = Math.max(1, Math.min(next, limit));
+
+		lastDirection = Integer.compare(next, current);
+		lastThroughput = throughput;
+
+		return next;
+	}
+}
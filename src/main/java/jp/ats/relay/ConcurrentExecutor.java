@@ -1,17 +1,24 @@
 package jp.ats.relay;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import org.apache.logging.log4j.Logger;
+
 import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.LifecycleAware;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.Sequence;
 import com.lmax.disruptor.WorkHandler;
@@ -22,7 +29,7 @@ import com.lmax.disruptor.util.Util;
  * 複数のworkerスレッドで、複数の処理対象を捌く
  * @param <T> 処理対象の型
  */
-public class ConcurrentExecutor<T> {
+public class ConcurrentExecutor<T> implements TaskExecutor<T> {
 
 	/**
 	 * リングバッファのサイズ（2^nであること）
@@ -38,10 +45,32 @@ public class ConcurrentExecutor<T> {
 
 	private final ExecutorService executor;
 
-	private final WorkerPool<Event> workerPool;
+	private final ExceptionHandler<Event> exceptionHandler;
+
+	//全workerが同じ処理を行う場合のみ、worker数の変更が可能
+	private final WorkHandler<Event> uniformWorker;
+
+	//先読みを行う場合は先読み用I/O workerのシーケンス
+	private final Sequence[] dependentSequences;
+
+	private volatile Workers workers;
+
+	private volatile int concurrency;
+
+	private boolean started = false;
+
+	//先読みを行わない場合はnull
+	private final ExecutorService ioExecutor;
+
+	//先読みを行わない場合はnull
+	private final Workers ioWorkers;
 
 	private final Object parking = new Object();
 
+	private volatile RateLimiter rateLimiter;
+
+	private volatile ToLongFunction<? super T> sizeFunction;
+
 	/**
 	 * @param concurrency 処理worker数
 	 * @param consumer workerが行う処理
@@ -53,7 +82,7 @@ public class ConcurrentExecutor<T> {
 		Consumer<T> consumer,
 		ThreadFactory threadFactory,
 		Disposer<T> disposer) {
-		this(threadFactory, disposer, IntStream.range(0, concurrency).mapToObj(i -> consumer).collect(Collectors.toList()));
+		this(threadFactory, disposer, Collections.nCopies(concurrency, adapt(consumer)), 0, null, null);
 	}
 
 	/**
@@ -61,36 +90,63 @@ public class ConcurrentExecutor<T> {
 	 * @param disposer 例外処理
 	 * @param consumers workerが行う処理
 	 */
+	//consumersは読み込むだけで、他に保持されない
 	@SafeVarargs
+	@SuppressWarnings("varargs")
 	public ConcurrentExecutor(
 		ThreadFactory threadFactory,
 		Disposer<T> disposer,
 		Consumer<T>... consumers) {
-		this(threadFactory, disposer, Arrays.asList(consumers));
+		this(
+			threadFactory,
+			disposer,
+			Arrays.stream(consumers).map(ConcurrentExecutor::adapt).collect(Collectors.toList()),
+			0,
+			null,
+			null);
 	}
 
-	private ConcurrentExecutor(
+	/**
+	 * 処理対象の読み込みを先読み用のI/O workerで行い、読み込み済みのデータを処理workerに渡す二段構成で生成する<br>
+	 * 先読みしたデータが処理されずに保持される量は、maxPrefetchBytesまでに制限される
+	 * @param concurrency 処理worker数
+	 * @param consumer workerが行う処理 第二引数は先読みしたデータ（先読みに失敗した場合はnull）
+	 * @param ioConcurrency 先読み用I/O worker数
+	 * @param maxPrefetchBytes 先読みしたデータを保持する最大バイト数
+	 * @param prefetcher 先読み処理
+	 * @param threadFactory 任意のThread生成（処理workerのみ）
+	 * @param disposer 例外処理
+	 * @param <B> 先読みしたデータの型
+	 */
+	public <B> ConcurrentExecutor(
+		int concurrency,
+		BiConsumer<T, B> consumer,
+		int ioConcurrency,
+		long maxPrefetchBytes,
+		Prefetcher<T, B> prefetcher,
 		ThreadFactory threadFactory,
-		Disposer<T> disposer,
-		List<Consumer<T>> consumers) {
-		List<WorkHandler<Event>> workers = new LinkedList<>();
-		consumers.forEach(consumer -> workers.add(event -> {
-			try {
-				consumer.accept(event.value);
-			} finally {
-				synchronized (parking) {
-					parking.notify();
-				}
-			}
-		}));
+		Disposer<T> disposer) {
+		this(
+			threadFactory,
+			disposer,
+			Collections.nCopies(concurrency, consumer),
+			ioConcurrency,
+			new PrefetchBudget(maxPrefetchBytes),
+			prefetcher);
+	}
 
+	@SuppressWarnings("unchecked")
+	private <B> ConcurrentExecutor(
+		ThreadFactory threadFactory,
+		Disposer<T> disposer,
+		List<? extends BiConsumer<T, B>> consumers,
+		int ioConcurrency,
+		PrefetchBudget budget,
+		Prefetcher<T, B> prefetcher) {
 		ringBuffer = RingBuffer.createSingleProducer(Event::new, BUFFER_SIZE);
 		executor = Executors.newCachedThreadPool(threadFactory);
 
-		@SuppressWarnings("unchecked")
-		WorkHandler<Event>[] workHandlerArray = workers.toArray(new WorkHandler[workers.size()]);
-
-		ExceptionHandler<Event> exceptionHandler = new ExceptionHandler<Event>() {
+		exceptionHandler = new ExceptionHandler<Event>() {
 
 			@Override
 			public void handleEventException(Throwable t, long sequence, Event event) {
@@ -108,22 +164,145 @@ public class ConcurrentExecutor<T> {
 			}
 		};
 
-		workerPool = new WorkerPool<Event>(ringBuffer, ringBuffer.newBarrier(), exceptionHandler, workHandlerArray);
+		if (ioConcurrency > 0) {
+			WorkHandler<Event> ioWorker = event -> {
+				//先に取得した処理対象から順に枠を確保することで、後続の処理対象が枠を占有したまま
+				//処理workerが先行の処理対象の読み込みを待ち続けることを防ぐ
+				long size;
+				try {
+					size = prefetcher.size(event.value);
+				} catch (RuntimeException e) {
+					//サイズが取得できなくても、順番待ちを止めないように枠の確保は行う
+					size = 0;
+				}
+
+				event.reserved = budget.acquire(event.sequence, size);
+				try {
+					event.loaded = prefetcher.load(event.value, event.reserved);
+				} catch (Throwable t) {
+					//読み込みに失敗した場合は、先読みなしで処理workerに渡す
+					budget.release(event.reserved);
+					event.reserved = 0;
+					throw t;
+				}
+			};
+
+			ioWorkers = new Workers(Collections.nCopies(ioConcurrency, ioWorker), new Sequence[0]);
+
+			AtomicInteger ioThreadCounter = new AtomicInteger(0);
+			ioExecutor = Executors.newCachedThreadPool(r -> new Thread(r, "io-" + ioThreadCounter.incrementAndGet()));
+		} else {
+			ioWorkers = null;
+			ioExecutor = null;
+		}
+
+		List<WorkHandler<Event>> handlers = new LinkedList<>();
+		consumers.forEach(consumer -> handlers.add(event -> {
+			try {
+				acquire(event.value);
+				consumer.accept(event.value, (B) event.loaded);
+			} finally {
+				if (event.loaded != null) prefetcher.release((B) event.loaded);
+				if (event.reserved > 0) budget.release(event.reserved);
+
+				event.loaded = null;
+				event.reserved = 0;
 
-		ringBuffer.addGatingSequences(workerPool.getWorkerSequences());
+				synchronized (parking) {
+					parking.notify();
+				}
+			}
+		}));
+
+		//先読みを行う場合は、先読みが完了したものだけを処理する
+		dependentSequences = ioWorkers == null ? new Sequence[0] : ioWorkers.pool.getWorkerSequences();
+
+		uniformWorker = consumers.stream().allMatch(c -> c == consumers.get(0)) ? handlers.get(0) : null;
+
+		workers = new Workers(handlers, dependentSequences);
+		concurrency = handlers.size();
+	}
+
+	private static <T> BiConsumer<T, Object> adapt(Consumer<T> consumer) {
+		return (value, loaded) -> consumer.accept(value);
+	}
+
+	/**
+	 * workerが処理対象を取得する際の流量制限を設定する<br>
+	 * 全workerで一つの制限を共有する
+	 * @param rateLimiter 流量制限 nullの場合は制限なし
+	 * @param sizeFunction 処理対象のバイト数を求める処理 バイト数の制限が有効な場合のみ使用される
+	 */
+	@Override
+	public void setRateLimiter(RateLimiter rateLimiter, ToLongFunction<? super T> sizeFunction) {
+		this.sizeFunction = sizeFunction;
+		this.rateLimiter = rateLimiter;
 	}
 
 	/**
 	 * workerを開始する
 	 */
-	public void start() {
-		workerPool.start(executor);
+	@Override
+	public synchronized void start() {
+		if (ioWorkers != null) ioWorkers.pool.start(ioExecutor);
+		workers.pool.start(executor);
+		started = true;
+	}
+
+	/**
+	 * @return {@link #resize(int)}が可能かどうか
+	 */
+	@Override
+	public boolean isResizable() {
+		return uniformWorker != null;
+	}
+
+	/**
+	 * @return 現在のworker数
+	 */
+	@Override
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * 実行中にworker数を変更する<br>
+	 * 処理対象がすべてはけるのを待ってから、現在のworkerを停止し、指定数のworkerで再開する<br>
+	 * スレッドはスレッドプールで再利用されるので、増加させる分のスレッドのみ新たに生成される<br>
+	 * 処理対象を渡すスレッド（main）から、処理対象を渡していない間に実行すること
+	 * @param concurrency 変更後のworker数
+	 * @throws InterruptedException
+	 */
+	@Override
+	public synchronized void resize(int concurrency) throws InterruptedException {
+		if (uniformWorker == null) throw new UnsupportedOperationException("workers are not uniform.");
+		if (concurrency < 1) throw new IllegalArgumentException("concurrency: " + concurrency);
+
+		if (concurrency == this.concurrency) return;
+
+		Workers current = workers;
+		if (started) {
+			waitUntilDrained();
+
+			//停止したworkerのスレッドは、新しいworkerに再利用される
+			current.halt();
+		}
+
+		for (Sequence sequence : current.pool.getWorkerSequences()) {
+			ringBuffer.removeGatingSequence(sequence);
+		}
+
+		workers = new Workers(Collections.nCopies(concurrency, uniformWorker), dependentSequences);
+		this.concurrency = concurrency;
+
+		if (started) workers.pool.start(executor);
 	}
 
 	/**
 	 * 処理対象をworkerに処理させる
 	 * @param values 処理対象
 	 */
+	@Override
 	public void execute(List<T> values) {
 		execute(values.stream());
 	}
@@ -132,12 +311,9 @@ public class ConcurrentExecutor<T> {
 	 * 処理対象をworkerに処理させる
 	 * @param values 処理対象
 	 */
+	@Override
 	public void execute(Stream<T> values) {
-		values.forEach(value -> {
-			long seq = ringBuffer.next();
-			ringBuffer.get(seq).set(value);
-			ringBuffer.publish(seq);
-		});
+		values.forEach(this::publish);
 	}
 
 	/**
@@ -148,13 +324,12 @@ public class ConcurrentExecutor<T> {
 	 * @param interval インターバル処理
 	 * @throws InterruptedException
 	 */
+	@Override
 	public void execute(Stream<T> values, int chunk, Runnable interval) throws InterruptedException {
 		int[] counter = { 0 };
 		try {
 			values.forEach(value -> {
-				long seq = ringBuffer.next();
-				ringBuffer.get(seq).set(value);
-				ringBuffer.publish(seq);
+				publish(value);
 
 				if (++counter[0] % chunk == 0) {
 					try {
@@ -175,8 +350,9 @@ public class ConcurrentExecutor<T> {
 	 * 処理対象が全てはけるまでmainスレッドを停止する
 	 * @throws InterruptedException
 	 */
+	@Override
 	public void waitUntilDrained() throws InterruptedException {
-		Sequence[] workerSequences = workerPool.getWorkerSequences();
+		Sequence[] workerSequences = workers.pool.getWorkerSequences();
 		while (ringBuffer.getCursor() > Util.getMinimumSequence(workerSequences)) {
 			synchronized (parking) {
 				//メインがここに到達する前にWorkerがすべて処理したときの場合に備えてtimeoutを設定
@@ -188,11 +364,30 @@ public class ConcurrentExecutor<T> {
 	/**
 	 * 処理対象が全てはけるまでmainスレッドを待たせ、workerスレッドを停止させる
 	 */
+	@Override
 	public void shutdown() {
-		workerPool.drainAndHalt();
+		if (ioWorkers != null) {
+			ioWorkers.drainAndHalt();
+			ioExecutor.shutdown();
+		}
+
+		workers.drainAndHalt();
 		executor.shutdown();
 	}
 
+	private void publish(T value) {
+		long seq = ringBuffer.next();
+		ringBuffer.get(seq).set(value, seq);
+		ringBuffer.publish(seq);
+	}
+
+	private void acquire(T value) throws InterruptedException {
+		RateLimiter limiter = rateLimiter;
+		if (limiter == null) return;
+
+		limiter.acquire(limiter.limitsBytes() ? sizeFunction.applyAsLong(value) : 0);
+	}
+
 	/**
 	 * worker実行時に発生した例外を処理する
 	 *
@@ -205,6 +400,182 @@ public class ConcurrentExecutor<T> {
 		void onStart(Throwable t);
 
 		void onShutdown(Throwable t);
+
+		/**
+		 * 例外をログ出力するだけのDisposerを返す
+		 * @param logger 出力先
+		 * @return Disposer
+		 */
+		static <T> Disposer<T> logging(Logger logger) {
+			return new Disposer<T>() {
+
+				@Override
+				public void onEvent(Throwable t, long sequence, T value) {
+					logger.error("exception occurred on [" + value + "]", t);
+				}
+
+				@Override
+				public void onStart(Throwable t) {
+					logger.error(t.getMessage(), t);
+				}
+
+				@Override
+				public void onShutdown(Throwable t) {
+					logger.error(t.getMessage(), t);
+				}
+			};
+		}
+	}
+
+	/**
+	 * 処理workerに先行して、I/O workerが処理対象を読み込む
+	 *
+	 * @param <T> 処理対象の型
+	 * @param <B> 読み込んだデータの型
+	 */
+	public interface Prefetcher<T, B> {
+
+		/**
+		 * I/O workerが実行<br>
+		 * 返した値が先読みの枠として確保されるので、読み込んだデータが実際に使用するメモリの大きさを返すこと
+		 * @param value 処理対象
+		 * @return 読み込むデータのバイト数
+		 */
+		long size(T value);
+
+		/**
+		 * I/O workerが実行<br>
+		 * 読み込むデータがmaxBytesに収まらない場合は例外とすること（先読みなしで処理される）
+		 * @param value 処理対象
+		 * @param maxBytes {@link #size(Object)}で確保した枠
+		 * @return 読み込んだデータ
+		 * @throws Exception
+		 */
+		B load(T value, long maxBytes) throws Exception;
+
+		/**
+		 * 処理workerが処理を終えた後に実行<br>
+		 * 読み込んだデータを再利用する場合はここで回収する
+		 * @param loaded 読み込んだデータ
+		 */
+		default void release(B loaded) {}
+	}
+
+	/**
+	 * 先読みしたデータの合計バイト数を制限する
+	 */
+	private static class PrefetchBudget {
+
+		private final long max;
+
+		private long used;
+
+		//次に枠を確保できるシーケンス
+		private long nextSequence;
+
+		private PrefetchBudget(long max) {
+			this.max = max;
+		}
+
+		private synchronized long acquire(long sequence, long size) throws InterruptedException {
+			//一件で上限を超える場合でも、他に保持しているものがなければ読み込めるように
+			while (sequence != nextSequence || (used > 0 && used + size > max)) {
+				wait();
+			}
+
+			used += size;
+			nextSequence++;
+			notifyAll();
+
+			return size;
+		}
+
+		private synchronized void release(long size) {
+			used -= size;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 一つのWorkerPoolと、そのworkerの開始、終了の待ち合わせ<br>
+	 * WorkerPoolは、workerのスレッドが動き出す前に停止させると停止の指示が取り消され、workerが動き続けてしまうので、
+	 * 停止はすべてのworkerが動き出すのを待ってから行う
+	 */
+	private class Workers {
+
+		private final WorkerPool<Event> pool;
+
+		private final CountDownLatch started;
+
+		private final CountDownLatch stopped;
+
+		private Workers(List<WorkHandler<Event>> handlers, Sequence[] dependents) {
+			started = new CountDownLatch(handlers.size());
+			stopped = new CountDownLatch(handlers.size());
+
+			@SuppressWarnings("unchecked")
+			WorkHandler<Event>[] handlerArray = handlers.stream().map(Worker::new).toArray(WorkHandler[]::new);
+
+			pool = new WorkerPool<Event>(ringBuffer, ringBuffer.newBarrier(dependents), exceptionHandler, handlerArray);
+
+			ringBuffer.addGatingSequences(pool.getWorkerSequences());
+		}
+
+		/**
+		 * 処理中のものがない状態で実行し、workerが終了するまで待つ
+		 */
+		private void halt() throws InterruptedException {
+			started.await();
+			pool.halt();
+			stopped.await();
+		}
+
+		private void drainAndHalt() {
+			if (started()) awaitUninterruptibly(started);
+			pool.drainAndHalt();
+		}
+
+		private class Worker implements WorkHandler<Event>, LifecycleAware {
+
+			private final WorkHandler<Event> handler;
+
+			private Worker(WorkHandler<Event> handler) {
+				this.handler = handler;
+			}
+
+			@Override
+			public void onEvent(Event event) throws Exception {
+				handler.onEvent(event);
+			}
+
+			@Override
+			public void onStart() {
+				started.countDown();
+			}
+
+			@Override
+			public void onShutdown() {
+				stopped.countDown();
+			}
+		}
+	}
+
+	private synchronized boolean started() {
+		return started;
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) Thread.currentThread().interrupt();
 	}
 
 	@SuppressWarnings("serial")
@@ -221,8 +592,17 @@ public class ConcurrentExecutor<T> {
 
 		private T value;
 
-		private void set(T value) {
+		private long sequence;
+
+		//先読みしたデータ
+		private Object loaded;
+
+		//先読みのために確保したバイト数
+		private long reserved;
+
+		private void set(T value, long sequence) {
 			this.value = value;
+			this.sequence = sequence;
 		}
 	}
 }
@@ -1,79 +1,300 @@
 package jp.ats.relay;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
+/**
+ * {@link Constants#CONFIG_PROPERTIES}の内容を、型変換済みで保持する<br>
+ * 設定ファイルの読み込み時に一度だけ生成され、変更されることはない<br>
+ * 設定ファイルが変更された場合は、{@link ConfigCache}により新しいインスタンスに差し替えられる
+ */
 class Config {
 
-	private final Properties properties;
+	//読み込み直した際に、存在しなければ書き込み途中とみなす項目
+	private static final List<String> REQUIRED_KEYS = Collections.unmodifiableList(
+		Arrays.asList(
+			"project-name",
+			"halt-file",
+			"assessment-dir",
+			"next-command-class",
+			"command-executor-class"));
 
-	public Config(Properties properties) {
-		this.properties = properties;
-	}
+	private final String nextCommandClass;
+
+	private final String projectName;
+
+	private final String mailSendCommand;
+
+	private final String errorMailFrom;
+
+	private final String commandExecutorClass;
+
+	private final boolean usesSystemErrorMail;
+
+	private final List<String> systemErrorMailAdresses;
+
+	private final Path haltFile;
+
+	private final Path assessmentDirectory;
+
+	private final int sharedWorkerCount;
+
+	private final int commandServerPort;
+
+	private final int coProcessPoolSize;
+
+	private final int maxChildProcesses;
+
+	private final int commandTimeoutSeconds;
+
+	private final int commandCacheSize;
+
+	private final int commandCacheTtlSeconds;
+
+	private final Path commandCacheDirectory;
+
+	private final String mailSenderClass;
+
+	private final String smtpHost;
+
+	private final int smtpPort;
+
+	private final int smtpConnections;
+
+	private final int smtpConnectTimeoutSeconds;
+
+	private final int smtpTimeoutSeconds;
+
+	private final int errorMailIntervalSeconds;
 
-	public Config() {
-		properties = Shell.config(Constants.CONFIG_PROPERTIES);
+	/**
+	 * @param properties 設定ファイルの内容
+	 * @param manager 設定ファイル内のパスの解決に使用する
+	 */
+	Config(Properties properties, ResourceManager manager) {
+		nextCommandClass = properties.getProperty("next-command-class");
+		projectName = properties.getProperty("project-name");
+		mailSendCommand = properties.getProperty("mail-send-command");
+		errorMailFrom = properties.getProperty("error-mail-from");
+		commandExecutorClass = properties.getProperty("command-executor-class");
+		usesSystemErrorMail = Boolean.parseBoolean(properties.getProperty("uses-system-error-mail"));
+		systemErrorMailAdresses = Collections.unmodifiableList(
+			Arrays.stream(properties.getProperty("system-error-mail-addresses", "").split("\\s*,\\s*"))
+				.filter(address -> !address.isEmpty())
+				.collect(Collectors.toList()));
+		haltFile = pathValue(properties, "halt-file", manager);
+		assessmentDirectory = pathValue(properties, "assessment-dir", manager);
+		sharedWorkerCount = intValue(properties, "shared-worker-count", Runtime.getRuntime().availableProcessors());
+		commandServerPort = intValue(properties, "command-server-port", 7291);
+		coProcessPoolSize = intValue(properties, "co-process-pool-size", Runtime.getRuntime().availableProcessors());
+		maxChildProcesses = intValue(properties, "max-child-processes", Runtime.getRuntime().availableProcessors() * 2);
+		commandTimeoutSeconds = intValue(properties, "command-timeout-seconds", 0);
+		commandCacheSize = intValue(properties, "command-cache-size", 1000);
+		commandCacheTtlSeconds = intValue(properties, "command-cache-ttl-seconds", 600);
+
+		//未指定の場合はファイルに保存しない
+		String cacheDirectory = properties.getProperty("command-cache-dir", "").trim();
+		commandCacheDirectory = cacheDirectory.isEmpty() ? null : manager.resolvePath(cacheDirectory);
+
+		mailSenderClass = properties.getProperty("mail-sender-class", SendmailMailSender.class.getName());
+		smtpHost = properties.getProperty("smtp-host", "localhost");
+		smtpPort = intValue(properties, "smtp-port", 25);
+		smtpConnections = intValue(properties, "smtp-connections", 4);
+		smtpConnectTimeoutSeconds = intValue(properties, "smtp-connect-timeout-seconds", 30);
+		smtpTimeoutSeconds = intValue(properties, "smtp-timeout-seconds", 60);
+		errorMailIntervalSeconds = intValue(properties, "error-mail-interval-seconds", 60);
 	}
 
 	/**
 	 * @return 次工程を起動する{@link NextCommand}の実装クラス
 	 */
 	String getNextCommandClass() {
-		return properties.getProperty("next-command-class");
+		return nextCommandClass;
 	}
 
 	/**
 	 * @return プロジェクト名
 	 */
 	String getProjectName() {
-		return properties.getProperty("project-name");
+		return projectName;
 	}
 
 	/**
 	 * @return メール送信用コマンド
 	 */
 	String getMailSendCommand() {
-		return properties.getProperty("mail-send-command");
+		return mailSendCommand;
 	}
 
 	/**
 	 * @return エラーメール返信者
 	 */
 	String getErrorMailFrom() {
-		return properties.getProperty("error-mail-from");
+		return errorMailFrom;
 	}
 
 	/**
 	 * @return {@link CommandExecutor}の実装クラス
 	 */
 	String getCommandExecutorClass() {
-		return properties.getProperty("command-executor-class");
+		return commandExecutorClass;
 	}
 
 	/**
 	 * @return システムエラー発生時の通知メールを使用するか
 	 */
-	String usesSystemErrorMail() {
-		return properties.getProperty("uses-system-error-mail");
+	boolean usesSystemErrorMail() {
+		return usesSystemErrorMail;
 	}
 
 	/**
-	 * @return システムエラー発生時の通知メールの宛先アドレス（スペース区切りで複数指定可能）
+	 * @return システムエラー発生時の通知メールの宛先アドレス
 	 */
-	String getSystemErrorMailAdresses() {
-		return properties.getProperty("system-error-mail-addresses");
+	List<String> getSystemErrorMailAdresses() {
+		return systemErrorMailAdresses;
 	}
 
 	/**
 	 * @return 緊急停止指示フラグファイル
 	 */
-	String getHaltFile() {
-		return properties.getProperty("halt-file");
+	Path getHaltFile() {
+		return haltFile;
 	}
 
 	/**
 	 * @return 実績評価用ファイル格納ディレクトリ
 	 */
-	String getAssessmentDirectory() {
-		return properties.getProperty("assessment-dir");
+	Path getAssessmentDirectory() {
+		return assessmentDirectory;
+	}
+
+	/**
+	 * @return {@link SharedWorkerRuntime}で、全処理が共有するworker数
+	 */
+	int getSharedWorkerCount() {
+		return sharedWorkerCount;
+	}
+
+	/**
+	 * @return {@link CommandServer}が待ち受けるループバックアドレスのポート番号
+	 */
+	int getCommandServerPort() {
+		return commandServerPort;
+	}
+
+	/**
+	 * @return {@link CoProcessPool}で、コマンドごとに起動する最大プロセス数
+	 */
+	int getCoProcessPoolSize() {
+		return coProcessPoolSize;
+	}
+
+	/**
+	 * {@link CoProcessPool}で常駐させる外部コマンドは含まない
+	 * @return {@link CommandExecutorImpl}で、プロセス全体で同時に実行する外部コマンドの最大数
+	 */
+	int getMaxChildProcesses() {
+		return maxChildProcesses;
+	}
+
+	/**
+	 * @return {@link CommandExecutorImpl}で、外部コマンドを停止させるまでの秒数（0の場合はタイムアウトしない）
+	 */
+	int getCommandTimeoutSeconds() {
+		return commandTimeoutSeconds;
+	}
+
+	/**
+	 * @return {@link CommandResultCache}で、メモリ上に保持する最大件数
+	 */
+	int getCommandCacheSize() {
+		return commandCacheSize;
+	}
+
+	/**
+	 * @return {@link CommandResultCache}で、結果の有効期間の秒数（0の場合は期限なし）
+	 */
+	int getCommandCacheTtlSeconds() {
+		return commandCacheTtlSeconds;
+	}
+
+	/**
+	 * @return {@link CommandResultCache}で、結果を保存するディレクトリ（未指定の場合は null）
+	 */
+	Path getCommandCacheDirectory() {
+		return commandCacheDirectory;
+	}
+
+	/**
+	 * @return メールを送信する{@link MailSender}の実装クラス
+	 */
+	String getMailSenderClass() {
+		return mailSenderClass;
+	}
+
+	/**
+	 * @return {@link SmtpMailSender}の接続先SMTPサーバー
+	 */
+	String getSmtpHost() {
+		return smtpHost;
+	}
+
+	/**
+	 * @return {@link SmtpMailSender}の接続先SMTPサーバーのポート番号
+	 */
+	int getSmtpPort() {
+		return smtpPort;
+	}
+
+	/**
+	 * @return {@link SmtpMailSender}で、同時に使用する接続数
+	 */
+	int getSmtpConnections() {
+		return smtpConnections;
+	}
+
+	/**
+	 * @return {@link SmtpMailSender}で、SMTPサーバーへの接続を待つ秒数 0の場合は待ち続ける
+	 */
+	int getSmtpConnectTimeoutSeconds() {
+		return smtpConnectTimeoutSeconds;
+	}
+
+	/**
+	 * @return {@link SmtpMailSender}で、SMTPサーバーとの読み書きを待つ秒数 0の場合は待ち続ける
+	 */
+	int getSmtpTimeoutSeconds() {
+		return smtpTimeoutSeconds;
+	}
+
+	/**
+	 * @return {@link ErrorNotifier}で、システムエラーの通知メールを送信する最短の間隔の秒数
+	 */
+	int getErrorMailIntervalSeconds() {
+		return errorMailIntervalSeconds;
+	}
+
+	/**
+	 * 設定ファイルの内容が、読み込み直した際に差し替えられるものであるか検証する
+	 * @param properties 設定ファイルの内容
+	 * @throws IllegalArgumentException 必須項目が存在しない場合
+	 */
+	static void validate(Properties properties) {
+		List<String> missing = REQUIRED_KEYS.stream().filter(key -> !properties.containsKey(key)).collect(Collectors.toList());
+		if (!missing.isEmpty()) throw new IllegalArgumentException("missing keys: " + missing);
+	}
+
+	private static Path pathValue(Properties properties, String key, ResourceManager manager) {
+		String value = properties.getProperty(key);
+		return value == null ? null : manager.resolvePath(value);
+	}
+
+	private static int intValue(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key, "").trim();
+		return value.isEmpty() ? defaultValue : Integer.parseInt(value);
 	}
 }
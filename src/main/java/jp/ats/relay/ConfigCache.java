@@ -0,0 +1,250 @@
+package jp.ats.relay;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 設定ファイルの内容を、プロセス内の全スレッドで共有する<br>
+ * 設定ファイルは一度だけ読み込まれ、変更不可の{@link Properties}として保持される<br>
+ * 読み込んだ設定ファイルは監視され、変更されると読み込み直して丸ごと差し替えられる<br>
+ * 書き込み途中の内容を読み込まないよう、変更が一定時間止んでから読み込み直し、
+ * {@link Constants#CONFIG_PROPERTIES}は必須項目が揃っていて{@link Config}を生成できる場合のみ差し替える<br>
+ * 差し替え前に取得したものの内容は変わらないので、一連の処理で一貫した設定を使用する場合は、取得したものを使い続けること
+ */
+class ConfigCache {
+
+	//最後の変更からこの時間変更がなければ、書き込みが完了したとみなす
+	private static final long QUIET_MILLIS = 500;
+
+	private static final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+	private static final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+
+	private static final Object lock = new Object();
+
+	private static volatile WatchService watcher;
+
+	private ConfigCache() {}
+
+	/**
+	 * @param manager 設定ファイルの読み込みに使用する
+	 * @param resourceName 設定ファイル
+	 * @return 変更不可の設定ファイルの内容
+	 */
+	static Properties properties(ResourceManager manager, String resourceName) {
+		return entry(manager, resourceName).properties;
+	}
+
+	/**
+	 * @param manager 設定ファイルの読み込みに使用する
+	 * @return {@link Constants#CONFIG_PROPERTIES}の内容
+	 */
+	static Config config(ResourceManager manager) {
+		Entry entry = entry(manager, Constants.CONFIG_PROPERTIES);
+
+		//複数スレッドで同時に生成されても、内容は同じになる
+		Config config = entry.config;
+		if (config == null) {
+			config = new Config(entry.properties, manager);
+			entry.config = config;
+		}
+
+		return config;
+	}
+
+	private static Entry entry(ResourceManager manager, String resourceName) {
+		Path path = manager.resolvePath(resourceName).toAbsolutePath().normalize();
+
+		Entry entry = entries.get(path);
+		if (entry != null) return entry;
+
+		entry = entries.computeIfAbsent(path, p -> new Entry(manager, resourceName));
+
+		watch(path);
+
+		return entry;
+	}
+
+	private static Properties load(ResourceManager manager, String resourceName) {
+		try (InputStream input = manager.load(resourceName)) {
+			Properties properties = new Properties();
+			properties.load(new InputStreamReader(input, StandardCharsets.UTF_8));
+			return new Snapshot(properties);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void watch(Path path) {
+		//ファイルシステム上にない設定は監視しない
+		if (!Files.isRegularFile(path)) return;
+
+		Path directory = path.getParent();
+		if (!watchedDirectories.add(directory)) return;
+
+		try {
+			directory.register(watcher(), ENTRY_CREATE, ENTRY_MODIFY);
+		} catch (IOException e) {
+			watchedDirectories.remove(directory);
+			Shell.SHELL_LOGGER.warn("failed to watch [" + directory + "]", e);
+		}
+	}
+
+	private static WatchService watcher() throws IOException {
+		if (watcher != null) return watcher;
+
+		synchronized (lock) {
+			if (watcher != null) return watcher;
+
+			WatchService service = FileSystems.getDefault().newWatchService();
+
+			Thread thread = new Thread(() -> reloadOnChange(service), "config-watcher");
+			thread.setDaemon(true);
+			thread.start();
+
+			watcher = service;
+		}
+
+		return watcher;
+	}
+
+	private static void reloadOnChange(WatchService service) {
+		//変更されたファイルと、最後に変更を検知した時刻
+		Map<Path, Long> changed = new HashMap<>();
+		while (true) {
+			WatchKey key;
+			try {
+				key = changed.isEmpty() ? service.take() : service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.nanoTime();
+
+			if (key != null) {
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						//取りこぼした可能性があるので、ディレクトリ内すべてを読み込み直す
+						entries.keySet().stream().filter(path -> directory.equals(path.getParent())).forEach(path -> changed.put(path, now));
+						continue;
+					}
+
+					Path path = directory.resolve((Path) event.context());
+
+					//読み込まれていない設定ファイル
+					if (entries.containsKey(path)) changed.put(path, now);
+				}
+
+				key.reset();
+			}
+
+			//書き込みが続いている間は読み込まない
+			Iterator<Map.Entry<Path, Long>> iterator = changed.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Path, Long> entry = iterator.next();
+				if (now - entry.getValue() < TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS)) continue;
+
+				iterator.remove();
+				reload(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * 設定ファイルを読み込み直し、内容に問題がなければ差し替える
+	 * @param path 設定ファイル
+	 * @return 差し替えた場合true
+	 */
+	static boolean reload(Path path) {
+		Entry entry = entries.get(path);
+
+		//読み込まれていない設定ファイル
+		if (entry == null) return false;
+
+		try {
+			Entry reloaded = new Entry(entry.manager, entry.resourceName);
+
+			if (entry.resourceName.equals(Constants.CONFIG_PROPERTIES)) {
+				//差し替えた後で各workerが不完全な設定を参照しないよう、先に検証しておく
+				Config.validate(reloaded.properties);
+				reloaded.config = new Config(reloaded.properties, entry.manager);
+			}
+
+			entries.put(path, reloaded);
+
+			return true;
+		} catch (Exception e) {
+			//書き込み途中等で読み込めなかった場合は、変更前の内容を使い続ける
+			Shell.SHELL_LOGGER.warn("failed to reload [" + path + "]", e);
+			return false;
+		}
+	}
+
+	private static class Entry {
+
+		private final ResourceManager manager;
+
+		private final String resourceName;
+
+		private final Properties properties;
+
+		private volatile Config config;
+
+		private Entry(ResourceManager manager, String resourceName) {
+			this.manager = manager;
+			this.resourceName = resourceName;
+			properties = load(manager, resourceName);
+		}
+	}
+
+	/**
+	 * 変更不可のProperties
+	 */
+	@SuppressWarnings("serial")
+	private static class Snapshot extends Properties {
+
+		private Snapshot(Properties properties) {
+			properties.forEach(super::put);
+		}
+
+		@Override
+		public synchronized Object put(Object key, Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized Object remove(Object key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void putAll(Map<? extends Object, ? extends Object> t) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void clear() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -8,4 +8,11 @@ public interface Constants {
 	String CONFIG_PROPERTIES = "conf/relay.properties";
 
 	String DATABASE_PROPERTIES = "conf/database.properties";
+
+	String PIPELINE_PROPERTIES = "conf/pipeline.properties";
+
+	String COMMAND_SERVER_PROPERTIES = "conf/command-server.properties";
+
+	//起動予約により起動された次工程に、起動予約の識別子を渡す環境変数
+	String LAUNCH_CLAIM_VARIABLE = "RELAY_LAUNCH_CLAIM";
 }
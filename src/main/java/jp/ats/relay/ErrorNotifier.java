@@ -0,0 +1,274 @@
+package jp.ats.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * システムエラーの通知メールを、バックグラウンドのスレッドで送信する<br>
+ * 通知は根本原因の例外の型と発生箇所でまとめられ、送信間隔は{@link Config#getErrorMailIntervalSeconds()}以上空けられる<br>
+ * 前回の送信から間隔が空いていれば最初の通知はすぐに送信し、間隔内に発生したものは件数付きの一通にまとめて送信する<br>
+ * 通知する側は、メールの作成、送信を待たない<br>
+ * 送信待ちが上限を超えた場合、超えた分は件数のみ通知する<br>
+ * 設定ファイルごとに送信スレッドを持ち、それぞれの設定で送信する<br>
+ * プロセスの終了時には、送信間隔にかかわらず送信待ちのものをすべて送信する
+ * @see Shell#onShutdown(Runnable)
+ */
+class ErrorNotifier {
+
+	//送信待ちの上限
+	private static final int QUEUE_CAPACITY = 10000;
+
+	//一通に含めるスタックトレースの最大数
+	private static final int MAX_DETAILED_GROUPS = 10;
+
+	//終了時に送信を待つ最大時間
+	private static final long FLUSH_TIMEOUT_SECONDS = 60;
+
+	private static final Object lock = new Object();
+
+	//設定ファイルごと
+	private static final Map<Path, ErrorNotifier> instances = new ConcurrentHashMap<>();
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	//以下、送信スレッドしか使用しないこと
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+
+	private long lastSentMillis = 0;
+
+	ErrorNotifier() {}
+
+	/**
+	 * システムエラーの通知を送信待ちにする<br>
+	 * 送信スレッドは、設定ファイルごとに最初に呼び出したスレッドの起動パラメータ、設定を引き継ぐ
+	 * @param throwable 通知する例外
+	 */
+	static void notify(Throwable throwable) {
+		ErrorNotifier notifier = getInstance();
+
+		//Shell外から使用された場合は、ログ出力のみとなる
+		if (notifier == null) return;
+
+		if (!notifier.queue.offer(new Request(throwable, null))) notifier.dropped.incrementAndGet();
+	}
+
+	/**
+	 * すべての設定ファイルの送信待ちのものを、送信間隔にかかわらず送信し、送信し終わるまで待つ<br>
+	 * プロセスの終了時に、{@link Shell}から呼び出される
+	 */
+	static void flush() {
+		//送信スレッドごとに並行して送信させる
+		List<CountDownLatch> requested = new ArrayList<>();
+		try {
+			for (ErrorNotifier notifier : instances.values()) {
+				CountDownLatch flushed = new CountDownLatch(1);
+				if (notifier.queue.offer(new Request(null, flushed), FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+					requested.add(flushed);
+			}
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FLUSH_TIMEOUT_SECONDS);
+			for (CountDownLatch flushed : requested) {
+				flushed.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return 呼び出したスレッドの設定ファイルのインスタンス Shell外から使用された場合は null
+	 */
+	static ErrorNotifier getInstance() {
+		ResourceManager manager = Shell.resourceManager();
+		if (manager == null) return null;
+
+		//ResourceManagerは起動ごとに生成されるので、設定ファイルで区別する
+		Path config = manager.resolvePath(Constants.CONFIG_PROPERTIES).toAbsolutePath().normalize();
+
+		ErrorNotifier notifier = instances.get(config);
+		if (notifier != null) return notifier;
+
+		synchronized (lock) {
+			notifier = instances.get(config);
+			if (notifier != null) return notifier;
+
+			notifier = new ErrorNotifier();
+
+			//送信待ちのものを、プロセスの終了時に送信する
+			Shell.addShutdownHook();
+
+			//送信スレッドで設定、MailSenderを使用できるように
+			Thread thread = Shell.threadFactory(new NoDatabaseClient(), "error-notifier-").newThread(notifier::dispatch);
+			thread.setDaemon(true);
+			thread.start();
+
+			instances.put(config, notifier);
+		}
+
+		return notifier;
+	}
+
+	//送信スレッドが実行
+	private void dispatch() {
+		while (true) {
+			try {
+				Request request;
+				if (groups.isEmpty()) {
+					request = queue.take();
+				} else {
+					long wait = lastSentMillis + intervalMillis() - System.currentTimeMillis();
+					request = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+				}
+
+				if (request != null) {
+					if (request.flushed != null) {
+						send();
+						request.flushed.countDown();
+						continue;
+					}
+
+					add(request.throwable);
+				}
+
+				if (System.currentTimeMillis() - lastSentMillis >= intervalMillis()) send();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable t) {
+				//送信に失敗しても、以降の通知は続ける
+				Shell.SHELL_LOGGER.error(t.getMessage(), t);
+			}
+		}
+	}
+
+	//送信スレッドが実行
+	void add(Throwable throwable) {
+		String signature = signature(throwable);
+		Group group = groups.get(signature);
+		if (group == null) {
+			group = new Group(throwable);
+			groups.put(signature, group);
+		}
+
+		group.count++;
+		group.lastMillis = System.currentTimeMillis();
+	}
+
+	private void send() {
+		long droppedCount = dropped.getAndSet(0);
+		if (groups.isEmpty() && droppedCount == 0) return;
+
+		try {
+			Config config = Shell.config();
+			if (!config.usesSystemErrorMail()) return;
+
+			if (groups.size() == 1 && droppedCount == 0 && groups.values().iterator().next().count == 1) {
+				//一件のみの場合は、これまでと同じ形式で送信する
+				Shell.sendSystemErrorMail(groups.values().iterator().next().throwable);
+			} else {
+				Shell.sendSystemErrorMail(
+					"[" + config.getProjectName() + "] システムエラー通知（まとめ）",
+					buildDigest(droppedCount));
+			}
+		} finally {
+			groups.clear();
+			lastSentMillis = System.currentTimeMillis();
+		}
+	}
+
+	//送信スレッドが実行
+	String buildDigest(long droppedCount) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		String charset = "UTF-8";
+		try {
+			PrintStream printStream = new PrintStream(stream, true, charset);
+
+			printStream.println("これは、システムの例外発生時に自動で送信されるメールです。");
+			printStream.println("このメールに対して返信をしないでください。");
+			printStream.println();
+
+			int total = groups.values().stream().mapToInt(group -> group.count).sum();
+			printStream.println("前回の通知以降に発生したエラー: " + total + "件（" + groups.size() + "種類）");
+			if (droppedCount > 0) printStream.println("通知が多すぎるため、内容を記録できなかったエラー: " + droppedCount + "件");
+			printStream.println();
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+			int index = 0;
+			for (Group group : groups.values()) {
+				index++;
+
+				printStream.println("[" + index + "] " + group.count + "件 "
+					+ format.format(new Date(group.firstMillis)) + " - " + format.format(new Date(group.lastMillis)));
+				printStream.println("Root Cause: " + Shell.strip(group.throwable));
+
+				if (index <= MAX_DETAILED_GROUPS) {
+					printStream.println("Original (最初の一件):");
+					group.throwable.printStackTrace(printStream);
+				}
+
+				printStream.println();
+			}
+
+			return new String(stream.toByteArray(), charset);
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static long intervalMillis() {
+		return TimeUnit.SECONDS.toMillis(Shell.config().getErrorMailIntervalSeconds());
+	}
+
+	/**
+	 * メッセージには処理対象ごとに異なる値が含まれることが多いので、根本原因の型と発生箇所でまとめる
+	 */
+	private static String signature(Throwable throwable) {
+		Throwable root = Shell.strip(throwable);
+		StackTraceElement[] trace = root.getStackTrace();
+		return root.getClass().getName() + (trace.length > 0 ? "@" + trace[0] : "");
+	}
+
+	private static class Request {
+
+		private final Throwable throwable;
+
+		private final CountDownLatch flushed;
+
+		private Request(Throwable throwable, CountDownLatch flushed) {
+			this.throwable = throwable;
+			this.flushed = flushed;
+		}
+	}
+
+	private static class Group {
+
+		//最初に発生したもの
+		private final Throwable throwable;
+
+		private final long firstMillis = System.currentTimeMillis();
+
+		private long lastMillis;
+
+		private int count;
+
+		private Group(Throwable throwable) {
+			this.throwable = throwable;
+		}
+	}
+}
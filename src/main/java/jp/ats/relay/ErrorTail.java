@@ -0,0 +1,50 @@
+package jp.ats.relay;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 外部コマンドの標準エラー出力のうち、末尾の一定量のみを保持する<br>
+ * エラー報告用なので、大量に出力された場合も古いものから捨てる
+ */
+class ErrorTail {
+
+	//保持する最大行数
+	private static final int MAX_LINES = 100;
+
+	//保持する最大文字数
+	private static final int MAX_CHARS = 64 * 1024;
+
+	private static final String lineSeparator = System.getProperty("line.separator");
+
+	private final Deque<String> lines = new ArrayDeque<>();
+
+	private int chars = 0;
+
+	private long total = 0;
+
+	synchronized void add(String line) {
+		total++;
+
+		if (line.length() > MAX_CHARS) line = line.substring(line.length() - MAX_CHARS);
+
+		lines.addLast(line);
+		chars += line.length();
+
+		while (lines.size() > MAX_LINES || chars > MAX_CHARS) {
+			chars -= lines.removeFirst().length();
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return total == 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		String tail = String.join(lineSeparator, lines);
+
+		long omitted = total - lines.size();
+		return omitted > 0 ? "(" + omitted + " lines omitted)" + lineSeparator + tail : tail;
+	}
+}
@@ -0,0 +1,62 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import jp.ats.relay.ConcurrentExecutor.Prefetcher;
+
+/**
+ * 処理対象ファイルの内容をバッファに読み込む<br>
+ * バッファは{@link BufferPool}から取得し、使用済みのものは返却して再利用する
+ */
+class FilePrefetcher implements Prefetcher<Path, ByteBuffer> {
+
+	private final BufferPool pool = BufferPool.getInstance();
+
+	@Override
+	public long size(Path path) {
+		long size;
+		try {
+			size = Files.size(path);
+		} catch (IOException e) {
+			//他workerに処理された等で存在しない場合は、読み込み時にエラーとなる
+			return 0;
+		}
+
+		//プールから取得するバッファの大きさで見積もる
+		return size > Integer.MAX_VALUE ? size : BufferPool.capacity((int) size);
+	}
+
+	@Override
+	public ByteBuffer load(Path path, long maxBytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("too large to prefetch: " + path);
+
+			//サイズの取得後に大きくなった場合は、確保した枠を超えないよう先読みしない
+			if (BufferPool.capacity((int) size) > maxBytes) throw new IOException("grown after sizing: " + path);
+
+			ByteBuffer buffer = pool.acquire((int) size);
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) break;
+				}
+			} catch (IOException e) {
+				pool.release(buffer);
+				throw e;
+			}
+
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+}
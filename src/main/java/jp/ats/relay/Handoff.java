@@ -0,0 +1,128 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 一件の処理が確定した後に行う、ファイルの引き渡し処理<br>
+ * 引き渡し処理はすべてリネームで構成され、移動元が存在せず移動先が存在する場合は完了済みとみなすので、何度実行しても結果は同じになる
+ */
+class Handoff {
+
+	private final String id;
+
+	private final String owner;
+
+	private final List<Rename> renames;
+
+	/**
+	 * @param id 引き渡しID
+	 * @param owner 引き渡す処理を表す名前 別ファイルシステムへの移動で使用する一時ファイル名に含まれる
+	 * @param renames リネーム
+	 */
+	Handoff(String id, String owner, List<Rename> renames) {
+		this.id = id;
+		this.owner = owner;
+		this.renames = Collections.unmodifiableList(new LinkedList<>(renames));
+	}
+
+	String id() {
+		return id;
+	}
+
+	List<Rename> renames() {
+		return renames;
+	}
+
+	/**
+	 * 引き渡し処理を実行する
+	 * @throws IOException
+	 */
+	void complete() throws IOException {
+		for (Rename rename : renames) {
+			rename.execute(owner, false);
+		}
+	}
+
+	/**
+	 * 前回完了しなかった引き渡し処理を再実行する<br>
+	 * 前回の実行で移動済みのファイルは、次処理、削除スレッドにより既に処理され、移動先にも存在しない場合がある<br>
+	 * そのため、移動先のディレクトリが存在すれば、移動元がないものは完了済みとみなす
+	 * @throws IOException
+	 */
+	void resume() throws IOException {
+		for (Rename rename : renames) {
+			rename.execute(owner, true);
+		}
+	}
+
+	/**
+	 * 一つのリネーム
+	 */
+	static class Rename {
+
+		private final Path source;
+
+		private final Path target;
+
+		Rename(Path source, Path target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		Path source() {
+			return source;
+		}
+
+		Path target() {
+			return target;
+		}
+
+		private void execute(String owner, boolean resuming) throws IOException {
+			try {
+				try {
+					Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					copy(owner);
+				}
+			} catch (NoSuchFileException e) {
+				//既に完了している
+				if (Files.notExists(source) && Files.exists(target)) return;
+
+				//移動先で既に処理されている
+				if (resuming && Files.notExists(source) && Files.isDirectory(target.getParent())) return;
+
+				//移動先のディレクトリがない等、引き渡せていないものを完了扱いにすると、処理対象だけが削除されてしまう
+				throw e;
+			}
+		}
+
+		/**
+		 * 別ファイルシステムへの移動はコピーとなるので、次処理がコピー途中のファイルを処理しないよう、
+		 * 移動先と同じディレクトリ内の見えない一時ファイルにコピーし、リネームで公開する<br>
+		 * 途中で停止した場合、一時ファイルは再実行時に上書きされるか、{@link StagedOutput#sweep(Path, String)}で削除される
+		 */
+		private void copy(String owner) throws IOException {
+			Path temporary = StagedOutput.temporaryOf(target, owner);
+
+			Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING);
+
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				channel.force(false);
+			}
+
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+
+			Files.deleteIfExists(source);
+		}
+	}
+}
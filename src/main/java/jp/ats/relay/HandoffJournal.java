@@ -0,0 +1,344 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import jp.ats.relay.Handoff.Rename;
+
+/**
+ * {@link Handoff}の実行状況を記録する追記型のジャーナル<br>
+ * 一件ごとに、commit前に引き渡し内容（INTENT）、commit後に確定（COMMITTED）、引き渡し完了後に完了（DONE）を記録する<br>
+ * 確定後、完了前に停止した場合、次回起動時に引き渡し処理を再実行することで、処理対象の再処理を防ぐ<br>
+ * 完了していない引き渡し処理はメモリ上にも保持し、{@link #compact()}でそれらのみを残してジャーナルを書き直す
+ */
+class HandoffJournal {
+
+	/**
+	 * ジャーナルファイル名
+	 */
+	static final String FILE_NAME = StagedOutput.HIDDEN_PREFIX + "journal";
+
+	//書き直し用の一時ファイル名
+	private static final String TEMPORARY_FILE_NAME = FILE_NAME + ".tmp";
+
+	private static final String INTENT = "I";
+
+	private static final String COMMITTED = "C";
+
+	private static final String ROLLED_BACK = "R";
+
+	private static final String DONE = "D";
+
+	private static final String SEPARATOR = "\t";
+
+	private static final String LINE_SEPARATOR = "\n";
+
+	private final Path file;
+
+	private final String owner;
+
+	private final Object syncLock = new Object();
+
+	//完了していない引き渡し処理 記録順
+	private final Map<String, Entry> pending = new LinkedHashMap<>();
+
+	private FileChannel channel;
+
+	//ディスクへの書き込みが保証されている位置
+	private long synced;
+
+	/**
+	 * @param queueDirectory 対象のキューディレクトリ
+	 * @param owner 引き渡す処理を表す名前 {@link StagedOutput#ownerOf(Path)}
+	 */
+	HandoffJournal(Path queueDirectory, String owner) {
+		file = queueDirectory.resolve(FILE_NAME);
+		this.owner = owner;
+	}
+
+	/**
+	 * @param path 判定するファイル
+	 * @return ジャーナルファイル、またはその書き直し用の一時ファイルの場合true
+	 */
+	static boolean isJournalFile(Path path) {
+		String name = path.getFileName().toString();
+		return name.equals(FILE_NAME) || name.equals(TEMPORARY_FILE_NAME);
+	}
+
+	/**
+	 * 前回完了しなかった引き渡し処理を再実行し、ジャーナルを空にする<br>
+	 * 再実行しないもの（ロールバックされたもの、commitされなかったもの）の次処理への出力は破棄する<br>
+	 * workerが動いていない状態で実行すること
+	 * @param committed 確定の記録がない引き渡し処理について、commit済みかを判定する
+	 * @return 再実行した件数
+	 * @throws IOException
+	 */
+	synchronized int recover(Predicate<String> committed) throws IOException {
+		close();
+
+		pending.clear();
+
+		int recovered = 0;
+		if (Files.exists(file)) {
+			for (Entry entry : read().values()) {
+				if (entry.done) continue;
+
+				if (entry.committed || (!entry.rolledBack && committed.test(entry.handoff.id()))) {
+					entry.handoff.resume();
+					recovered++;
+				} else {
+					discard(entry.handoff);
+				}
+			}
+		}
+
+		channel = FileChannel.open(
+			file,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		channel.force(true);
+		synced = 0;
+
+		return recovered;
+	}
+
+	/**
+	 * commit前に、これから行う引き渡し処理を記録する
+	 * @param handoff 引き渡し処理
+	 * @throws IOException
+	 */
+	void intent(Handoff handoff) throws IOException {
+		long position;
+		synchronized (this) {
+			position = append(intentRecord(handoff));
+			pending.put(handoff.id(), new Entry(handoff));
+		}
+
+		sync(position);
+	}
+
+	/**
+	 * commit後に、引き渡し処理の確定を記録する
+	 * @param handoff 引き渡し処理
+	 * @throws IOException
+	 */
+	void committed(Handoff handoff) throws IOException {
+		long position;
+		synchronized (this) {
+			position = append(COMMITTED + SEPARATOR + handoff.id());
+
+			Entry entry = pending.get(handoff.id());
+			if (entry != null) entry.committed = true;
+		}
+
+		sync(position);
+	}
+
+	/**
+	 * ロールバックされた引き渡し処理を記録する
+	 * @param handoff 引き渡し処理
+	 * @throws IOException
+	 */
+	synchronized void rolledBack(Handoff handoff) throws IOException {
+		//次処理への出力は呼び出し側で破棄されるので、以降は記録不要
+		pending.remove(handoff.id());
+
+		//記録されなくても、次回起動時にcommit済みでないと判定されるだけなので同期しない
+		append(ROLLED_BACK + SEPARATOR + handoff.id());
+	}
+
+	/**
+	 * 引き渡し処理の完了を記録する
+	 * @param handoff 引き渡し処理
+	 * @throws IOException
+	 */
+	synchronized void done(Handoff handoff) throws IOException {
+		pending.remove(handoff.id());
+
+		//記録されなくても、次回起動時に再実行されるだけなので同期しない
+		append(DONE + SEPARATOR + handoff.id());
+	}
+
+	/**
+	 * 完了していない引き渡し処理のみを残して、ジャーナルを書き直す<br>
+	 * すべての引き渡し処理が完了している場合は空にする<br>
+	 * 引き渡し処理の実行に失敗したもの等、完了していないものは、次回の{@link #recover(Predicate)}で再実行される<br>
+	 * workerが動いていない状態で実行すること
+	 * @return 残した件数
+	 * @throws IOException
+	 */
+	int compact() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (channel == null) return 0;
+
+				if (pending.isEmpty()) {
+					channel.truncate(0);
+					channel.force(true);
+					synced = 0;
+					return 0;
+				}
+
+				//書き直しの途中で停止しても元の内容が残るよう、一時ファイルに書き込んでから置き換える
+				Path temporary = file.resolveSibling(TEMPORARY_FILE_NAME);
+				try (FileChannel out = FileChannel.open(
+					temporary,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+					for (Entry entry : pending.values()) {
+						write(out, intentRecord(entry.handoff));
+						if (entry.committed) write(out, COMMITTED + SEPARATOR + entry.handoff.id());
+					}
+
+					out.force(true);
+				}
+
+				channel.close();
+				channel = null;
+
+				Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+				channel = FileChannel.open(file, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+				synced = channel.position();
+
+				return pending.size();
+			}
+		}
+	}
+
+	/**
+	 * @return 現在のジャーナルの大きさ
+	 * @throws IOException
+	 */
+	synchronized long size() throws IOException {
+		return channel == null ? 0 : channel.position();
+	}
+
+	synchronized void close() throws IOException {
+		if (channel == null) return;
+
+		channel.close();
+		channel = null;
+	}
+
+	/**
+	 * @return 書き込み後の位置
+	 */
+	private synchronized long append(String record) throws IOException {
+		write(channel, record);
+		return channel.position();
+	}
+
+	private static void write(FileChannel channel, String record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap((record + LINE_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static String intentRecord(Handoff handoff) {
+		StringBuilder builder = new StringBuilder(INTENT).append(SEPARATOR).append(handoff.id());
+		handoff.renames().forEach(rename -> {
+			builder.append(SEPARATOR).append(rename.source()).append(SEPARATOR).append(rename.target());
+		});
+
+		return builder.toString();
+	}
+
+	/**
+	 * 再実行しない引き渡し処理の、次処理への出力（見えない一時ファイル）を破棄する<br>
+	 * 処理対象等、それ以外の移動元は再処理のためにそのまま残す
+	 */
+	private static void discard(Handoff handoff) throws IOException {
+		for (Rename rename : handoff.renames()) {
+			if (StagedOutput.isTemporary(rename.source())) Files.deleteIfExists(rename.source());
+		}
+	}
+
+	/**
+	 * 指定位置までの書き込みを保証する<br>
+	 * 複数のworkerが同時に待つ場合は、一度の同期でまとめて保証される
+	 */
+	private void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			//他workerの同期で保証済み
+			if (synced >= position) return;
+
+			long current;
+			synchronized (this) {
+				current = channel.position();
+			}
+
+			channel.force(false);
+			synced = current;
+		}
+	}
+
+	private Map<String, Entry> read() throws IOException {
+		String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+
+		//最後の行が途中までしか書かれていない場合は無視する
+		int end = content.lastIndexOf(LINE_SEPARATOR);
+		if (end < 0) return new LinkedHashMap<>();
+
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		for (String line : content.substring(0, end).split(LINE_SEPARATOR)) {
+			String[] columns = line.split(SEPARATOR);
+			if (columns.length < 2) continue;
+
+			String id = columns[1];
+			switch (columns[0]) {
+			case INTENT:
+				List<Rename> renames = new LinkedList<>();
+				for (int i = 2; i + 1 < columns.length; i += 2) {
+					renames.add(new Rename(Paths.get(columns[i]), Paths.get(columns[i + 1])));
+				}
+
+				entries.put(id, new Entry(new Handoff(id, owner, renames)));
+				break;
+			case COMMITTED:
+				if (entries.containsKey(id)) entries.get(id).committed = true;
+				break;
+			case ROLLED_BACK:
+				if (entries.containsKey(id)) entries.get(id).rolledBack = true;
+				break;
+			case DONE:
+				if (entries.containsKey(id)) entries.get(id).done = true;
+				break;
+			default:
+			}
+		}
+
+		return entries;
+	}
+
+	private static class Entry {
+
+		private final Handoff handoff;
+
+		private boolean committed;
+
+		private boolean rolledBack;
+
+		private boolean done;
+
+		private Entry(Handoff handoff) {
+			this.handoff = handoff;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package jp.ats.relay;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * クラス名から、インスタンスを生成するSupplierを生成し、プロセス内で保持する<br>
+ * クラスの検索とコンストラクタの取得はクラスごとに一度だけ行われる<br>
+ * {@link ThreadSafe}が付与されたクラスは、インスタンスも一度だけ生成され共有される
+ */
+class InstanceFactories {
+
+	private static final Map<String, Supplier<?>> factories = new ConcurrentHashMap<>();
+
+	private InstanceFactories() {}
+
+	/**
+	 * @param className クラス名
+	 * @return インスタンスを生成するSupplier
+	 * @throws IllegalStateException クラスが存在しない、publicな引数なしのコンストラクタがない場合
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Supplier<T> factory(String className) {
+		Supplier<?> factory = factories.get(className);
+		if (factory == null) {
+			//クラスの初期化やコンストラクタで他のクラスのインスタンスが要求される場合があるので、mapの更新処理内では生成しない
+			Supplier<?> created = createFactory(className);
+			factory = factories.putIfAbsent(className, created);
+			if (factory == null) factory = created;
+		}
+
+		return (Supplier<T>) factory;
+	}
+
+	/**
+	 * 設定されたクラスが使用可能かを確認する<br>
+	 * 処理の途中ではなく、起動時にエラーとするために使用する
+	 * @param className クラス名
+	 * @param type 実装すべき型
+	 * @throws IllegalStateException 使用できない場合
+	 */
+	static void validate(String className, Class<?> type) {
+		if (className == null) throw new IllegalStateException(type.getSimpleName() + " class is not configured.");
+
+		Class<?> clazz = forName(className);
+		if (!type.isAssignableFrom(clazz))
+			throw new IllegalStateException("[" + className + "] is not " + type.getName());
+
+		//ThreadSafeのものは、コンストラクタの失敗も起動時に検出する
+		Supplier<?> factory = factory(className);
+		if (factory instanceof Singleton) factory.get();
+	}
+
+	private static Supplier<?> createFactory(String className) {
+		Class<?> clazz = forName(className);
+
+		MethodHandle constructor;
+		try {
+			constructor = MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+
+		Supplier<?> factory = () -> {
+			try {
+				return constructor.invoke();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		};
+
+		if (!clazz.isAnnotationPresent(ThreadSafe.class)) return factory;
+
+		return new Singleton(factory);
+	}
+
+	private static Class<?> forName(String className) {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 最初に要求された時に一度だけ生成する<br>
+	 * 生成中に他のスレッドから要求された場合は、生成が終わるまで待たせる
+	 */
+	private static class Singleton implements Supplier<Object> {
+
+		private final Supplier<?> factory;
+
+		private volatile Object instance;
+
+		private Singleton(Supplier<?> factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Object get() {
+			Object instance = this.instance;
+			if (instance != null) return instance;
+
+			synchronized (this) {
+				if (this.instance == null) this.instance = factory.get();
+				return this.instance;
+			}
+		}
+	}
+}
@@ -2,9 +2,16 @@ package jp.ats.relay;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedList;
@@ -23,8 +30,16 @@ import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 import javax.mail.util.ByteArrayDataSource;
 
+/**
+ * メールを組み立てる<br>
+ * 添付ファイルは{@link Path}や{@link InputStream}で指定でき、{@link #writeTo(OutputStream)}や{@link #newInputStream()}では
+ * 添付ファイル全体をメモリに読み込まず、エンコードしながら出力する
+ */
 public class MailBuilder {
 
+	//newInputStreamで、書き込み側と読み込み側の間に保持する大きさ
+	private static final int PIPE_SIZE = 1024 * 64;
+
 	public static final Charset CHARSET = StandardCharsets.UTF_8;
 
 	private final MimeMessage message;
@@ -35,6 +50,8 @@ public class MailBuilder {
 
 	private final List<InternetAddress> bcc = new LinkedList<InternetAddress>();
 
+	private InternetAddress from;
+
 	private String content;
 
 	private String contentType;
@@ -85,6 +102,7 @@ public class MailBuilder {
 
 	public void setFrom(InternetAddress address) throws MessagingException {
 		message.setFrom(address);
+		from = address;
 	}
 
 	public void addHeader(String name, String value) throws MessagingException {
@@ -103,6 +121,15 @@ public class MailBuilder {
 		}
 	}
 
+	/**
+	 * エンコード済みの件名を設定する
+	 * @param subject RFC 2047でエンコード済みの件名
+	 * @throws MessagingException
+	 */
+	void setEncodedSubject(String subject) throws MessagingException {
+		message.setSubject(subject);
+	}
+
 	public void setMessage(String message) {
 		content = message;
 		contentType = "text/plain; charset=\"" + CHARSET.name() + "\"";
@@ -118,6 +145,39 @@ public class MailBuilder {
 		this.attachmentName = attachmentName;
 	}
 
+	/**
+	 * ファイルを添付する<br>
+	 * ファイルは出力時に読み込まれ、メモリに保持されない
+	 * @param file 添付ファイル
+	 * @param contentType 添付ファイルのContent-Type
+	 * @param attachmentName 添付ファイル名
+	 */
+	public void attach(Path file, String contentType, String attachmentName) {
+		attachment = new StreamDataSource(() -> Files.newInputStream(file), contentType, attachmentName);
+		this.attachmentName = attachmentName;
+	}
+
+	/**
+	 * 入力ストリームの内容を添付する<br>
+	 * 入力ストリームは出力時に読み込まれ、メモリに保持されない<br>
+	 * 入力ストリームは一度しか読み込めないので、出力も一度しか行えない
+	 * @param data 添付する内容 出力後にクローズされる
+	 * @param contentType 添付ファイルのContent-Type
+	 * @param attachmentName 添付ファイル名
+	 */
+	public void attach(InputStream data, String contentType, String attachmentName) {
+		boolean[] opened = { false };
+		attachment = new StreamDataSource(() -> {
+			synchronized (opened) {
+				if (opened[0]) throw new IOException("attachment stream is already consumed.");
+				opened[0] = true;
+			}
+
+			return data;
+		}, contentType, attachmentName);
+		this.attachmentName = attachmentName;
+	}
+
 	public byte[] buildHeader() throws MessagingException {
 		prepareRecipients();
 
@@ -133,7 +193,89 @@ public class MailBuilder {
 		return output.toByteArray();
 	}
 
+	/**
+	 * メール全体をメモリ上に作成する<br>
+	 * 大きな添付ファイルがある場合は、{@link #writeTo(OutputStream)}か{@link #newInputStream()}を使用すること
+	 * @return メール全体
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
 	public byte[] build() throws MessagingException, IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writeTo(output);
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * メール全体を出力する<br>
+	 * 添付ファイルは読み込みながらエンコードして出力されるので、大きさにかかわらずメモリの使用量は一定
+	 * @param output 出力先 クローズはされない
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream output) throws MessagingException, IOException {
+		prepare().writeTo(output);
+	}
+
+	/**
+	 * メール全体を読み込む入力ストリームを返す<br>
+	 * {@link CommandExecutor}の標準入力に渡すことで、メール全体をメモリ上に作成せずに送信できる<br>
+	 * 出力は別スレッドで行われ、出力中に発生したエラーは読み込み時に{@link IOException}として通知される<br>
+	 * 読み込みを途中でやめる場合は、出力するスレッドを終了させるためにクローズすること
+	 * @return メール全体
+	 * @throws IOException
+	 */
+	public InputStream newInputStream() throws IOException {
+		MailInputStream input = new MailInputStream();
+		PipedOutputStream output = new PipedOutputStream(input);
+
+		Thread writer = new Thread(() -> {
+			//JavaMailは少量ずつ書き込むので、まとめてからパイプに渡す
+			PooledOutputStream buffered = new PooledOutputStream(output);
+			try {
+				writeTo(buffered);
+				buffered.flush();
+			} catch (Throwable t) {
+				//読み込み側が終端を検出する前に設定する
+				input.failure = t;
+			} finally {
+				buffered.release();
+
+				try {
+					output.close();
+				} catch (IOException e) {}
+			}
+		}, "mail-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		return input;
+	}
+
+	/**
+	 * @return エンベロープの送信者 未設定の場合は null
+	 */
+	InternetAddress getFrom() {
+		return from;
+	}
+
+	/**
+	 * @return エンベロープの宛先 TO、CC、BCCすべて
+	 */
+	List<InternetAddress> getRecipients() {
+		List<InternetAddress> recipients = new LinkedList<>(to);
+		recipients.addAll(cc);
+		recipients.addAll(bcc);
+		return recipients;
+	}
+
+	/**
+	 * 送信用に組み立てたメッセージを返す
+	 * @return 組み立て済みのメッセージ
+	 * @throws MessagingException
+	 */
+	MimeMessage prepare() throws MessagingException {
 		prepareRecipients();
 
 		if (attachment == null) {
@@ -142,10 +284,7 @@ public class MailBuilder {
 			setMessageAndFile();
 		}
 
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		message.writeTo(output);
-
-		return output.toByteArray();
+		return message;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -180,9 +319,155 @@ public class MailBuilder {
 		DataHandler handler = new DataHandler(attachment);
 		attach.setDataHandler(handler);
 
+		//指定しない場合、エンコード方式を決めるために内容が一度読み込まれてしまい、InputStreamを添付したものは出力できなくなる
+		attach.setHeader("Content-Transfer-Encoding", "base64");
+
 		if (attachmentName != null && !attachmentName.equals("")) attach.setFileName(attachmentName);
 		multi.addBodyPart(attach);
 
 		message.setContent(multi);
 	}
+
+	@FunctionalInterface
+	private interface InputStreamSupplier {
+
+		InputStream get() throws IOException;
+	}
+
+	/**
+	 * 出力時に内容を読み込むDataSource
+	 */
+	private static class StreamDataSource implements DataSource {
+
+		private final InputStreamSupplier supplier;
+
+		private final String contentType;
+
+		private final String name;
+
+		private StreamDataSource(InputStreamSupplier supplier, String contentType, String name) {
+			this.supplier = supplier;
+			this.contentType = contentType;
+			this.name = name;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return supplier.get();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("read only.");
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * {@link BufferPool}のバッファを使用する{@link java.io.BufferedOutputStream}
+	 */
+	private static class PooledOutputStream extends OutputStream {
+
+		private final OutputStream out;
+
+		private final ByteBuffer buffer = BufferPool.getInstance().acquire(PIPE_SIZE);
+
+		private PooledOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) flushBuffer();
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			//バッファより大きいものは、そのまま渡す
+			if (len >= buffer.limit()) {
+				flushBuffer();
+				out.write(b, off, len);
+				return;
+			}
+
+			if (len > buffer.remaining()) flushBuffer();
+			buffer.put(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushBuffer();
+			out.flush();
+		}
+
+		private void flushBuffer() throws IOException {
+			if (buffer.position() == 0) return;
+
+			out.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+			buffer.limit(PIPE_SIZE);
+		}
+
+		private void release() {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+
+	/**
+	 * 書き込み側で発生したエラーを、読み込み側に通知する
+	 */
+	private static class MailInputStream extends PipedInputStream {
+
+		private volatile Throwable failure;
+
+		private MailInputStream() {
+			super(PIPE_SIZE);
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			int result;
+			try {
+				result = super.read();
+			} catch (IOException e) {
+				throw failure(e);
+			}
+
+			if (result < 0) checkFailure();
+
+			return result;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			int result;
+			try {
+				result = super.read(b, off, len);
+			} catch (IOException e) {
+				throw failure(e);
+			}
+
+			if (result < 0) checkFailure();
+
+			return result;
+		}
+
+		private void checkFailure() throws IOException {
+			if (failure != null) throw new IOException(failure);
+		}
+
+		private IOException failure(IOException e) {
+			return failure == null ? e : new IOException(failure);
+		}
+	}
 }
@@ -0,0 +1,161 @@
+package jp.ats.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+
+/**
+ * {@link MailTemplate}から宛先ごとのメールを作成し、{@link MailSender}でまとめて送信する<br>
+ * メールの作成は{@link ConcurrentExecutor}の複数のworkerで並行して行い、
+ * 作成したメールは一定数ごとにまとめて、その数に達したworkerが送信する<br>
+ * 宛先は一件ずつ読み込まれるので、宛先の数にかかわらずメモリの使用量は一定<br>
+ * workerは呼び出したスレッドの起動パラメータ、設定を引き継ぐので、{@link ShellClient#execute()}内で実行すること
+ */
+public class MailMerge {
+
+	private final MailTemplate template;
+
+	private final MailSender sender;
+
+	private final int concurrency;
+
+	private final int batchSize;
+
+	/**
+	 * @param template ひな形
+	 * @param sender 送信に使用する
+	 * @param concurrency メールを作成するworker数
+	 * @param batchSize まとめて送信する数
+	 */
+	public MailMerge(MailTemplate template, MailSender sender, int concurrency, int batchSize) {
+		this.template = template;
+		this.sender = sender;
+		this.concurrency = concurrency;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * すべての宛先にメールを送信する<br>
+	 * resultConsumerはworkerスレッドからも呼び出されるので、スレッドセーフであること<br>
+	 * resultConsumerで発生した例外はログ出力され、他の宛先の送信結果は引き続き渡される
+	 * @param recipients 宛先ごとの差し込み値
+	 * @param resultConsumer 差し込み値と、その送信結果を受け取る メールの作成に失敗した場合、送信結果のメールは null
+	 * @throws InterruptedException
+	 */
+	public void send(Stream<Map<String, String>> recipients, BiConsumer<Map<String, String>, MailResult> resultConsumer)
+		throws InterruptedException {
+		Batch batch = new Batch(resultConsumer);
+
+		ConcurrentExecutor<Map<String, String>> executor = new ConcurrentExecutor<>(
+			concurrency,
+			values -> render(values, batch),
+			Shell.threadFactory(new NoDatabaseClient(), "m-"),
+			Disposer.logging(Shell.SHELL_LOGGER));
+
+		executor.start();
+		try {
+			executor.execute(recipients);
+			executor.waitUntilDrained();
+		} finally {
+			executor.shutdown();
+		}
+
+		//一定数に達しなかった残り
+		batch.flush();
+	}
+
+	//workerスレッドが実行
+	private void render(Map<String, String> values, Batch batch) {
+		MailBuilder mail;
+		try {
+			mail = template.render(values);
+		} catch (Exception e) {
+			batch.report(values, new MailResult(null, e));
+			return;
+		}
+
+		batch.add(values, mail);
+	}
+
+	/**
+	 * 送信待ちのメール
+	 */
+	private class Batch {
+
+		private final BiConsumer<Map<String, String>, MailResult> resultConsumer;
+
+		private List<Map<String, String>> values = new ArrayList<>();
+
+		private List<MailBuilder> mails = new ArrayList<>();
+
+		private Batch(BiConsumer<Map<String, String>, MailResult> resultConsumer) {
+			this.resultConsumer = resultConsumer;
+		}
+
+		private void add(Map<String, String> value, MailBuilder mail) {
+			List<Map<String, String>> fullValues;
+			List<MailBuilder> fullMails;
+			synchronized (this) {
+				values.add(value);
+				mails.add(mail);
+
+				if (mails.size() < batchSize) return;
+
+				fullValues = values;
+				fullMails = mails;
+				values = new ArrayList<>();
+				mails = new ArrayList<>();
+			}
+
+			//送信はロック外で行い、他のworkerの作成を止めない
+			send(fullValues, fullMails);
+		}
+
+		private void flush() {
+			List<Map<String, String>> restValues;
+			List<MailBuilder> restMails;
+			synchronized (this) {
+				restValues = values;
+				restMails = mails;
+				values = new ArrayList<>();
+				mails = new ArrayList<>();
+			}
+
+			if (!restMails.isEmpty()) send(restValues, restMails);
+		}
+
+		private void send(List<Map<String, String>> values, List<MailBuilder> mails) {
+			List<MailResult> results;
+			try {
+				results = sender.send(mails);
+			} catch (InterruptedException | RuntimeException e) {
+				if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+
+				for (int i = 0; i < mails.size(); i++) {
+					report(values.get(i), new MailResult(mails.get(i), e));
+				}
+
+				return;
+			}
+
+			for (int i = 0; i < results.size(); i++) {
+				report(values.get(i), results.get(i));
+			}
+		}
+
+		/**
+		 * resultConsumerで例外が発生しても、残りの送信結果は渡す
+		 */
+		private void report(Map<String, String> value, MailResult result) {
+			try {
+				resultConsumer.accept(value, result);
+			} catch (Exception e) {
+				Shell.SHELL_LOGGER.error("exception occurred on [" + value + "]", e);
+			}
+		}
+	}
+}
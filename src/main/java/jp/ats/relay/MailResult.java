@@ -0,0 +1,37 @@
+package jp.ats.relay;
+
+/**
+ * {@link MailSender}による、メール一通ごとの送信結果
+ */
+public class MailResult {
+
+	private final MailBuilder mail;
+
+	private final Throwable error;
+
+	MailResult(MailBuilder mail, Throwable error) {
+		this.mail = mail;
+		this.error = error;
+	}
+
+	/**
+	 * @return 送信したメール
+	 */
+	public MailBuilder getMail() {
+		return mail;
+	}
+
+	/**
+	 * @return 送信に成功したかどうか
+	 */
+	public boolean succeeded() {
+		return error == null;
+	}
+
+	/**
+	 * @return 送信に失敗した場合の原因 成功した場合は null
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
@@ -0,0 +1,28 @@
+package jp.ats.relay;
+
+import java.util.List;
+
+/**
+ * 複数のメールをまとめて送信する
+ * @see SendmailMailSender
+ * @see SmtpMailSender
+ */
+public interface MailSender {
+
+	/**
+	 * メールを送信する<br>
+	 * 一部のメールの送信に失敗しても、残りのメールの送信は続けられる
+	 * @param mails 送信するメール
+	 * @return mailsと同じ順番の、メールごとの送信結果
+	 * @throws InterruptedException
+	 */
+	List<MailResult> send(List<MailBuilder> mails) throws InterruptedException;
+
+	/**
+	 * 設定から実装クラスを特定しインスタンス化する
+	 * @return 設定に定義された実装クラス
+	 */
+	static MailSender getInstance() {
+		return Shell.newInstance(Shell.config().getMailSenderClass());
+	}
+}
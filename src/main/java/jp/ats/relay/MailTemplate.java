@@ -0,0 +1,275 @@
+package jp.ats.relay;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * 差し込みメールのひな形<br>
+ * 件名、本文中の ${名前} を、宛先ごとの値で置き換える<br>
+ * ひな形は生成時に一度だけ解析され、件名の固定部分と追加ヘッダーはエンコード済みのものが使い回される<br>
+ * 生成後は変更されないので、複数のスレッドから同時に使用できる
+ * @see MailMerge
+ */
+public class MailTemplate {
+
+	/**
+	 * 宛先アドレスを表す差し込み値の名前
+	 */
+	public static final String TO = "to";
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)\\}");
+
+	//エンコード後が75文字以内になる、エンコード前のバイト数
+	private static final int ENCODED_WORD_BYTES = 45;
+
+	private final InternetAddress from;
+
+	private final Template subject;
+
+	private final Template body;
+
+	private final boolean html;
+
+	private final Map<String, String> headers;
+
+	private final Path attachment;
+
+	private final String attachmentContentType;
+
+	private final String attachmentName;
+
+	private MailTemplate(Builder builder) throws AddressException {
+		from = new InternetAddress(builder.from);
+		//encoded-wordは、空白で区切らないと連結できない
+		subject = new Template(builder.subject, MailTemplate::encode, " ");
+		body = new Template(builder.body, UnaryOperator.identity(), "");
+		html = builder.html;
+		headers = new LinkedHashMap<>(builder.headers);
+		attachment = builder.attachment;
+		attachmentContentType = builder.attachmentContentType;
+		attachmentName = builder.attachmentName;
+	}
+
+	/**
+	 * @param from 送信者
+	 * @param subject 件名
+	 * @param body 本文
+	 * @return ひな形の生成
+	 */
+	public static Builder builder(String from, String subject, String body) {
+		return new Builder(from, subject, body);
+	}
+
+	/**
+	 * 宛先ごとのメールを作成する
+	 * @param values 差し込み値 {@link #TO}に宛先アドレスを含むこと
+	 * @return 作成したメール
+	 * @throws MessagingException
+	 */
+	public MailBuilder render(Map<String, String> values) throws MessagingException {
+		String to = values.get(TO);
+		if (to == null) throw new IllegalArgumentException("no value for [" + TO + "]");
+
+		MailBuilder mail = MailBuilder.getInstance();
+		mail.setFrom(from);
+		mail.addMailTo(to);
+		mail.setEncodedSubject(subject.render(values));
+
+		String content = body.render(values);
+		if (html) {
+			mail.setHtmlMessage(content);
+		} else {
+			mail.setMessage(content);
+		}
+
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			mail.addHeader(header.getKey(), header.getValue());
+		}
+
+		if (attachment != null) mail.attach(attachment, attachmentContentType, attachmentName);
+
+		return mail;
+	}
+
+	/**
+	 * RFC 2047のBエンコードで、文字の途中で分割しないよう75文字以内のencoded-wordに分割してエンコードする<br>
+	 * 空白で区切られたencoded-wordは、復号時に空白を除いて連結されるので、分割してエンコードしたものを連結できる
+	 */
+	static String encode(String text) {
+		StringBuilder result = new StringBuilder();
+
+		int start = 0;
+		int bytes = 0;
+		for (int i = 0; i < text.length();) {
+			int codePoint = text.codePointAt(i);
+			int length = new String(Character.toChars(codePoint)).getBytes(MailBuilder.CHARSET).length;
+
+			if (bytes + length > ENCODED_WORD_BYTES) {
+				appendWord(result, text.substring(start, i));
+				start = i;
+				bytes = 0;
+			}
+
+			bytes += length;
+			i += Character.charCount(codePoint);
+		}
+
+		if (start < text.length()) appendWord(result, text.substring(start));
+
+		return result.toString();
+	}
+
+	private static void appendWord(StringBuilder result, String text) {
+		if (result.length() > 0) result.append(' ');
+
+		result.append("=?")
+			.append(MailBuilder.CHARSET.name())
+			.append("?B?")
+			.append(Base64.getEncoder().encodeToString(text.getBytes(MailBuilder.CHARSET)))
+			.append("?=");
+	}
+
+	/**
+	 * 固定部分と差し込み部分に分けて解析済みのひな形
+	 */
+	private static class Template {
+
+		//固定部分は変換済み
+		private final List<String> literals = new ArrayList<>();
+
+		private final List<String> names = new ArrayList<>();
+
+		private final UnaryOperator<String> converter;
+
+		private final String separator;
+
+		private Template(String source, UnaryOperator<String> converter, String separator) {
+			this.converter = converter;
+			this.separator = separator;
+
+			Matcher matcher = PLACEHOLDER.matcher(source);
+			int start = 0;
+			while (matcher.find()) {
+				literals.add(converter.apply(source.substring(start, matcher.start())));
+				names.add(matcher.group(1));
+				start = matcher.end();
+			}
+
+			literals.add(converter.apply(source.substring(start)));
+		}
+
+		private String render(Map<String, String> values) {
+			StringBuilder builder = new StringBuilder();
+			append(builder, literals.get(0));
+
+			for (int i = 0; i < names.size(); i++) {
+				String name = names.get(i);
+				String value = values.get(name);
+				if (value == null) throw new IllegalArgumentException("no value for [" + name + "]");
+
+				append(builder, converter.apply(value));
+				append(builder, literals.get(i + 1));
+			}
+
+			return builder.toString();
+		}
+
+		private void append(StringBuilder builder, String part) {
+			if (part.isEmpty()) return;
+
+			if (builder.length() > 0) builder.append(separator);
+
+			builder.append(part);
+		}
+	}
+
+	/**
+	 * {@link MailTemplate}を生成する
+	 */
+	public static class Builder {
+
+		private final String from;
+
+		private final String subject;
+
+		private final String body;
+
+		private boolean html = false;
+
+		private final Map<String, String> headers = new LinkedHashMap<>();
+
+		private Path attachment;
+
+		private String attachmentContentType;
+
+		private String attachmentName;
+
+		private Builder(String from, String subject, String body) {
+			this.from = from;
+			this.subject = subject;
+			this.body = body;
+		}
+
+		/**
+		 * 本文をHTMLとして送信する
+		 * @return this
+		 */
+		public Builder html() {
+			html = true;
+			return this;
+		}
+
+		/**
+		 * 全宛先に共通のヘッダーを追加する<br>
+		 * 値はここで一度だけエンコードされる
+		 * @param name ヘッダー名
+		 * @param value 値
+		 * @return this
+		 */
+		public Builder addHeader(String name, String value) {
+			try {
+				headers.put(name, MimeUtility.encodeText(value, MailBuilder.CHARSET.name(), "B"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+
+			return this;
+		}
+
+		/**
+		 * 全宛先に共通のファイルを添付する<br>
+		 * ファイルは宛先ごとの出力時に読み込まれ、メモリに保持されない
+		 * @param file 添付ファイル
+		 * @param contentType 添付ファイルのContent-Type
+		 * @param name 添付ファイル名
+		 * @return this
+		 */
+		public Builder attach(Path file, String contentType, String name) {
+			attachment = file;
+			attachmentContentType = contentType;
+			attachmentName = name;
+			return this;
+		}
+
+		/**
+		 * @return ひな形
+		 * @throws AddressException 送信者が不正な場合
+		 */
+		public MailTemplate build() throws AddressException {
+			return new MailTemplate(this);
+		}
+	}
+}
@@ -9,7 +9,8 @@ import java.nio.file.Path;
 public interface NextCommand {
 
 	/**
-	 * ロックを確認し、起動可能かどうか判断する
+	 * ロックを確認し、起動可能かどうか判断する<br>
+	 * 起動可能な場合も、同時に起動されるのは一つのみとなるよう、呼び出し側で制御される
 	 * @param lockDir ロックディレクトリ
 	 * @return 起動可能かどうか
 	 */
@@ -23,6 +24,17 @@ public interface NextCommand {
 	 */
 	void execute(String command);
 
+	/**
+	 * 起動予約により次工程を起動する<br>
+	 * 起動した次工程には、環境変数{@link Constants#LAUNCH_CLAIM_VARIABLE}で起動予約の識別子を渡すこと<br>
+	 * 渡されなかった場合、次工程は起動予約を解除しないので、期限切れとなるまで以降の依頼では次工程が起動されない
+	 * @param command 次工程
+	 * @param launchClaim 起動予約の識別子
+	 */
+	default void execute(String command, String launchClaim) {
+		execute(command);
+	}
+
 	/**
 	 * 設定から実装クラスを特定しインスタンス化する
 	 * @return 設定に定義された実装クラス
@@ -1,7 +1,9 @@
 package jp.ats.relay;
 
 import java.io.IOException;
+import java.util.Map;
 
+@ThreadSafe
 public class NextCommandImpl implements NextCommand {
 
 	/**
@@ -11,9 +13,29 @@ public class NextCommandImpl implements NextCommand {
 	 */
 	@Override
 	public void execute(String command) {
+		execute(command, null);
+	}
+
+	/**
+	 * 外部コマンドを実行する<br>
+	 * 起動予約の識別子は、環境変数{@link Constants#LAUNCH_CLAIM_VARIABLE}で渡す<br>
+	 * このメソッドは、起動した外部コマンドの終了を待たず復帰する
+	 * @param command コマンド
+	 * @param launchClaim 起動予約の識別子 起動予約によらない場合null
+	 */
+	@Override
+	public void execute(String command, String launchClaim) {
 		ProcessBuilder processBuilder = new ProcessBuilder();
 		processBuilder.command(CommandExecutor.prepareCommand(command));
 
+		//自プロセスを起動した起動予約を、引き継がせないように
+		Map<String, String> environment = processBuilder.environment();
+		if (launchClaim == null) {
+			environment.remove(Constants.LAUNCH_CLAIM_VARIABLE);
+		} else {
+			environment.put(Constants.LAUNCH_CLAIM_VARIABLE, launchClaim);
+		}
+
 		try {
 			processBuilder.start();
 		} catch (IOException e) {
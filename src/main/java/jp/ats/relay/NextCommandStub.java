@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+@ThreadSafe
 public class NextCommandStub implements NextCommand {
 
 	private static final Logger logger = LogManager.getLogger("console-logger");
@@ -0,0 +1,16 @@
+package jp.ats.relay;
+
+/**
+ * {@link Shell#threadFactory(ShellClient, String)}等で、起動パラメータ、設定を引き継いだスレッドを作成するためだけに使用する<br>
+ * DBは使用せず、スレッドで行う処理は{@link Shell}に別に渡す
+ */
+class NoDatabaseClient implements ShellClient {
+
+	@Override
+	public void execute() {}
+
+	@Override
+	public boolean usesDatabase() {
+		return false;
+	}
+}
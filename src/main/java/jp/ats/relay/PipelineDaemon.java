@@ -0,0 +1,114 @@
+package jp.ats.relay;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * 設定ファイルに定義された複数の{@link QueueProcess}を、一つのプロセス内で停止指示があるまで常駐させる<br>
+ * 処理ごとに起動されるJVMの起動、クラスロード、DB接続の初期化を、常駐開始時の一回のみにする<br>
+ * 次処理が同じプロセス内で常駐している場合、引き渡したファイルは{@link StageChannel}で直接通知され、
+ * 次処理の起動とキューディレクトリの一覧取得を行わない<br>
+ * 最初の処理のキューディレクトリと、最後の処理の次処理のキューディレクトリは、これまで通り外部との受け渡しに使用される<br>
+ * いずれかの処理が例外で終了した場合、前処理からの引き渡しが処理されずに溜まり続けないよう、全体を停止する（再起動は外部から行う）<br>
+ * 起動パラメータで設定ファイルを指定しない場合、{@link Constants#PIPELINE_PROPERTIES}を使用する
+ */
+public class PipelineDaemon implements ShellClient {
+
+	private List<QueueProcess> stages;
+
+	@Override
+	public void execute() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean usesDatabase() {
+		//DB接続の初期化を起動時に一度だけ行うため
+		return stages().stream().anyMatch(QueueProcess::usesDatabase);
+	}
+
+	@Override
+	public void start() {
+		Properties config = config();
+		int capacity = Integer.parseInt(config.getProperty("channel-capacity"));
+		long rescanMillis = Long.parseLong(config.getProperty("rescan-millis"));
+
+		//処理対象のキューディレクトリごとにチャネルを用意する
+		Map<Path, StageChannel> channels = new HashMap<>();
+		stages().forEach(stage -> channels.put(normalize(stage.getQueueDirectory()), new StageChannel(capacity)));
+
+		stages().forEach(stage -> {
+			if (!stage.hasNext()) return;
+
+			StageChannel downstream = channels.get(normalize(stage.getNextCommandQueueDirectory()));
+
+			//次処理が常駐していない場合は、これまで通り次処理を起動する
+			if (downstream != null) stage.connect(downstream);
+		});
+
+		List<QueueProcess> stages = stages();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		List<Thread> threads = new LinkedList<>();
+		stages.forEach(stage -> {
+			StageChannel inbound = channels.get(normalize(stage.getQueueDirectory()));
+
+			//Shellは生成したスレッド（main）の起動パラメータ、設定を引き継ぐ
+			//各処理のmainスレッドとなるので、トランザクションは開始しない
+			Shell shell = new Shell(new NoDatabaseClient());
+			shell.setRunnable(() -> {
+				try {
+					stage.reside(inbound, rescanMillis);
+				} catch (Throwable t) {
+					//他の処理も停止させる
+					if (failure.compareAndSet(null, t)) stages.forEach(QueueProcess::stopResiding);
+					throw t;
+				}
+			});
+
+			threads.add(new Thread(shell, "stage-" + stage.getClass().getSimpleName()));
+		});
+
+		threads.forEach(Thread::start);
+
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			threads.forEach(Thread::interrupt);
+			Shell.handleException(e);
+			return;
+		}
+
+		//通知は根本原因ごとにまとめられるので、処理のスレッドでの通知と重複しない
+		if (failure.get() != null) throw new IllegalStateException("pipeline stopped because a stage failed.", failure.get());
+	}
+
+	private List<QueueProcess> stages() {
+		if (stages == null) {
+			stages = Arrays.stream(config().getProperty("stages").trim().split("\\s+"))
+				.filter(className -> !className.isEmpty())
+				.map(className -> Shell.<QueueProcess> newInstance(className))
+				.collect(Collectors.toList());
+		}
+
+		return stages;
+	}
+
+	private static Properties config() {
+		String[] args = Shell.args();
+		return Shell.config(args.length > 0 ? args[0] : Constants.PIPELINE_PROPERTIES);
+	}
+
+	private static Path normalize(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+}
@@ -0,0 +1,308 @@
+package jp.ats.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 外部コマンドの起動と、標準入出力の読み書きをプロセス全体で共有のスレッドで行う<br>
+ * 同時に実行する外部コマンドの数は{@link Config#getMaxChildProcesses()}に制限され、超える場合は起動を待たせる<br>
+ * 標準入出力用のスレッドは、実行中の外部コマンドすべての標準入力、標準出力、標準エラー出力を同時に扱える数だけ用意する<br>
+ * 標準出力を受け取る処理は標準入出力用のスレッドで実行されるので、その中で他の外部コマンドの終了を待つことはできない<br>
+ * 外部コマンドの数が上限に達した時点で標準入出力用のスレッドがすべて塞がり、停止してしまうため<br>
+ * タイムアウトは起動してからの時間で、起動を待っていた時間は含まない
+ */
+class ProcessLauncher {
+
+	//外部コマンドごとに、標準入力、標準出力、標準エラー出力
+	private static final int STREAMS_PER_PROCESS = 3;
+
+	private static final Object lock = new Object();
+
+	private static volatile ProcessLauncher instance;
+
+	private final Semaphore permits;
+
+	private final ExecutorService launcher;
+
+	private final ExecutorService pumps;
+
+	private final ScheduledExecutorService timer;
+
+	//タイムアウトした外部コマンドの数
+	private static final LongAdder timeouts = new LongAdder();
+
+	//タイムアウトした外部コマンドの終了を待っていた時間の合計
+	private static final LongAdder stalledNanos = new LongAdder();
+
+	/**
+	 * 初回の呼び出し時の設定で生成したものを、プロセス内で共有する
+	 * @return インスタンス
+	 */
+	static ProcessLauncher getInstance() {
+		if (instance != null) return instance;
+
+		synchronized (lock) {
+			if (instance == null) {
+				//Shell外から使用された場合は、設定の既定値と同じ
+				int maxProcesses = Shell.resourceManager() == null
+					? Runtime.getRuntime().availableProcessors() * 2
+					: Shell.config().getMaxChildProcesses();
+
+				instance = new ProcessLauncher(maxProcesses);
+			}
+		}
+
+		return instance;
+	}
+
+	private ProcessLauncher(int maxProcesses) {
+		permits = new Semaphore(maxProcesses);
+
+		AtomicInteger counter = new AtomicInteger(0);
+
+		//起動の順番待ちは一つのスレッドで行い、呼び出し側を待たせない
+		launcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "process-launcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		int pumpCount = maxProcesses * STREAMS_PER_PROCESS;
+		ThreadPoolExecutor pumps = new ThreadPoolExecutor(pumpCount, pumpCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new PumpThread(runnable, "process-pump-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		//使用されていない間はスレッドを残さない
+		pumps.allowCoreThreadTimeOut(true);
+
+		this.pumps = pumps;
+
+		timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "process-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * 外部コマンドのタイムアウト用のタイマーで、処理を予約する
+	 * @param task 処理
+	 * @param delayMillis 実行までの時間
+	 * @return 取り消し用
+	 */
+	ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+		return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return プロセス起動以降に、タイムアウトした外部コマンドの数
+	 */
+	static long timeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return プロセス起動以降に、タイムアウトした外部コマンドの終了を待っていた時間の合計
+	 */
+	static long stalledNanos() {
+		return stalledNanos.sum();
+	}
+
+	/**
+	 * 外部コマンドを起動する<br>
+	 * 呼び出し側は起動を待たずに復帰する
+	 * @param builder 設定済みのProcessBuilder
+	 * @param in null可 外部コマンドに渡す
+	 * @param outReader null の場合、標準出力はProcessBuilderで設定された出力先へ出力される
+	 * @param errReader 標準エラー出力を読み込む
+	 * @param timeoutMillis 起動してから終了するまでのタイムアウト 0以下の場合はタイムアウトしない
+	 * @return 外部コマンドの終了コード 読み込み、書き込みでエラーが発生した場合は外部コマンドを停止し、そのエラーで完了する
+	 * タイムアウトした場合は、外部コマンドとその子孫を停止し、{@link TimeoutException}を原因とする例外で完了する
+	 */
+	CompletableFuture<Integer> launch(
+		ProcessBuilder builder,
+		InputStream in,
+		StreamReader outReader,
+		StreamReader errReader,
+		long timeoutMillis) {
+		CompletableFuture<Integer> result = new CompletableFuture<>();
+
+		launcher.execute(() -> {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+
+			Process process;
+			try {
+				process = builder.start();
+			} catch (Throwable t) {
+				permits.release();
+				result.completeExceptionally(t instanceof IOException ? new RuntimeException(t) : t);
+				return;
+			}
+
+			long startNanos = System.nanoTime();
+
+			AtomicBoolean timedOut = new AtomicBoolean(false);
+			ScheduledFuture<?> timeout = timeoutMillis > 0
+				? timer.schedule(() -> {
+					if (result.isDone()) return;
+
+					timedOut.set(true);
+					ProcessTree.kill(process);
+				}, timeoutMillis, TimeUnit.MILLISECONDS)
+				: null;
+
+			CompletableFuture<Void> out = outReader == null
+				? CompletableFuture.completedFuture(null)
+				: pump(process, () -> read(process.getInputStream(), outReader));
+
+			CompletableFuture<Void> err = pump(process, () -> read(process.getErrorStream(), errReader));
+
+			CompletableFuture<Void> send = pump(process, () -> send(in, process.getOutputStream()));
+
+			CompletableFuture.allOf(out, err, send).whenCompleteAsync((v, t) -> {
+				try {
+					//標準出力、標準エラー出力を閉じた後も動き続けるものがあるので、終了するまでタイムアウトさせる
+					int exitValue = process.waitFor();
+
+					if (timeout != null) timeout.cancel(false);
+
+					if (timedOut.get()) {
+						timeouts.increment();
+						stalledNanos.add(System.nanoTime() - startNanos);
+
+						result.completeExceptionally(new RuntimeException(
+							"Process実行タイムアウト: " + String.join(" ", builder.command()),
+							new TimeoutException()));
+					} else if (t != null) {
+						result.completeExceptionally(t);
+					} else {
+						result.complete(exitValue);
+					}
+				} catch (InterruptedException e) {
+					result.completeExceptionally(e);
+				} finally {
+					permits.release();
+				}
+			}, pumps);
+		});
+
+		return result;
+	}
+
+	private CompletableFuture<Void> pump(Process process, IORunnable runnable) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				runnable.run();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, pumps).whenComplete((v, t) -> {
+			//読み書きが止まると外部コマンドが終了しなくなるので、子孫と共に停止させる
+			if (t != null) ProcessTree.kill(process);
+		});
+	}
+
+	private static void read(InputStream stream, StreamReader reader) throws IOException {
+		try (InputStream s = new BufferedInputStream(stream)) {
+			reader.read(s);
+		}
+	}
+
+	private static void send(InputStream in, OutputStream out) throws IOException {
+		try (OutputStream s = new BufferedOutputStream(out)) {
+			if (in != null) sendBytes(in, s);
+		}
+	}
+
+	private static final int BUFFER_SIZE = 1024 * 100;
+
+	/**
+	 * in から読み込めるだけ読み込み、out へ出力します。
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void sendBytes(InputStream in, OutputStream out)
+		throws IOException {
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+		try {
+			byte[] b = buffer.array();
+			int readed;
+			while ((readed = in.read(b, 0, BUFFER_SIZE)) > 0) {
+				out.write(b, 0, readed);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+
+		out.flush();
+	}
+
+	/**
+	 * 外部コマンドの終了を待つ前に確認する<br>
+	 * 標準入出力用のスレッドで待つと、外部コマンドの数が上限に達した時点で標準入出力用のスレッドがすべて塞がり、停止してしまう
+	 * @throws IllegalStateException 標準入出力用のスレッドから呼び出された場合
+	 */
+	static void checkWaitable() {
+		if (Thread.currentThread() instanceof PumpThread)
+			throw new IllegalStateException("cannot wait for an external command while reading the output of another command.");
+	}
+
+	/**
+	 * 外部コマンドの出力を読み込む<br>
+	 * 標準入出力用のスレッドで実行されるので、この中で他の外部コマンドの終了を待たないこと
+	 */
+	@FunctionalInterface
+	interface StreamReader {
+
+		void read(InputStream stream) throws IOException;
+	}
+
+	@FunctionalInterface
+	private interface IORunnable {
+
+		void run() throws IOException;
+	}
+
+	/**
+	 * 標準入出力用のスレッド<br>
+	 * プールされ、繰り返し使用されるので、{@link BufferPool}の自分用のバッファを保持する
+	 */
+	private static class PumpThread extends Thread {
+
+		private PumpThread(Runnable runnable, String name) {
+			super(runnable, name);
+		}
+
+		@Override
+		public void run() {
+			BufferPool.registerCurrentThread();
+			super.run();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package jp.ats.relay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 外部コマンドを、そこから起動された子孫のプロセスも含めて停止する<br>
+ * Java 9以降ではProcessHandleで子孫を取得し、Java 8ではpsの出力から子孫を特定してkillで停止する<br>
+ * 子孫を残すと、標準出力等が閉じられず、読み込み側が終了しなくなるため
+ */
+class ProcessTree {
+
+	//Java 9以降のみ
+	private static final Method toHandle;
+
+	private static final Method descendants;
+
+	private static final Method destroyForcibly;
+
+	static {
+		Method toHandleMethod = null;
+		Method descendantsMethod = null;
+		Method destroyForciblyMethod = null;
+		try {
+			Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+			toHandleMethod = Process.class.getMethod("toHandle");
+			descendantsMethod = handleClass.getMethod("descendants");
+			destroyForciblyMethod = handleClass.getMethod("destroyForcibly");
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			//Java 8
+		}
+
+		toHandle = toHandleMethod;
+		descendants = descendantsMethod;
+		destroyForcibly = destroyForciblyMethod;
+	}
+
+	private ProcessTree() {}
+
+	/**
+	 * 子孫を停止してから、外部コマンドを停止する<br>
+	 * 先に停止すると、子孫の親子関係がたどれなくなるため
+	 * @param process 外部コマンド
+	 */
+	static void kill(Process process) {
+		try {
+			if (toHandle != null) {
+				killDescendants(process);
+			} else {
+				killDescendantsWithPs(process);
+			}
+		} catch (Exception e) {
+			//外部コマンド自体は停止させる
+			Shell.SHELL_LOGGER.warn("failed to kill descendants.", e);
+		}
+
+		process.destroyForcibly();
+	}
+
+	private static void killDescendants(Process process) throws Exception {
+		Object handle = toHandle.invoke(process);
+
+		List<?> handles;
+		try (Stream<?> stream = (Stream<?>) descendants.invoke(handle)) {
+			handles = stream.collect(Collectors.toList());
+		}
+
+		for (Object descendant : handles) {
+			destroyForcibly.invoke(descendant);
+		}
+	}
+
+	private static void killDescendantsWithPs(Process process) throws Exception {
+		//UNIX系のみ
+		Field pidField = process.getClass().getDeclaredField("pid");
+		pidField.setAccessible(true);
+		String pid = String.valueOf(pidField.getInt(process));
+
+		Map<String, List<String>> children = new HashMap<>();
+		for (String line : run("ps", "-e", "-o", "pid=", "-o", "ppid=")) {
+			String[] columns = line.trim().split("\\s+");
+			if (columns.length < 2) continue;
+
+			children.computeIfAbsent(columns[1], k -> new LinkedList<>()).add(columns[0]);
+		}
+
+		List<String> targets = new LinkedList<>();
+		Deque<String> queue = new ArrayDeque<>(children.getOrDefault(pid, new LinkedList<>()));
+		while (!queue.isEmpty()) {
+			String child = queue.poll();
+			targets.add(child);
+			queue.addAll(children.getOrDefault(child, new LinkedList<>()));
+		}
+
+		if (targets.isEmpty()) return;
+
+		List<String> command = new LinkedList<>();
+		command.add("kill");
+		command.add("-9");
+		command.addAll(targets);
+
+		run(command.toArray(new String[command.size()]));
+	}
+
+	//CommandExecutorの同時実行数の制限を受けないよう、直接起動する
+	private static List<String> run(String... command) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+		List<String> lines = new LinkedList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			for (String line; (line = reader.readLine()) != null;) {
+				lines.add(line);
+			}
+		}
+
+		process.waitFor();
+
+		return lines;
+	}
+}
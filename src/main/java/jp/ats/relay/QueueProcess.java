@@ -1,14 +1,20 @@
 package jp.ats.relay;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -19,6 +25,7 @@ import org.apache.logging.log4j.Logger;
 import org.blendee.jdbc.BTransaction;
 
 import jp.ats.relay.ConcurrentExecutor.Disposer;
+import jp.ats.relay.Handoff.Rename;
 
 public abstract class QueueProcess implements ShellClient {
 
@@ -26,9 +33,28 @@ public abstract class QueueProcess implements ShellClient {
 	private static final Logger logger = LogManager.getLogger(QueueProcess.class.getName());
 
 	//次処理起動用のインターバルをとるための処理件数
-	private static final int chunkCount = 100;
+	static final int chunkCount = 100;
 
-	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	//常駐中に、ジャーナルを書き直す大きさ
+	private static final long JOURNAL_COMPACTION_BYTES = 1024 * 1024;
+
+	//全workerで共有する流量制限
+	private final RateLimiter rateLimiter = new RateLimiter();
+
+	//処理件数 ロックを取得するごとにリセットする
+	private final AtomicLong speedCounter = new AtomicLong(0);
+
+	//start()の間、ロックの取得、解放をまたいで使用する mainスレッドしか使用しないこと
+	private TaskExecutor<Path> executor;
+
+	//workerが処理中の対象ファイルの、先読みされた内容
+	private static final ThreadLocal<ByteBuffer> prefetchedThreadLocal = new ThreadLocal<>();
+
+	//workerが処理中に作成した、次処理への出力
+	private static final ThreadLocal<List<StagedOutput>> stagedOutputsThreadLocal = ThreadLocal.withInitial(() -> new LinkedList<>());
+
+	//workerが処理中の対象の引き渡しID
+	private static final ThreadLocal<String> handoffIdThreadLocal = new ThreadLocal<>();
 
 	/**
 	 * @return 対象となるファイルを格納するキューディレクトリ
@@ -65,22 +91,117 @@ public abstract class QueueProcess implements ShellClient {
 	 */
 	protected abstract int getMaxConcurrency();
 
+	/**
+	 * {@link SharedWorkerRuntime}で他の処理とworkerを共有する場合に、最低限配分されるworker数<br>
+	 * 処理対象が残っていない場合は配分されない<br>
+	 * 配分されるworker数の上限は{@link #getMaxConcurrency()}
+	 * @return 最低限配分されるworker数
+	 */
+	protected int getMinShare() {
+		return 1;
+	}
+
+	/**
+	 * 処理対象の取得を、1秒あたりの件数で制限する<br>
+	 * 処理中も定期的に呼び出されるので、実行中に値を変更することが可能
+	 * @return 1秒あたりの最大処理件数（0以下の場合は無制限）
+	 */
+	protected double getMaxItemsPerSecond() {
+		return 0;
+	}
+
+	/**
+	 * 処理対象の取得を、1秒あたりのファイルサイズの合計で制限する<br>
+	 * 処理中も定期的に呼び出されるので、実行中に値を変更することが可能
+	 * @return 1秒あたりの最大処理バイト数（0以下の場合は無制限）
+	 */
+	protected long getMaxBytesPerSecond() {
+		return 0;
+	}
+
+	/**
+	 * 処理対象ファイルの内容を、処理workerとは別のI/O workerで先読みする場合、そのworker数を返す<br>
+	 * 先読みした内容は{@link #prefetched()}で取得する
+	 * @return 先読み用I/O worker数（0の場合は先読みしない）
+	 */
+	protected int getPrefetchConcurrency() {
+		return 0;
+	}
+
+	/**
+	 * @return 先読みした内容を保持しておく最大バイト数
+	 */
+	protected long getMaxPrefetchBytes() {
+		return 64L * 1024 * 1024;
+	}
+
+	/**
+	 * worker数を、処理対象の残件数のみで決めるのではなく、実測したスループットと一件あたりの処理時間をもとに
+	 * 処理中に増減させる場合はtrueを返す<br>
+	 * その場合も、worker数は{@link #getMaxConcurrency()}を超えない
+	 * @return worker数を自動調整するか
+	 */
+	protected boolean usesAdaptiveConcurrency() {
+		return false;
+	}
+
+	/**
+	 * DBや外部コマンドの待ちが処理時間の大半を占める処理で、多数の処理対象を同時に処理する場合はtrueを返す<br>
+	 * Java 21以降で実行されている場合、固定数のworkerスレッドの代わりに、処理対象ごとに仮想スレッドを生成して処理する<br>
+	 * 同時実行数は{@link #getMaxConcurrency()}で制限される<br>
+	 * DBを使用する場合、処理対象ごとにShellが生成され、トランザクションの開始とコネクションの取得も処理対象ごとに行われる<br>
+	 * workerスレッドがトランザクションを使い回す場合と比べて一件あたりのコストが増えるので、
+	 * 一件あたりの処理時間が短い処理には向かない<br>
+	 * また、同時に使用されるコネクション数は最大で{@link #getMaxConcurrency()}となるので、DB側の接続数の上限に合わせて設定すること<br>
+	 * 先読み（{@link #getPrefetchConcurrency()}）は行われない
+	 * @return 仮想スレッドを使用するか
+	 */
+	protected boolean usesVirtualThreads() {
+		return false;
+	}
+
+	/**
+	 * DBのcommit後、ファイルの引き渡し（次処理への移動、処理対象の削除）前にプロセスが停止した場合、
+	 * 通常は処理対象が再処理されるため、各処理に冪等性が必要となる<br>
+	 * ジャーナルを使用すると、引き渡し内容をcommit前後に記録し、次回起動時に引き渡しを完了させることで再処理を防ぐ
+	 * @return 引き渡し処理をジャーナルに記録するか
+	 */
+	protected boolean usesJournal() {
+		return false;
+	}
+
+	/**
+	 * ジャーナルに、commit前の記録のみが残っていた引き渡し処理について、commitが完了していたかを判定する<br>
+	 * process内で{@link #handoffId()}を同一トランザクションでDBに記録しておくことで判定が可能となる<br>
+	 * ロック取得後、workerの開始前にmainスレッドが実行する<br>
+	 * DBを使用する場合、ジャーナルの回復全体が一つのトランザクション内で行われ、{@link Shell#transaction()}を使用することが可能
+	 * @param handoffId 引き渡しID
+	 * @return commit済みの場合true 未commitの場合、判定できない場合はfalse（処理対象は再処理される）
+	 */
+	protected boolean isCommitted(String handoffId) {
+		return false;
+	}
+
 	/**
 	 * 自処理を実行する
 	 * process内では<br>
 	 * {@link Shell#transaction()}<br>
 	 * {@link Shell#config()}<br>
 	 * {@link Shell#args()}<br>
+	 * {@link #prefetched()}<br>
+	 * {@link #createNextOutput()}<br>
+	 * {@link #handoffId()}<br>
 	 * を使用することが可能
 	 * @param next キューディレクトリ内の次の対象ファイル
-	 * @return 次処理のために移動するファイル
+	 * @return 次処理のために移動するファイル {@link #createNextOutput()}で出力した場合等、移動するファイルがない場合はnull
 	 */
 	protected abstract Path process(Path next);
 
 	/**
 	 * 各処理対象の処理を始める前に行う処理のフック<br>
 	 * mainスレッドが実行<br>
-	 * ロック取得後に呼び出される
+	 * ロック取得後に呼び出される<br>
+	 * {@link PipelineDaemon}内で常駐する場合は、常駐開始時に一度だけ呼び出される
 	 */
 	protected void preProcessWithLock() {}
 
@@ -88,6 +209,7 @@ public abstract class QueueProcess implements ShellClient {
 	 * 各処理対象の処理がすべて終了した際に行う処理のフック<br>
 	 * mainスレッドが実行<br>
 	 * ロック解放前に呼び出される<br>
+	 * {@link PipelineDaemon}内で常駐する場合は、常駐終了時に一度だけ呼び出される
 	 */
 	protected void postProcessWithLock() {}
 
@@ -101,6 +223,61 @@ public abstract class QueueProcess implements ShellClient {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * process内でのみ使用可能<br>
+	 * ジャーナル使用時に、{@link #isCommitted(String)}で判定するための引き渡しIDを返す
+	 * @return 今回の処理対象の引き渡しID
+	 */
+	protected static String handoffId() {
+		return handoffIdThreadLocal.get();
+	}
+
+	/**
+	 * process内でのみ使用可能<br>
+	 * 次処理のキューディレクトリ内に、次処理からは見えない一時ファイルを作成し、書き込み用のチャネルを返す<br>
+	 * 書き込んだ内容は、processが正常に終了した後（DBを使用する場合はcommit後）に、リネームのみで次処理に引き渡される<br>
+	 * processでエラーが発生した場合は破棄される<br>
+	 * 処理後のファイルを移動する必要がないので、processがファイルを返す場合に比べ、ファイルの移動が一回少なくなる<br>
+	 * 返されるチャネルのクローズはフレームワーク側で行う
+	 * @return 書き込み用チャネル
+	 * @throws IOException
+	 */
+	protected FileChannel createNextOutput() throws IOException {
+		return stageNextOutput().channel();
+	}
+
+	/**
+	 * process内でのみ使用可能<br>
+	 * {@link #createNextOutput()}と同様に、次処理のキューディレクトリ内に次処理からは見えない一時ファイルを作成し、そのパスを返す<br>
+	 * {@link CommandExecutor#execute(Path, String...)}等で、外部コマンドの標準出力の出力先に指定するためのもので、
+	 * 書き込み途中の出力が次処理の処理対象となることはない<br>
+	 * 書き込んだ内容は、processが正常に終了した後（DBを使用する場合はcommit後）に、リネームのみで次処理に引き渡される<br>
+	 * processでエラーが発生した場合は破棄される
+	 * @return 一時ファイルのパス
+	 * @throws IOException
+	 */
+	protected Path createNextOutputFile() throws IOException {
+		return stageNextOutput().temporary();
+	}
+
+	private StagedOutput stageNextOutput() throws IOException {
+		if (!hasNext()) throw new IllegalStateException("next command does not exist.");
+
+		StagedOutput output = StagedOutput.create(getNextCommandQueueDirectory(), stagingOwner());
+		stagedOutputsThreadLocal.get().add(output);
+
+		return output;
+	}
+
+	/**
+	 * process内でのみ使用可能<br>
+	 * 返されるバッファは処理終了後に再利用されるので、process外に持ち出さないこと
+	 * @return 先読みされた処理対象ファイルの内容 先読みしていない場合、先読みに失敗した場合はnull
+	 */
+	protected static ByteBuffer prefetched() {
+		return prefetchedThreadLocal.get();
+	}
+
 	public static int countQueueDirectory(Path queueDirectory) {
 		//ファイルディスクリプタがオープンのまま溜まるので都度クローズする
 		try (Stream<Path> stream = stream(queueDirectory)) {
@@ -110,15 +287,30 @@ public abstract class QueueProcess implements ShellClient {
 
 	@Override
 	public void start() {
+		try {
+			processAll();
+		} finally {
+			//workerはロックの取得、解放をまたいで使用するので、最後に停止する
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+
+			//削除スレッドも同様
+			if (tombstones != null) tombstones.close();
+
+			//処理対象がなくロックを取得しなかった場合も、以降の依頼で起動できるようにする
+			wakeUp().started();
+		}
+	}
+
+	private void processAll() {
 		//ロックして全件処理中に、前処理がファイルを置いた場合に備えてループ
-		while (count() > 0) { //対象ファイルの取得は、ロック解放状態でやらなければならない
-			Path lockDirectory = getLockDirectory();
+		while (hasWork()) { //対象ファイルの取得は、ロック解放状態でやらなければならない
 			try {
 				//ロックを取得
-				Files.createDirectory(lockDirectory);
-			} catch (FileAlreadyExistsException e) {
 				//既にロックが取得されていた場合、自プロセスは終了する
-				return;
+				if (!lock()) return;
 			} catch (IOException e) {
 				//ロック外なのでShellのLoggerを使用
 				Shell.handleException(e);
@@ -136,7 +328,7 @@ public abstract class QueueProcess implements ShellClient {
 			} finally {
 				try {
 					//ロック開放
-					Files.delete(lockDirectory);
+					unlock();
 				} catch (IOException e) {
 					//ロック外なのでShellのLoggerを使用
 					Shell.handleException(e);
@@ -145,20 +337,190 @@ public abstract class QueueProcess implements ShellClient {
 		}
 	}
 
+	/**
+	 * {@link PipelineDaemon}内で、停止指示があるまで常駐して処理する<br>
+	 * ロックは常駐中保持し続けるので、単独で起動された同じ処理はすぐに終了する<br>
+	 * 処理対象は、同じプロセス内の前処理からチャネル経由で受け取り、
+	 * チャネルに入りきらなかったものと外部から置かれたものは、一定間隔でキューディレクトリから取得する<br>
+	 * {@link #preProcessWithLock()}、{@link #postProcessWithLock()}等のロック取得、解放時の処理は、
+	 * 受け取った処理対象ごとではなく、常駐の開始時と終了時に一度ずつ行う<br>
+	 * 停止指示の他、{@link #stopResiding()}でも終了する<br>
+	 * mainスレッドが実行
+	 * @param inbound 前処理からのチャネル
+	 * @param rescanMillis キューディレクトリを確認する間隔
+	 */
+	void reside(StageChannel inbound, long rescanMillis) {
+		try {
+			//既にロックが取得されていた場合、その処理は他プロセスにまかせる
+			if (!lock()) return;
+		} catch (IOException e) {
+			//ロック外なのでShellのLoggerを使用
+			Shell.handleException(e);
+			return;
+		}
+
+		try {
+			beginRound();
+			try {
+				long lastScan = 0;
+				while (!halted() && !residingStopped) {
+					//チャネルとキューディレクトリの両方に存在する場合があるので重複を除く
+					Set<Path> targets = new LinkedHashSet<>();
+
+					//外部から起動依頼があった場合も、キューディレクトリを確認する
+					boolean woken = wakeUp().pending();
+					if (woken) wakeUp().accept();
+
+					long now = System.currentTimeMillis();
+					if (woken | inbound.takeSpilled() || now - lastScan >= rescanMillis) {
+						lastScan = now;
+						sorted().forEach(targets::add);
+					}
+
+					if (targets.isEmpty()) {
+						//次にキューディレクトリを確認するまで、前処理からの引き渡しを待つ
+						Path first = inbound.poll(Math.max(lastScan + rescanMillis - now, 1));
+						if (first == null) continue;
+
+						targets.add(first);
+					}
+
+					inbound.drainTo(targets);
+
+					processResident(targets);
+				}
+
+				logger.warn(residingStopped ? "resident stopped." : "process halted.");
+			} catch (InterruptedException e) {
+				logger.warn("interrpted.", e);
+			} finally {
+				if (executor != null) {
+					//処理中のものが終わるのを待ってから停止する
+					executor.shutdown();
+					executor = null;
+				}
+
+				try {
+					endRound();
+				} finally {
+					//常駐ごとに削除スレッドが残らないように
+					tombstones.close();
+				}
+			}
+		} finally {
+			try {
+				//ロック開放
+				unlock();
+			} catch (IOException e) {
+				//ロック外なのでShellのLoggerを使用
+				Shell.handleException(e);
+			}
+		}
+	}
+
+	/**
+	 * {@link #reside(StageChannel, long)}を、処理中のものを終えてから終了させる<br>
+	 * 次にキューディレクトリを確認するまでに終了する
+	 */
+	void stopResiding() {
+		residingStopped = true;
+	}
+
+	//mainスレッドが実行
+	private void processResident(Set<Path> targets) throws InterruptedException {
+		int concurrency = Math.min(targets.size(), getMaxConcurrency());
+		if (executor == null) {
+			executor = newExecutor(concurrency);
+		} else if (concurrency > executor.getConcurrency()) {
+			resize(concurrency);
+		}
+
+		try {
+			//前回までに処理済みのものは除く
+			executor.execute(targets.stream().filter(Files::exists), chunkCount, this::interval);
+		} finally {
+			//workerは停止させずに、処理中のものが終わるのを待つ
+			executor.waitUntilDrained();
+		}
+
+		//件数が少なくintervalに達しなかった場合も、記録と流量制限の反映を行う
+		interval();
+
+		//常駐中はendRoundまで書き直さないので、大きくなった場合のみ行う
+		if (journal != null) compactJournal(JOURNAL_COMPACTION_BYTES);
+	}
+
+	/**
+	 * 次処理が同じプロセス内で常駐している場合に、引き渡したファイルを通知するチャネルを設定する<br>
+	 * 設定した場合、次処理の起動は行わない
+	 * @param downstream 次処理へのチャネル
+	 */
+	void connect(StageChannel downstream) {
+		this.downstream = downstream;
+	}
+
+	/**
+	 * ロックを取得する
+	 * @return 取得できた場合true 既に取得されていた場合false
+	 * @throws IOException
+	 */
+	boolean lock() throws IOException {
+		try {
+			Files.createDirectory(getLockDirectory());
+		} catch (FileAlreadyExistsException e) {
+			//起動依頼により起動された場合、依頼はロックを取得している処理が通知で対応する
+			wakeUp().started();
+			return false;
+		}
+
+		//起動依頼により起動された場合、以降の依頼はロックと通知で扱う
+		//ロックの取得前に解除すると、その間に他の依頼が別のプロセスを起動してしまう
+		wakeUp().started();
+
+		//ここまでの起動依頼は、これからの処理で対応する
+		wakeUp().accept();
+
+		return true;
+	}
+
+	/**
+	 * ロックを解放する
+	 * @throws IOException
+	 */
+	void unlock() throws IOException {
+		Files.delete(getLockDirectory());
+	}
+
+	/**
+	 * ロック解放状態で実行すること
+	 * @return 処理対象が存在するか、前回のロック取得以降に起動が依頼された場合true
+	 */
+	boolean hasWork() {
+		//ロック解放直前に依頼された場合、処理対象を見落とさないよう再度処理する
+		return wakeUp().pending() || count() > 0;
+	}
+
+	private WakeUp wakeUp() {
+		if (wakeUp == null) wakeUp = new WakeUp(getLockDirectory());
+		return wakeUp;
+	}
+
 	//ロック中に行う処理
 	protected boolean processWithLock() {
-		preProcessWithLock();
+		beginRound();
 
 		int maxConcurrency = getMaxConcurrency();
 		int concurrency = computeConcurrency(maxConcurrency);
 
-		AtomicLong speedCounter = new AtomicLong(0);
+		controller = usesAdaptiveConcurrency() ? new ConcurrencyController(maxConcurrency) : null;
 
-		ConcurrentExecutor<Path> executor = createConcurrentExecutor(concurrency, speedCounter);
-		executor.start();
-
-		//計測開始
-		final long startSpeedNanos = System.nanoTime();
+		if (executor == null) {
+			//初回のみ生成し、以降は同じworker（DB接続を含む）を使い続ける
+			executor = newExecutor(concurrency);
+		} else {
+			//前回から処理対象の数が変わっている場合に備える
+			resize(concurrency);
+		}
 
 		try {
 			//ロックを取得した状態で対象を取得
@@ -170,18 +532,18 @@ public abstract class QueueProcess implements ShellClient {
 					return false;
 				}
 
-				Runnable interval = () -> {
-					//定期的に記録
-					record(speedCounter, startSpeedNanos);
+				//残件数の算出用
+				int total = i;
+				long processedBefore = speedCounter.get();
 
-					if (halted()) return;
+				Runnable interval = () -> {
+					if (!interval()) return;
 
-					//定期的に次処理起動
-					if (hasNext()) {
-						//次処理が起動中でなければ起動する
-						NextCommand next = NextCommand.getInstance();
-						if (next.canExecute(getNextCommandLockDirectory()))
-							next.execute(getNextCommandPath());
+					//実績をもとにworker数を調整
+					//処理対象を渡している途中なので、worker数を変更できない場合は調整しない
+					if (controller != null && executor.isResizable()) {
+						int backlog = total - (int) (speedCounter.get() - processedBefore);
+						resize(controller.adjust(executor.getConcurrency(), backlog));
 					}
 				};
 
@@ -194,51 +556,171 @@ public abstract class QueueProcess implements ShellClient {
 				interval.run();
 
 				//最初の並列数取得時に処理対象が少なく、その後大量に処理対象が増えた場合、スレッドが少ないまま
-				//処理してしまうため、一旦リターンし、このメソッドを再実行することで並列処理数を増やす
-				//処理対象がまだ残っていれば、並列数を増加させてこのメソッドが再実行される
-				if (concurrency < computeConcurrency(maxConcurrency)) return true;
+				//処理してしまうため、処理対象がまだ残っていれば、並列数を増加させる
+				//worker数を自動調整する場合は、処理中に調整しているので不要
+				if (controller == null) {
+					int next = computeConcurrency(maxConcurrency);
+					if (next > executor.getConcurrency()) resize(next);
+				}
 			}
 		} catch (InterruptedException e) {
 			logger.warn("interrpted.", e);
 		} finally {
-			executor.shutdown();
-
-			record(speedCounter, startSpeedNanos);
+			try {
+				//workerは停止させずに、処理中のものが終わるのを待つ
+				executor.waitUntilDrained();
+			} catch (InterruptedException e) {
+				logger.warn("interrpted.", e);
+			}
 
-			postProcessWithLock();
+			endRound();
 		}
 
 		//処理を続行
 		return true;
 	}
 
-	protected ConcurrentExecutor<Path> createConcurrentExecutor(int concurrency, AtomicLong speedCounter) {
-		Disposer<Path> disposer = new Disposer<Path>() {
+	/**
+	 * ロック取得後、workerに処理対象を渡す前の準備を行う<br>
+	 * mainスレッドが実行
+	 */
+	void beginRound() {
+		preProcessWithLock();
 
-			@Override
-			public void onEvent(Throwable t, long sequence, Path value) {
-				logger.error("exception occurred on [" + value + "]", t);
-			}
+		//前回完了しなかった引き渡し処理を完了させる
+		if (usesJournal()) recoverJournal();
 
-			@Override
-			public void onStart(Throwable t) {
-				logger.error(t.getMessage(), t);
-			};
+		//引き渡し処理で公開されなかった、前回の次処理への出力を削除する
+		if (hasNext()) sweepStagedOutputs();
 
-			@Override
-			public void onShutdown(Throwable t) {
-				logger.error(t.getMessage(), t);
-			};
-		};
+		//前回削除しきれなかった処理済みファイルもここで削除対象となる
+		if (tombstones == null) tombstones = new Tombstones(getQueueDirectory());
+		tombstones.start();
+
+		speedCounter.set(0);
+
+		applyRateLimit();
+
+		//計測開始
+		roundStartNanos = System.nanoTime();
+		roundStartTimeouts = ProcessLauncher.timeouts();
+		roundStartStalledNanos = ProcessLauncher.stalledNanos();
+	}
+
+	/**
+	 * 処理対象を一定数処理するごとに行う処理<br>
+	 * mainスレッドが実行
+	 * @return 緊急停止が指示されていない場合true
+	 */
+	boolean interval() {
+		//定期的に記録
+		record(speedCounter, roundStartNanos);
+
+		if (halted()) return false;
+
+		//流量制限の変更を反映
+		applyRateLimit();
+
+		//定期的に次処理起動
+		//次処理が同じプロセス内で常駐している場合は、チャネルで通知済み
+		if (hasNext() && downstream == null) {
+			if (nextWakeUp == null) nextWakeUp = new WakeUp(getNextCommandLockDirectory());
+
+			//次処理が処理中であれば通知のみ行い、起動中でなければ一つだけ起動する
+			nextWakeUp.signal(NextCommand.getInstance(), getNextCommandPath());
+		}
+
+		return true;
+	}
+
+	/**
+	 * workerが処理中のものをすべて終えた後、ロック解放前の後始末を行う<br>
+	 * mainスレッドが実行
+	 */
+	void endRound() {
+		try {
+			//ロック内で処理済みファイルの削除を終えておく
+			tombstones.awaitDrained();
+		} catch (InterruptedException e) {
+			logger.warn("interrpted.", e);
+		}
+
+		if (journal != null) compactJournal(0);
+
+		record(speedCounter, roundStartNanos);
+
+		postProcessWithLock();
+	}
+
+	/**
+	 * 処理対象を一件処理する<br>
+	 * workerスレッドが実行
+	 * @param path 処理対象
+	 */
+	void consume(Path path) {
+		consumePath(path, speedCounter);
+	}
+
+	//mainスレッドが実行
+	private TaskExecutor<Path> newExecutor(int concurrency) {
+		TaskExecutor<Path> executor;
+		if (usesVirtualThreads() && VirtualThreads.isAvailable()) {
+			executor = createVirtualThreadExecutor(concurrency, speedCounter);
+		} else {
+			if (usesVirtualThreads()) logger.warn("virtual threads are not available. platform threads are used.");
+
+			executor = createConcurrentExecutor(concurrency, speedCounter);
+		}
+
+		executor.setRateLimiter(rateLimiter, QueueProcess::size);
+		executor.start();
+
+		return executor;
+	}
+
+	/**
+	 * {@link #usesVirtualThreads()}がtrueで、Java 21以降で実行されている場合に使用される<br>
+	 * 仮想スレッドごとにShellを生成するので、DBを使用する場合は処理対象ごとにトランザクションが開始される
+	 * @param concurrency 同時実行数
+	 * @param speedCounter 処理件数
+	 * @return 処理対象ごとに仮想スレッドを生成するTaskExecutor
+	 */
+	protected TaskExecutor<Path> createVirtualThreadExecutor(int concurrency, AtomicLong speedCounter) {
+		return new BoundedExecutor<>(
+			concurrency,
+			path -> consumePath(path, speedCounter),
+			VirtualThreads.newThreadPerTaskExecutor("v-", runnable -> Shell.wrap(this, runnable)),
+			Disposer.logging(logger));
+	}
+
+	protected ConcurrentExecutor<Path> createConcurrentExecutor(int concurrency, AtomicLong speedCounter) {
+		Disposer<Path> disposer = Disposer.logging(logger);
+
+		ThreadFactory threadFactory = Shell.threadFactory(this, "t-");
+
+		int ioConcurrency = getPrefetchConcurrency();
+		if (ioConcurrency > 0) {
+			return new ConcurrentExecutor<>(
+				concurrency,
+				(Path path, ByteBuffer prefetched) -> {
+					prefetchedThreadLocal.set(prefetched);
+					try {
+						consumePath(path, speedCounter);
+					} finally {
+						prefetchedThreadLocal.set(null);
+					}
+				},
+				ioConcurrency,
+				getMaxPrefetchBytes(),
+				new FilePrefetcher(),
+				threadFactory,
+				disposer);
+		}
 
 		return new ConcurrentExecutor<>(
 			concurrency,
 			path -> consumePath(path, speedCounter),
-			runnable -> {
-				Shell shell = new Shell(QueueProcess.this);
-				shell.setRunnable(runnable);
-				return new Thread(shell, "t-" + threadCounter.incrementAndGet());
-			},
+			threadFactory,
 			disposer);
 	}
 
@@ -251,30 +733,173 @@ public abstract class QueueProcess implements ShellClient {
 		return willProcess > maxConcurrency ? maxConcurrency : willProcess;
 	}
 
-	private int count() {
+	//mainスレッドが実行
+	private void resize(int concurrency) {
+		if (concurrency == executor.getConcurrency()) return;
+
+		logger.info("concurrency: " + executor.getConcurrency() + " -> " + concurrency);
+
+		if (!executor.isResizable()) {
+			//worker数を変更できない場合は作り直す
+			executor.shutdown();
+			executor = newExecutor(concurrency);
+			return;
+		}
+
+		try {
+			executor.resize(concurrency);
+		} catch (InterruptedException e) {
+			//ここでは中断せず、呼び出し側の待機処理で中断させる
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void applyRateLimit() {
+		rateLimiter.setItemsPerSecond(getMaxItemsPerSecond());
+		rateLimiter.setBytesPerSecond(getMaxBytesPerSecond());
+	}
+
+	/**
+	 * {@link TaskExecutor}を介さずに処理対象を渡す場合に、流量制限の枠を取得する<br>
+	 * workerスレッドが実行
+	 * @param path 処理対象
+	 * @throws InterruptedException
+	 */
+	void acquire(Path path) throws InterruptedException {
+		rateLimiter.acquire(rateLimiter.limitsBytes() ? size(path) : 0);
+	}
+
+	private static long size(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			//他workerに処理された等で存在しない場合は、制限の対象外とする
+			return 0;
+		}
+	}
+
+	int count() {
 		return countQueueDirectory(getQueueDirectory());
 	}
 
-	private Stream<Path> sorted() {
+	Stream<Path> sorted() {
 		//ディレクトリをオープンしすぎないようにstreamを一旦クローズ
 		try (Stream<Path> stream = stream(getQueueDirectory())) {
 			return stream.sorted(QueueProcess::compareLastModifiedTime).collect(Collectors.toList()).stream();
 		}
 	}
 
+	//処理済みファイルの削除待ち mainスレッドがworker開始前に生成する
+	private volatile Tombstones tombstones;
+
+	//ジャーナルを使用しない場合はnull mainスレッドがworker開始前に生成する
+	private volatile HandoffJournal journal;
+
+	//worker数を自動調整しない場合はnull mainスレッドがworker開始前に生成する
+	private volatile ConcurrencyController controller;
+
+	//次処理が同じプロセス内で常駐していない場合はnull
+	private volatile StageChannel downstream;
+
+	//常駐の終了指示
+	private volatile boolean residingStopped;
+
+	//mainスレッドが実行
+	/**
+	 * 完了した引き渡しの記録は不要なので削除する<br>
+	 * 引き渡しに失敗したものは記録を残し、次回のロック取得時に再実行する<br>
+	 * workerが処理中のものがない状態で、mainスレッドが実行
+	 * @param threshold ジャーナルがこの大きさ以上の場合のみ行う
+	 */
+	private void compactJournal(long threshold) {
+		try {
+			if (journal.size() < threshold) return;
+
+			int remaining = journal.compact();
+			if (remaining > 0) logger.warn(remaining + " handoffs are not completed. they will be retried.");
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void recoverJournal() {
+		if (journal == null) journal = new HandoffJournal(getQueueDirectory(), stagingOwner());
+
+		Runnable recovery = () -> {
+			try {
+				int recovered = journal.recover(this::isCommitted);
+				if (recovered > 0) logger.warn("recovered " + recovered + " handoffs from journal.");
+			} catch (IOException e) {
+				throw handleIOException(e);
+			}
+		};
+
+		//isCommittedでDBを参照できるように
+		if (usesDatabase()) {
+			Shell.executeInTransaction(recovery);
+		} else {
+			recovery.run();
+		}
+	}
+
+	//mainスレッドが実行
+	private void sweepStagedOutputs() {
+		try {
+			int swept = StagedOutput.sweep(getNextCommandQueueDirectory(), stagingOwner());
+			if (swept > 0) logger.warn("removed " + swept + " stale staged outputs.");
+		} catch (IOException e) {
+			throw handleIOException(e);
+		}
+	}
+
+	private String stagingOwner() {
+		if (stagingOwner == null) stagingOwner = StagedOutput.ownerOf(getLockDirectory());
+		return stagingOwner;
+	}
+
+	//次処理への出力の一時ファイル名に含める、自処理を表す名前
+	private volatile String stagingOwner;
+
 	//mainスレッドしか使用しないこと
 	private Path speedFile;
 
+	//mainスレッドしか使用しないこと
+	private long roundStartNanos;
+
+	//mainスレッドしか使用しないこと
+	private long roundStartTimeouts;
+
+	//mainスレッドしか使用しないこと
+	private long roundStartStalledNanos;
+
+	//mainスレッドしか使用しないこと
+	private WakeUp wakeUp;
+
+	//mainスレッドしか使用しないこと
+	private WakeUp nextWakeUp;
+
 	//mainスレッドが実行
 	//ファイル書き込みが発生するので、ロック内で実行
 	private void record(AtomicLong speedCounter, long startNanos) {
 		long nanos = System.nanoTime() - startNanos;
 		if (speedFile == null) {
-			speedFile = Shell.resourceManager().resolvePath(Shell.config().getAssessmentDirectory()).resolve(getSpeedFileName());
+			speedFile = Shell.config().getAssessmentDirectory().resolve(getSpeedFileName());
 		}
 
 		try {
 			Files.write(speedFile, (speedCounter.get() + " " + nanos).getBytes());
+
+			//外部コマンドのタイムアウトで処理が止まっていた件数と時間
+			//ProcessLauncherはプロセス全体で共有なので、同じプロセス内の他の処理のものも含まれる
+			//タイムアウトがなかった場合は、以前の記録を残さないよう削除する
+			Path stalledFile = speedFile.resolveSibling(getSpeedFileName() + ".stalled");
+			long timeouts = ProcessLauncher.timeouts() - roundStartTimeouts;
+			if (timeouts > 0) {
+				long stalledNanos = ProcessLauncher.stalledNanos() - roundStartStalledNanos;
+				Files.write(stalledFile, (timeouts + " " + stalledNanos).getBytes());
+			} else {
+				Files.deleteIfExists(stalledFile);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -284,6 +909,8 @@ public abstract class QueueProcess implements ShellClient {
 	private static Stream<Path> stream(Path queue) {
 		try {
 			return Files.list(queue)
+				//次処理への出力途中のファイル等、フレームワークが作成したものは対象外
+				.filter(f -> !isControlFile(f))
 				.filter(QueueProcess::isNotSkippedErrorFile)
 				.filter(f -> !Files.isDirectory(f));
 		} catch (IOException e) {
@@ -291,33 +918,101 @@ public abstract class QueueProcess implements ShellClient {
 		}
 	}
 
-	private static ThreadLocal<Path> halt = new ThreadLocal<>();
+	static boolean halted() {
+		//設定の変更を反映するため、都度取得する
+		return Files.exists(Shell.config().getHaltFile());
+	}
 
-	private static boolean halted() {
-		Path path = halt.get();
-		if (path == null) {
-			path = Shell.resourceManager().resolvePath(Shell.config().getHaltFile());
-			halt.set(path);
-		}
+	private Handoff invokeProcess(Path path) {
+		List<StagedOutput> outputs = stagedOutputsThreadLocal.get();
+		String id = UUID.randomUUID().toString();
+		handoffIdThreadLocal.set(id);
+		try {
+			Handoff handoff;
+			if (usesDatabase()) {
+				BTransaction transaction = Shell.transaction();
+				handoff = null;
+				try {
+					handoff = prepareHandoff(id, path, process(path), outputs);
+					//一件処理するごとにcommit
+					transaction.commit();
+				} catch (Throwable t) {
+					//エラー発生時はここでロールバック
+					transaction.rollback();
+					if (handoff != null) rolledBack(handoff);
+					throw t;
+				}
+			} else {
+				handoff = prepareHandoff(id, path, process(path), outputs);
+			}
+
+			committed(handoff);
 
-		return Files.exists(path);
+			//次処理への出力は、引き渡し処理で公開される
+			outputs.clear();
+
+			return handoff;
+		} catch (Throwable t) {
+			//公開されなかったものは破棄
+			outputs.forEach(StagedOutput::discard);
+			outputs.clear();
+			throw t;
+		} finally {
+			handoffIdThreadLocal.set(null);
+		}
 	}
 
-	private Path invokeProcess(Path path) {
-		if (usesDatabase()) {
-			BTransaction transaction = Shell.transaction();
-			try {
-				Path result = process(path);
-				//一件処理するごとにcommit
-				transaction.commit();
-				return result;
-			} catch (Throwable t) {
-				//エラー発生時はここでロールバック
-				transaction.rollback();
-				throw t;
+	/**
+	 * 処理が確定した後に行う、ファイルの引き渡し処理を作成し、ジャーナルに記録する
+	 */
+	private Handoff prepareHandoff(String id, Path input, Path result, List<StagedOutput> outputs) {
+		List<Rename> renames = new LinkedList<>();
+		try {
+			for (StagedOutput output : outputs) {
+				output.seal();
+				renames.add(new Rename(output.temporary(), output.destination()));
 			}
-		} else {
-			return process(path);
+
+			boolean inputMoved = false;
+			if (hasNext() && result != null) {
+				//次処理にファイルを引き継ぐ場合、移動
+				renames.add(new Rename(result, nextQueueFile(getNextCommandQueueDirectory().toString())));
+				inputMoved = result.equals(input);
+			}
+
+			//上で移動したファイルが元のファイルと違う場合もある
+			//そのまま残すと次も処理対象となるので削除待ちにする
+			if (!inputMoved) renames.add(new Rename(input, tombstones.tombstoneOf(input)));
+
+			Handoff handoff = new Handoff(id, stagingOwner(), renames);
+
+			if (journal != null) journal.intent(handoff);
+
+			return handoff;
+		} catch (IOException e) {
+			//呼び出し側でエラーとして処理される
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void committed(Handoff handoff) {
+		if (journal == null) return;
+
+		try {
+			journal.committed(handoff);
+		} catch (IOException e) {
+			//commit済みなので処理は続行する
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void rolledBack(Handoff handoff) {
+		if (journal == null) return;
+
+		try {
+			journal.rolledBack(handoff);
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
 		}
 	}
 
@@ -329,9 +1024,11 @@ public abstract class QueueProcess implements ShellClient {
 			return;
 		}
 
-		Path moveToNextFile;
+		long startNanos = System.nanoTime();
+
+		Handoff handoff;
 		try {
-			moveToNextFile = invokeProcess(f);
+			handoff = invokeProcess(f);
 		} catch (Skip s) {
 			//スキップされた処理対象は、次回も処理対象とするため、ここでは何もしない
 			return;
@@ -359,7 +1056,7 @@ public abstract class QueueProcess implements ShellClient {
 
 			//例外の発生は報告するが、throwして処理を中断することはしない
 			logger.error(message, t);
-			Shell.sendSystemErrorMail(t);
+			Shell.notifySystemError(t);
 
 			//エラーが発生した場合、処理対象はリネームされているので以降の処理は行わない
 			return;
@@ -368,42 +1065,53 @@ public abstract class QueueProcess implements ShellClient {
 		//正常に処理できた場合のみカウントアップ
 		speedCounter.incrementAndGet();
 
-		if (hasNext() && moveToNextFile != null) {
-			//次処理にファイルを引き継ぐ場合、移動
-			move(moveToNextFile, getNextCommandQueueDirectory().toString());
-		}
+		ConcurrencyController controller = this.controller;
+		if (controller != null) controller.record(System.nanoTime() - startNanos);
 
 		try {
-			//上で移動したファイルが元のファイルと違う場合もある
-			//そのまま残すと次も処理対象となるので削除する
-			if (Files.exists(f)) Files.delete(f);
+			//次処理への出力の公開、次処理へのファイルの移動、処理対象の削除待ちへの移動を行う
+			handoff.complete();
+
+			if (journal != null) journal.done(handoff);
 		} catch (IOException e) {
 			throw handleIOException(e);
 		}
+
+		StageChannel downstream = this.downstream;
+		if (downstream != null) {
+			Path nextQueue = getNextCommandQueueDirectory();
+			handoff.renames().stream()
+				.map(Rename::target)
+				.filter(target -> nextQueue.equals(target.getParent()))
+				.forEach(downstream::offer);
+		}
+
+		//削除自体はバックグラウンドで行う
+		handoff.renames().stream()
+			.map(Rename::target)
+			.filter(tombstones::isTombstone)
+			.forEach(tombstones::add);
 	}
 
-	private static Path move(Path targetFile, String moveToDirectory) {
+	private static Path nextQueueFile(String moveToDirectory) {
 		Path moveTo;
 		do {
 			moveTo = Paths.get(moveToDirectory, System.currentTimeMillis() + "." + UUID.randomUUID().toString());
 		} while (Files.exists(moveTo));
 
-		//ファイルを移動し、次工程が使用できるようにする
-		try {
-			Files.move(targetFile, moveTo);
-		} catch (IOException e) {
-			throw handleIOException(e);
-		}
-
 		return moveTo;
 	}
 
 	private static RuntimeException handleIOException(IOException e) {
 		logger.error("想定外のエラーが発生しました", e);
-		Shell.sendSystemErrorMail(e);
+		Shell.notifySystemError(e);
 		return new RuntimeException(e);
 	}
 
+	private static boolean isControlFile(Path path) {
+		return StagedOutput.isTemporary(path) || HandoffJournal.isJournalFile(path) || WakeUp.isControlFile(path);
+	}
+
 	private static final Pattern skippedErrorFilePattern = Pattern.compile("\\.ERROR\\.\\d{14}$");
 
 	private static boolean isNotSkippedErrorFile(Path path) {
@@ -0,0 +1,141 @@
+package jp.ats.relay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * トークンバケット方式で、処理件数と処理バイト数の流量を制限する<br>
+ * 一つのインスタンスを全workerで共有することで、worker数に関係なく全体の流量を制限する<br>
+ * 制限値は実行中に変更可能
+ */
+public class RateLimiter {
+
+	/**
+	 * バケットに溜めておける量（秒数分）
+	 */
+	private static final double BURST_SECONDS = 1;
+
+	private final Bucket items = new Bucket();
+
+	private final Bucket bytes = new Bucket();
+
+	/**
+	 * 制限なしのインスタンスを生成する
+	 */
+	public RateLimiter() {}
+
+	/**
+	 * @param itemsPerSecond 1秒あたりの最大処理件数（0以下の場合は無制限）
+	 * @param bytesPerSecond 1秒あたりの最大処理バイト数（0以下の場合は無制限）
+	 */
+	public RateLimiter(double itemsPerSecond, long bytesPerSecond) {
+		setItemsPerSecond(itemsPerSecond);
+		setBytesPerSecond(bytesPerSecond);
+	}
+
+	/**
+	 * @param itemsPerSecond 1秒あたりの最大処理件数（0以下の場合は無制限）
+	 */
+	public void setItemsPerSecond(double itemsPerSecond) {
+		items.setRate(itemsPerSecond, System.nanoTime());
+	}
+
+	/**
+	 * @param bytesPerSecond 1秒あたりの最大処理バイト数（0以下の場合は無制限）
+	 */
+	public void setBytesPerSecond(long bytesPerSecond) {
+		bytes.setRate(bytesPerSecond, System.nanoTime());
+	}
+
+	/**
+	 * @return 処理件数の制限が有効かどうか
+	 */
+	public boolean limitsItems() {
+		return items.limited();
+	}
+
+	/**
+	 * @return 処理バイト数の制限が有効かどうか
+	 */
+	public boolean limitsBytes() {
+		return bytes.limited();
+	}
+
+	/**
+	 * 一件分の処理枠を取得する<br>
+	 * 枠が空くまで呼び出しスレッドを停止する
+	 * @param size 処理対象のバイト数
+	 * @throws InterruptedException
+	 */
+	public void acquire(long size) throws InterruptedException {
+		long waitNanos = reserve(size, System.nanoTime());
+		if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	/**
+	 * 一件分の処理枠を取得する
+	 * @param size 処理対象のバイト数
+	 * @param now 現在時刻（{@link System#nanoTime()}）
+	 * @return 取得した枠が使用可能になるまでの待ちナノ秒
+	 */
+	long reserve(long size, long now) {
+		return Math.max(items.reserve(1, now), bytes.reserve(size, now));
+	}
+
+	private static class Bucket {
+
+		//0以下は無制限
+		private double rate;
+
+		//負の場合は、先取りした分の借り
+		private double available;
+
+		private long lastNanos;
+
+		private synchronized boolean limited() {
+			return rate > 0;
+		}
+
+		private synchronized void setRate(double rate, long now) {
+			//変更前の流量でここまでの分を補充しておく
+			refill(now);
+
+			boolean wasLimited = this.rate > 0;
+			this.rate = rate;
+
+			if (rate <= 0) return;
+
+			//制限なしから制限ありに変わった場合は満杯から開始
+			available = wasLimited ? Math.min(available, capacity()) : capacity();
+		}
+
+		/**
+		 * @return 取得した枠が使用可能になるまでの待ちナノ秒
+		 */
+		private synchronized long reserve(long permits, long now) {
+			if (rate <= 0) return 0;
+
+			refill(now);
+
+			//足りない分は借りとし、後続のスレッドはその分も待つことになる
+			available -= permits;
+
+			if (available >= 0) return 0;
+
+			return (long) (-available / rate * TimeUnit.SECONDS.toNanos(1));
+		}
+
+		private void refill(long now) {
+			if (rate > 0) {
+				double elapsedSeconds = (now - lastNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+				available = Math.min(capacity(), available + elapsedSeconds * rate);
+			}
+
+			lastNanos = now;
+		}
+
+		private double capacity() {
+			//最低でも1件分は溜められるように
+			return Math.max(rate * BURST_SECONDS, 1);
+		}
+	}
+}
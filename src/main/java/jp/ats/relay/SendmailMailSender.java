@@ -0,0 +1,97 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * {@link Config#getMailSendCommand()}でメールを送信する<br>
+ * メール一通につき、TO、CC、BCCすべての宛先を指定して一度だけ起動する<br>
+ * 複数のメールは並行して送信され、同時に起動する数は{@link Config#getMaxChildProcesses()}に制限される
+ */
+@ThreadSafe
+public class SendmailMailSender implements MailSender {
+
+	@Override
+	public List<MailResult> send(List<MailBuilder> mails) throws InterruptedException {
+		Config config = Shell.config();
+		CommandExecutor executor = CommandExecutor.getInstance();
+
+		//メールを組み立てるスレッドが、起動を待つメールの分まで作られないように
+		Semaphore permits = new Semaphore(config.getMaxChildProcesses());
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>(mails.size());
+		for (MailBuilder mail : mails) {
+			permits.acquire();
+
+			CompletableFuture<Void> future;
+			InputStream input = null;
+			try {
+				String[] command = command(config.getMailSendCommand(), mail);
+				input = mail.newInputStream();
+				future = executor.executeAsync(b -> b.command(command), input, MailBuilder.CHARSET)
+					.thenApply(lines -> null);
+			} catch (Exception e) {
+				future = new CompletableFuture<>();
+				future.completeExceptionally(e);
+			}
+
+			InputStream sent = input;
+			futures.add(future.whenComplete((v, t) -> {
+				permits.release();
+				close(sent);
+			}));
+		}
+
+		List<MailResult> results = new ArrayList<>(mails.size());
+		for (int i = 0; i < mails.size(); i++) {
+			results.add(new MailResult(mails.get(i), error(futures.get(i))));
+		}
+
+		return results;
+	}
+
+	private static String[] command(String sendCommand, MailBuilder mail) {
+		InternetAddress from = mail.getFrom();
+		if (from == null) throw new IllegalStateException("from is not set.");
+
+		List<String> recipients = new LinkedList<>();
+		mail.getRecipients().forEach(address -> recipients.add(address.getAddress()));
+
+		if (recipients.isEmpty()) throw new IllegalStateException("no recipients.");
+
+		List<String> command = new LinkedList<>();
+		for (String element : CommandExecutor.prepareCommand(sendCommand)) {
+			command.add(element);
+		}
+
+		command.add(from.getAddress());
+		command.addAll(recipients);
+
+		return command.toArray(new String[command.size()]);
+	}
+
+	private static Throwable error(CompletableFuture<Void> future) throws InterruptedException {
+		try {
+			future.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	private static void close(InputStream input) {
+		if (input == null) return;
+
+		try {
+			input.close();
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,380 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+
+/**
+ * 複数の{@link QueueProcess}を一つのプロセス内で実行し、workerを共有させる<br>
+ * 起動パラメータに、実行する{@link QueueProcess}の実装クラス名を列挙する<br>
+ * worker数は、各処理の残件数に比例して配分され、処理対象を取り出す割合もそれに従う<br>
+ * 各処理に配分されるworker数は{@link QueueProcess#getMinShare()}以上、{@link QueueProcess#getMaxConcurrency()}以下となる<br>
+ * 配分は処理対象を取り出すごとにやり直し、その時点で処理対象が置かれている処理のロックを追加で取得する<br>
+ * 各処理のロックは、この中で処理している間取得しておくので、単独で起動された同じ処理と同時に実行されることはない
+ */
+public class SharedWorkerRuntime implements ShellClient {
+
+	//ロック内で使用するロガー
+	private static final Logger logger = LogManager.getLogger(SharedWorkerRuntime.class.getName());
+
+	//配分一回で、配分されたworker一つあたりに渡す処理対象の数
+	private static final int QUANTUM = 16;
+
+	private List<Stage> stages;
+
+	@Override
+	public void execute() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean usesDatabase() {
+		//workerはすべての処理で共有するので、一つでもDBを使用する場合は全workerでトランザクションを用意する
+		return stages().stream().anyMatch(s -> s.process.usesDatabase());
+	}
+
+	/**
+	 * @return 全処理で共有するworker数
+	 */
+	protected int getWorkerCount() {
+		return Shell.config().getSharedWorkerCount();
+	}
+
+	@Override
+	public void start() {
+		int workers = getWorkerCount();
+
+		ConcurrentExecutor<Item> executor = new ConcurrentExecutor<>(
+			workers,
+			Item::consume,
+			Shell.threadFactory(this, "s-"),
+			Disposer.logging(logger));
+		executor.start();
+		try {
+			//ロックして全件処理中に、前処理がファイルを置いた場合に備えてループ
+			while (true) {
+				//対象ファイルの取得は、ロック解放状態でやらなければならない
+				List<Stage> locked = new LinkedList<>();
+				lock(locked);
+
+				//他プロセスが処理中か、処理対象が残っていない
+				if (locked.isEmpty()) return;
+
+				try {
+					/*
+					 * !!注意!!
+					 * ロック外は複数プロセスが実行している可能性がある
+					 * 複数プロセスからログ出力を行うと、ログファイルが破壊されてしまうので
+					 * ロックを取得したこの中でのみログ出力を行うこと
+					 */
+					if (!processWithLock(locked, executor, workers)) return;
+				} finally {
+					unlock(locked);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private List<Stage> stages() {
+		if (stages == null) {
+			stages = Arrays.stream(Shell.args())
+				.map(className -> new Stage(Shell.<QueueProcess> newInstance(className)))
+				.collect(Collectors.toList());
+		}
+
+		return stages;
+	}
+
+	//ロックしていない処理のうち、処理対象が残っている処理のロックを取得し、取得できたものを追加する
+	//取得できたものがあった場合true
+	private boolean lock(List<Stage> locked) {
+		boolean added = false;
+		for (Stage stage : stages()) {
+			if (locked.contains(stage) || !stage.process.hasWork()) continue;
+
+			try {
+				//既にロックが取得されていた場合、その処理は他プロセスにまかせる
+				if (stage.process.lock()) {
+					locked.add(stage);
+					added = true;
+				}
+			} catch (IOException e) {
+				//ロック外なのでShellのLoggerを使用
+				Shell.handleException(e);
+			}
+		}
+
+		return added;
+	}
+
+	private static void unlock(List<Stage> locked) {
+		locked.forEach(stage -> {
+			try {
+				stage.process.unlock();
+			} catch (IOException e) {
+				//ロック外なのでShellのLoggerを使用
+				Shell.handleException(e);
+			}
+		});
+	}
+
+	//ロック中に行う処理
+	//配分の途中でロックを追加した処理も、lockedに追加され、呼び出し側で解放される
+	private boolean processWithLock(List<Stage> locked, ConcurrentExecutor<Item> executor, int workers) {
+		List<Stage> begun = new LinkedList<>();
+		locked.forEach(stage -> {
+			stage.process.beginRound();
+			begun.add(stage);
+		});
+
+		Runnable interval = () -> begun.forEach(stage -> stage.process.interval());
+
+		try {
+			while (true) {
+				if (QueueProcess.halted()) {
+					logger.warn("process halted.");
+					//処理を中断
+					return false;
+				}
+
+				//開始時に処理対象がなかった処理にも、置かれ次第配分する
+				if (lock(locked)) {
+					locked.stream().filter(stage -> !begun.contains(stage)).forEach(stage -> {
+						stage.process.beginRound();
+						begun.add(stage);
+					});
+				}
+
+				int[] backlogs = locked.stream().mapToInt(stage -> stage.process.count()).toArray();
+
+				//ロックしたすべての処理の処理対象がなくなった
+				if (Arrays.stream(backlogs).sum() == 0) break;
+
+				int[] shares = shares(
+					backlogs,
+					locked.stream().mapToInt(stage -> stage.process.getMinShare()).toArray(),
+					locked.stream().mapToInt(stage -> stage.process.getMaxConcurrency()).toArray(),
+					workers);
+
+				for (int i = 0; i < shares.length; i++) {
+					locked.get(i).share(shares[i]);
+				}
+
+				logger.info("shares: " + locked.stream().map(Stage::toString).collect(Collectors.joining(", ")));
+
+				//指定数ずつ処理していき、その間隔で次処理を起動し、プロセスの多重起動を避ける
+				executor.execute(interleave(locked, shares).stream(), QueueProcess.chunkCount, interval);
+
+				//今回配分した処理対象がすべて完了するまでwait
+				executor.waitUntilDrained();
+
+				locked.forEach(Stage::reportDeferred);
+
+				interval.run();
+			}
+		} catch (InterruptedException e) {
+			logger.warn("interrpted.", e);
+		} finally {
+			try {
+				//workerは停止させずに、処理中のものが終わるのを待つ
+				executor.waitUntilDrained();
+			} catch (InterruptedException e) {
+				logger.warn("interrpted.", e);
+			}
+
+			begun.forEach(stage -> stage.process.endRound());
+		}
+
+		//処理を続行
+		return true;
+	}
+
+	/**
+	 * 残件数に比例してworkerを配分する<br>
+	 * 残件数のない処理には配分せず、それ以外は最小値以上、最大値以下、残件数以下とする<br>
+	 * 最小値の合計がworker数を超える場合は、worker数を超えて配分する
+	 * @param backlogs 各処理の残件数
+	 * @param mins 各処理の最小配分数
+	 * @param maxs 各処理の最大配分数
+	 * @param workers worker数
+	 * @return 各処理への配分数
+	 */
+	static int[] shares(int[] backlogs, int[] mins, int[] maxs, int workers) {
+		int length = backlogs.length;
+
+		int[] shares = new int[length];
+		int[] limits = new int[length];
+
+		long total = Arrays.stream(backlogs).asLongStream().sum();
+
+		int assigned = 0;
+		for (int i = 0; i < length; i++) {
+			if (backlogs[i] == 0) continue;
+
+			//最低1はあるように
+			limits[i] = Math.max(1, Math.min(maxs[i], backlogs[i]));
+
+			int proportional = (int) (workers * backlogs[i] / total);
+			shares[i] = Math.min(limits[i], Math.max(Math.max(mins[i], 1), proportional));
+
+			assigned += shares[i];
+		}
+
+		//最小値を確保したことでworker数を超えた分を、配分数あたりの残件数が最も少ない処理から順に戻す
+		for (; assigned > workers; assigned--) {
+			int target = -1;
+			double min = Double.MAX_VALUE;
+			for (int i = 0; i < length; i++) {
+				if (shares[i] <= Math.max(mins[i], 1)) continue;
+
+				double pressure = backlogs[i] / (double) shares[i];
+				if (pressure < min) {
+					min = pressure;
+					target = i;
+				}
+			}
+
+			//すべての処理が最小値
+			if (target == -1) break;
+
+			shares[target]--;
+		}
+
+		//端数で余ったworkerを、配分数あたりの残件数が最も多い処理から順に配分する
+		for (; assigned < workers; assigned++) {
+			int target = -1;
+			double max = 0;
+			for (int i = 0; i < length; i++) {
+				if (shares[i] >= limits[i]) continue;
+
+				double pressure = backlogs[i] / (double) (shares[i] + 1);
+				if (pressure > max) {
+					max = pressure;
+					target = i;
+				}
+			}
+
+			//すべての処理が上限に達した
+			if (target == -1) break;
+
+			shares[target]++;
+		}
+
+		return shares;
+	}
+
+	//配分数の割合で、各処理の処理対象を交互に並べる
+	private static List<Item> interleave(List<Stage> locked, int[] shares) {
+		List<Iterator<Path>> iterators = new ArrayList<>(locked.size());
+		for (int i = 0; i < shares.length; i++) {
+			iterators.add(locked.get(i).process.sorted().limit((long) shares[i] * QUANTUM).iterator());
+		}
+
+		List<Item> items = new LinkedList<>();
+		boolean remains = true;
+		while (remains) {
+			remains = false;
+			for (int i = 0; i < shares.length; i++) {
+				Iterator<Path> iterator = iterators.get(i);
+				for (int j = 0; j < shares[i] && iterator.hasNext(); j++) {
+					items.add(new Item(locked.get(i), iterator.next()));
+				}
+
+				remains |= iterator.hasNext();
+			}
+		}
+
+		return Collections.unmodifiableList(items);
+	}
+
+	private static class Stage {
+
+		private final QueueProcess process;
+
+		//配分数を超えて同時に処理しないように
+		private final Semaphore permits = new Semaphore(0);
+
+		//配分数を超えたため、今回の配分では処理せずに残したものの数
+		private final AtomicInteger deferred = new AtomicInteger(0);
+
+		private int share;
+
+		private Stage(QueueProcess process) {
+			this.process = process;
+		}
+
+		//mainスレッドが実行
+		//前回配分の処理対象はすべて完了しているので、許可数は配分数と一致している
+		private void share(int share) {
+			if (share > this.share) {
+				permits.release(share - this.share);
+			} else if (share < this.share) {
+				permits.acquireUninterruptibly(this.share - share);
+			}
+
+			this.share = share;
+		}
+
+		//mainスレッドが実行
+		private void reportDeferred() {
+			int count = deferred.getAndSet(0);
+			if (count > 0) logger.debug(process.getClass().getSimpleName() + ": " + count + " items deferred.");
+		}
+
+		@Override
+		public String toString() {
+			return process.getClass().getSimpleName() + "=" + share;
+		}
+	}
+
+	private static class Item {
+
+		private final Stage stage;
+
+		private final Path path;
+
+		private Item(Stage stage, Path path) {
+			this.stage = stage;
+			this.path = path;
+		}
+
+		//workerスレッドが実行
+		private void consume() {
+			//配分数分のworkerが処理中の場合、空くのを待つと共有workerを塞いでしまうので、処理せずに次の配分にまわす
+			//処理対象はキューディレクトリに残っているので、次の配分で再度取り出される
+			if (!stage.permits.tryAcquire()) {
+				stage.deferred.incrementAndGet();
+				return;
+			}
+
+			try {
+				stage.process.acquire(path);
+				stage.process.consume(path);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} finally {
+				stage.permits.release();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return path.toString();
+		}
+	}
+}
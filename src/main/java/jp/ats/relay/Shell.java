@@ -1,18 +1,23 @@
 package jp.ats.relay;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
-import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.MessagingException;
 
@@ -35,9 +40,17 @@ public class Shell implements Runnable {
 
 	private static final ThreadLocal<ResourceManager> resourceManagerThreadLocal = new ThreadLocal<>();
 
-	private static final ThreadLocal<Config> configThreadLocal = new ThreadLocal<>();
+	//スレッドごとの、変更可能な設定ファイルの内容
+	private static final ThreadLocal<Map<String, ConfigCopy>> configCopiesThreadLocal = ThreadLocal.withInitial(HashMap::new);
 
-	private static final ThreadLocal<Map<String, Properties>> configMapThreadLocal = ThreadLocal.withInitial(() -> new HashMap<>());
+	//スレッド名の接頭辞ごとの連番
+	private static final Map<String, AtomicInteger> threadCounters = new ConcurrentHashMap<>();
+
+	//プロセスの終了時に実行する処理 登録と逆の順番
+	private static final Deque<Runnable> shutdownTasks = new ConcurrentLinkedDeque<>();
+
+	//終了時に行う処理が必要になった時点で登録する
+	private static final AtomicBoolean shutdownHookAdded = new AtomicBoolean(false);
 
 	private final Runnable shell;
 
@@ -46,13 +59,11 @@ public class Shell implements Runnable {
 	public Shell(ShellClient client) {
 		String[] args = argsThreadLocal.get().clone();
 		ResourceManager manager = resourceManagerThreadLocal.get();
-		Config config = configThreadLocal.get();
 		shell = () -> {
 			preparePid();
 
 			argsThreadLocal.set(args);
 			resourceManagerThreadLocal.set(manager);
-			configThreadLocal.set(config);
 			try {
 				if (client.usesDatabase()) {
 					executeWithDatabase(manager);
@@ -60,7 +71,7 @@ public class Shell implements Runnable {
 					executeWithoutDatabase();
 				}
 			} finally {
-				configThreadLocal.set(null);
+				configCopiesThreadLocal.remove();
 				resourceManagerThreadLocal.set(null);
 				argsThreadLocal.set(null);
 			}
@@ -77,7 +88,84 @@ public class Shell implements Runnable {
 	}
 
 	/**
-	 * Clientを実行可能になるように準備し、実行します。
+	 * clientの処理をShell上で実行するスレッドを生成するThreadFactoryを返す<br>
+	 * Shellは生成したスレッド（main）の起動パラメータ、設定を引き継ぐ<br>
+	 * 生成されたスレッドは処理を繰り返し実行するので、{@link BufferPool}の自分用のバッファを保持する
+	 * @param client 実行する処理
+	 * @param namePrefix スレッド名の接頭辞 同じ接頭辞のスレッドには、プロセス内で通しの番号が付く
+	 * @return ThreadFactory
+	 */
+	static ThreadFactory threadFactory(ShellClient client, String namePrefix) {
+		AtomicInteger counter = threadCounters.computeIfAbsent(namePrefix, prefix -> new AtomicInteger(0));
+		return runnable -> new Thread(wrap(client, () -> {
+			BufferPool.registerCurrentThread();
+			runnable.run();
+		}), namePrefix + counter.incrementAndGet());
+	}
+
+	/**
+	 * プロセスの終了時に実行する処理を登録する<br>
+	 * 登録と逆の順番に、一つのスレッドで順に実行される<br>
+	 * 送信待ちのシステムエラーの通知は、登録された処理より先に送信される
+	 * @param task 終了時に実行する処理
+	 */
+	static void onShutdown(Runnable task) {
+		addShutdownHook();
+		shutdownTasks.addFirst(task);
+	}
+
+	/**
+	 * プロセスの終了時に、送信待ちのシステムエラーの通知と、{@link #onShutdown(Runnable)}で登録された処理を実行するようにする<br>
+	 * Shellを使用するだけで終了時のスレッドが登録されないよう、{@link ErrorNotifier}の生成時と、終了時の処理の登録時に呼び出す
+	 */
+	static void addShutdownHook() {
+		if (!shutdownHookAdded.compareAndSet(false, true)) return;
+
+		try {
+			//ShutdownHookはそれぞれ別スレッドで同時に実行されるので、順番が必要な処理は一つのShutdownHookで実行する
+			Runtime.getRuntime().addShutdownHook(new Thread(Shell::shutdown, "relay-shutdown"));
+		} catch (IllegalStateException e) {
+			//既に終了処理中
+		}
+	}
+
+	/**
+	 * @return {@link #addShutdownHook()}で登録済みの場合true（テスト用）
+	 */
+	static boolean shutdownHookAdded() {
+		return shutdownHookAdded.get();
+	}
+
+	private static void shutdown() {
+		//通知の送信に使用する接続等が閉じられる前に送信する
+		ErrorNotifier.flush();
+
+		for (Runnable task : shutdownTasks) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				//残りの処理は続ける
+				SHELL_LOGGER.error(t.getMessage(), t);
+			}
+		}
+	}
+
+	/**
+	 * runnableを、clientのShell上で実行する処理に変換する<br>
+	 * Shellは変換したスレッドの起動パラメータ、設定を引き継ぐ
+	 * @param client 実行する処理
+	 * @param runnable 処理
+	 * @return Shell
+	 */
+	static Shell wrap(ShellClient client, Runnable runnable) {
+		Shell shell = new Shell(client);
+		shell.setRunnable(runnable);
+		return shell;
+	}
+
+	/**
+	 * Clientを実行可能になるように準備し、実行します。<br>
+	 * 起動パラメータ、設定は実行中のみスレッドに保持され、終了後に除去されるので、同じスレッドで続けて別のClientを実行できます。
 	 * @param args 起動パラメータ
 	 * @param manager
 	 * @param client
@@ -87,52 +175,77 @@ public class Shell implements Runnable {
 
 		argsThreadLocal.set(args);
 		resourceManagerThreadLocal.set(manager);
-		configThreadLocal.set(new Config());
 
 		try {
+			//設定の誤りを、処理の途中ではなく起動時に検出する
+			Config config = config();
+			InstanceFactories.validate(config.getNextCommandClass(), NextCommand.class);
+			InstanceFactories.validate(config.getCommandExecutorClass(), CommandExecutor.class);
+			InstanceFactories.validate(config.getMailSenderClass(), MailSender.class);
+
+			//workerスレッドが個別に初期化しないよう、起動時に一度だけ初期化しておく
+			if (client.usesDatabase()) startDatabase(manager);
+
 			client.start();
 		} catch (Exception e) {
 			handleException(e);
+		} finally {
+			//CommandServerのスレッドは使い回されるので、次の起動依頼に持ち越さない
+			configCopiesThreadLocal.remove();
+			resourceManagerThreadLocal.set(null);
+			argsThreadLocal.set(null);
 		}
 	}
 
 	public static void handleException(Exception e) {
 		SHELL_LOGGER.error(e.getMessage(), e);
 
+		notifySystemError(e);
+	}
+
+	/**
+	 * システムエラーの通知メールを、バックグラウンドで送信する<br>
+	 * 呼び出し側は送信を待たず、同じ原因の通知は一定間隔でまとめて送信される
+	 * @param throwable 通知する例外
+	 */
+	public static void notifySystemError(Throwable throwable) {
 		try {
-			sendSystemErrorMail(e);
-		} catch (Exception ee) {
-			SHELL_LOGGER.error(ee.getMessage(), ee);
+			ErrorNotifier.notify(throwable);
+		} catch (Exception e) {
+			SHELL_LOGGER.error(e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * 設定ファイルの内容を返す<br>
+	 * 設定ファイルはプロセス内で一度だけ読み込まれ、全スレッドで共有される<br>
+	 * 返されるPropertiesは呼び出したスレッド専用の複製で、変更は同じスレッドでの以降の呼び出しにのみ反映される<br>
+	 * 設定ファイルが変更された場合、以降の呼び出しでは変更後の内容が返され、それまでに行った変更は破棄される
+	 * @param resourceName 設定ファイル
+	 * @return 設定ファイルの内容
+	 */
 	public static Properties config(String resourceName) {
-		Map<String, Properties> map = configMapThreadLocal.get();
-		Properties config = map.get(resourceName);
-		if (config == null) {
-			try (InputStream input = resourceManager().load(resourceName)) {
-				config = new Properties();
-				config.load(new InputStreamReader(input, StandardCharsets.UTF_8));
-				map.put(resourceName, config);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		Properties snapshot = ConfigCache.properties(resourceManager(), resourceName);
+
+		Map<String, ConfigCopy> copies = configCopiesThreadLocal.get();
+		ConfigCopy copy = copies.get(resourceName);
+		if (copy == null || copy.snapshot != snapshot) {
+			copy = new ConfigCopy(snapshot);
+			copies.put(resourceName, copy);
 		}
 
-		return config;
+		return copy.properties;
 	}
 
+	/**
+	 * クラス名からインスタンスを生成する<br>
+	 * クラスの検索とコンストラクタの取得はクラスごとに一度だけ行われる<br>
+	 * {@link ThreadSafe}が付与されたクラスは、毎回同じインスタンスを返す
+	 * @param className クラス名
+	 * @return インスタンス
+	 */
 	public static <T> T newInstance(String className) {
-		try {
-			Class<?> clazz = Class.forName(className);
-
-			@SuppressWarnings("unchecked")
-			T instance = (T) clazz.getConstructor().newInstance();
-
-			return instance;
-		} catch (Exception e) {
-			throw new IllegalStateException(e);
-		}
+		return InstanceFactories.<T> factory(className).get();
 	}
 
 	private static void preparePid() {
@@ -146,11 +259,25 @@ public class Shell implements Runnable {
 		ThreadContext.put("PID", pid);
 	}
 
-	private static Object lock = new Object();
+	private static final Object lock = new Object();
+
+	//プロセス内で一度だけ初期化する
+	private static volatile boolean databaseStarted = false;
+
+	private static volatile Database database = Database.BLENDEE;
+
+	/**
+	 * Blendeeを初期化する<br>
+	 * プロセス内で一度だけ実行され、以降の呼び出しは何もしない
+	 * @param manager 設定ファイルの読み込みに使用する
+	 */
+	static void startDatabase(ResourceManager manager) {
+		//初期化済みであれば、ロックを取得せずに復帰
+		if (databaseStarted) return;
+
+		synchronized (lock) {
+			if (databaseStarted) return;
 
-	private void executeWithDatabase(ResourceManager manager) {
-		//Blendee設定部
-		try {
 			Properties initValues = new Properties();
 			try (InputStream input = manager.load(Constants.DATABASE_PROPERTIES)) {
 				initValues.load(input);
@@ -158,11 +285,28 @@ public class Shell implements Runnable {
 				throw new IllegalStateException(e);
 			}
 
-			synchronized (lock) {
-				Blendee blendee = new Blendee();
-				if (!blendee.started())
-					blendee.start(initValues);
-			}
+			database.start(initValues);
+
+			databaseStarted = true;
+		}
+	}
+
+	/**
+	 * DBの初期化、トランザクションの実行を差し替え、未初期化の状態に戻す（テスト用）
+	 * @param database 差し替え後の処理
+	 */
+	static void resetDatabase(Database database) {
+		synchronized (lock) {
+			Shell.database = database;
+			databaseStarted = false;
+		}
+	}
+
+	private void executeWithDatabase(ResourceManager manager) {
+		//Blendee設定部
+		//通常はdispatch時に初期化済みなので、ここではworkerスレッド同士が待ち合わせることはない
+		try {
+			startDatabase(manager);
 		} catch (Exception e) {
 			handleException(e);
 			return;
@@ -171,7 +315,7 @@ public class Shell implements Runnable {
 		//ShellClient実行部
 		boolean[] logged = { false };
 		try {
-			Blendee.execute(t -> {
+			database.execute(t -> {
 				transactionThreadLocal.set(t);
 				try {
 					process.run();
@@ -188,11 +332,7 @@ public class Shell implements Runnable {
 			if (!logged[0]) SHELL_LOGGER.error(e.getMessage(), e);
 
 			//処理内で発生した不明なエラーすべてが対象
-			try {
-				sendSystemErrorMail(e);
-			} catch (Exception ee) {
-				SHELL_LOGGER.error(ee.getMessage(), ee);
-			}
+			notifySystemError(e);
 		}
 	}
 
@@ -204,6 +344,35 @@ public class Shell implements Runnable {
 		}
 	}
 
+	/**
+	 * workerスレッド以外（mainスレッド等）で、一つのトランザクション内で処理を実行する<br>
+	 * 処理内では{@link #transaction()}を使用することが可能<br>
+	 * 処理が正常に終了した場合はcommitされ、例外が発生した場合はロールバックされる
+	 * @param process 処理
+	 */
+	static void executeInTransaction(Runnable process) {
+		startDatabase(resourceManager());
+
+		try {
+			database.execute(t -> {
+				transactionThreadLocal.set(t);
+				try {
+					process.run();
+					t.commit();
+				} catch (Throwable e) {
+					t.rollback();
+					throw e;
+				} finally {
+					transactionThreadLocal.set(null);
+				}
+			});
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * {@link ShellClient#execute()}内でのみトランザクションインスタンスが取得可能
 	 * @return BTransaction
@@ -224,12 +393,37 @@ public class Shell implements Runnable {
 		return resourceManagerThreadLocal.get();
 	}
 
+	/**
+	 * 読み書き用のバッファを、取得ごとに生成せずに再利用する<br>
+	 * {@link ShellClient#execute()}内で、処理対象ごとにバッファが必要な場合に使用する
+	 * @return プロセス内で共有の{@link BufferPool}
+	 */
+	public static BufferPool bufferPool() {
+		return BufferPool.getInstance();
+	}
+
+	/**
+	 * システムエラーの通知メールを送信し、送信し終わるまで待つ<br>
+	 * 処理中の通知には{@link #notifySystemError(Throwable)}を使用すること
+	 * @param throwable 通知する例外
+	 */
 	public static void sendSystemErrorMail(Throwable throwable) {
 		Config config = config();
 
-		if (!Boolean.parseBoolean(config.usesSystemErrorMail())) return;
+		sendSystemErrorMail("[" + config.getProjectName() + "] システムエラー通知", buildMessage(throwable));
+	}
 
-		String[] mailToAddresses = config.getSystemErrorMailAdresses().split("\\s*,\\s*");
+	/**
+	 * システムエラーの通知メールを送信する
+	 * @param subject 件名
+	 * @param message 本文
+	 */
+	static void sendSystemErrorMail(String subject, String message) {
+		Config config = config();
+
+		if (!config.usesSystemErrorMail()) return;
+
+		List<String> mailToAddresses = config.getSystemErrorMailAdresses();
 		String from = config.getErrorMailFrom();
 
 		MailBuilder mail = MailBuilder.getInstance();
@@ -243,21 +437,15 @@ public class Shell implements Runnable {
 			throw new RuntimeException(e);
 		}
 
-		String message = buildMessage(throwable);
-
 		mail.setMessage(message);
 
 		try {
-			mail.setSubject("[" + config.getProjectName() + "] システムエラー通知");
-
-			for (String to : mailToAddresses) {
-				CommandExecutor.getInstance().execute(
-					new ByteArrayInputStream(mail.build()),
-					config().getMailSendCommand(),
-					from,
-					to);
-			}
-		} catch (IOException | MessagingException | InterruptedException e) {
+			mail.setSubject(subject);
+
+			//宛先ごとではなく、すべての宛先に一度で送信する
+			MailResult result = MailSender.getInstance().send(Collections.singletonList(mail)).get(0);
+			if (!result.succeeded()) throw new RuntimeException(result.getError());
+		} catch (MessagingException | InterruptedException e) {
 			throw new RuntimeException(e);
 		}
 	}
@@ -266,7 +454,7 @@ public class Shell implements Runnable {
 	 * @return 環境情報等、設定情報
 	 */
 	static Config config() {
-		return configThreadLocal.get();
+		return ConfigCache.config(resourceManager());
 	};
 
 	private static String buildMessage(Throwable throwable) {
@@ -292,10 +480,69 @@ public class Shell implements Runnable {
 		}
 	}
 
-	private static Throwable strip(Throwable throwable) {
+	static Throwable strip(Throwable throwable) {
 		Throwable cause = throwable.getCause();
 		if (cause == null) return throwable;
 
 		return strip(cause);
 	}
+
+	/**
+	 * DBの初期化と、トランザクション内での処理の実行
+	 */
+	interface Database {
+
+		/**
+		 * Blendeeを使用する通常の実装
+		 */
+		Database BLENDEE = new Database() {
+
+			@Override
+			public void start(Properties initValues) {
+				Blendee blendee = new Blendee();
+				if (!blendee.started())
+					blendee.start(initValues);
+			}
+
+			@Override
+			public void execute(Transactional process) throws Exception {
+				Blendee.execute(process::execute);
+			}
+		};
+
+		/**
+		 * プロセス内で一度だけ実行される
+		 * @param initValues {@link Constants#DATABASE_PROPERTIES}の内容
+		 */
+		void start(Properties initValues);
+
+		/**
+		 * 処理を一つのトランザクション内で実行する
+		 * @param process 処理
+		 * @throws Exception
+		 */
+		void execute(Transactional process) throws Exception;
+	}
+
+	/**
+	 * トランザクション内で行う処理
+	 */
+	@FunctionalInterface
+	interface Transactional {
+
+		void execute(BTransaction transaction) throws Exception;
+	}
+
+	private static class ConfigCopy {
+
+		//複製元
+		private final Properties snapshot;
+
+		private final Properties properties = new Properties();
+
+		private ConfigCopy(Properties snapshot) {
+			this.snapshot = snapshot;
+			properties.putAll(snapshot);
+		}
+	}
 }
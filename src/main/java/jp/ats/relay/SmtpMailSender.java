@@ -0,0 +1,215 @@
+package jp.ats.relay;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTPサーバーへの接続を使い回してメールを送信する<br>
+ * 接続ごとに一つの送信スレッドを持ち、各スレッドは接続を維持したまま複数のメールを続けて送信する<br>
+ * 接続が切れていた場合は接続し直し、そのメールを一度だけ再送信する<br>
+ * 再送信はメールの内容の送信（DATA）を開始する前に失敗した場合のみ行い、開始した後の失敗は、
+ * SMTPサーバーが受け付けている可能性があり、重複して届くことになるので、再送信せずに送信結果で失敗として返す<br>
+ * 接続、読み書きにはタイムアウトを設定し、応答しないSMTPサーバーで送信スレッドが止まり続けないようにする<br>
+ * 接続先を指定して生成すれば、テスト用のSMTPサーバーに対して使用できる
+ */
+@ThreadSafe
+public class SmtpMailSender implements MailSender {
+
+	private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	private final Session session;
+
+	private final ExecutorService senders;
+
+	//送信スレッドごとの接続
+	private final ThreadLocal<TrackingTransport> transportThreadLocal = new ThreadLocal<>();
+
+	//クローズ用
+	private final Queue<TrackingTransport> transports = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * 設定ファイルの接続先を使用し、プロセス終了時に接続を閉じる
+	 */
+	public SmtpMailSender() {
+		this(
+			Shell.config().getSmtpHost(),
+			Shell.config().getSmtpPort(),
+			Shell.config().getSmtpConnections(),
+			TimeUnit.SECONDS.toMillis(Shell.config().getSmtpConnectTimeoutSeconds()),
+			TimeUnit.SECONDS.toMillis(Shell.config().getSmtpTimeoutSeconds()));
+
+		//送信待ちのシステムエラーの通知を送信してから閉じる
+		Shell.onShutdown(this::close);
+	}
+
+	/**
+	 * @param host SMTPサーバー
+	 * @param port SMTPサーバーのポート番号
+	 * @param connections 同時に使用する接続数
+	 */
+	public SmtpMailSender(String host, int port, int connections) {
+		this(host, port, connections, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param host SMTPサーバー
+	 * @param port SMTPサーバーのポート番号
+	 * @param connections 同時に使用する接続数
+	 * @param connectTimeoutMillis 接続を待つミリ秒 0の場合は待ち続ける
+	 * @param timeoutMillis 読み書きを待つミリ秒 0の場合は待ち続ける
+	 */
+	public SmtpMailSender(String host, int port, int connections, long connectTimeoutMillis, long timeoutMillis) {
+		Properties properties = new Properties();
+		properties.setProperty("mail.smtp.host", host);
+		properties.setProperty("mail.smtp.port", String.valueOf(port));
+		properties.setProperty("mail.smtp.connectiontimeout", String.valueOf(connectTimeoutMillis));
+		properties.setProperty("mail.smtp.timeout", String.valueOf(timeoutMillis));
+
+		//0を指定すると書き込みの度に切断されてしまうので、待ち続ける場合は指定しない
+		if (timeoutMillis > 0) properties.setProperty("mail.smtp.writetimeout", String.valueOf(timeoutMillis));
+
+		session = Session.getInstance(properties);
+
+		AtomicInteger counter = new AtomicInteger(0);
+		senders = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "smtp-sender-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public List<MailResult> send(List<MailBuilder> mails) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<>(mails.size());
+		for (MailBuilder mail : mails) {
+			futures.add(senders.submit(() -> {
+				send(mail.prepare());
+				return null;
+			}));
+		}
+
+		List<MailResult> results = new ArrayList<>(mails.size());
+		for (int i = 0; i < mails.size(); i++) {
+			Throwable error = null;
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				error = e.getCause();
+			}
+
+			results.add(new MailResult(mails.get(i), error));
+		}
+
+		return results;
+	}
+
+	/**
+	 * 送信スレッドを終了し、すべての接続を閉じる
+	 */
+	public void close() {
+		senders.shutdown();
+
+		TrackingTransport transport;
+		while ((transport = transports.poll()) != null) {
+			try {
+				transport.close();
+			} catch (MessagingException e) {}
+		}
+	}
+
+	//送信スレッドが実行
+	private void send(MimeMessage message) throws MessagingException {
+		TrackingTransport transport = transport();
+		try {
+			transport.sendMessage(message, message.getAllRecipients());
+			return;
+		} catch (MessagingException e) {
+			//宛先の誤り等、SMTPサーバーが応答して拒否したものは、再送信しても失敗する
+			if (!disconnected(e)) throw e;
+
+			try {
+				transport.close();
+			} catch (MessagingException ee) {}
+
+			//内容の送信後の応答待ちでタイムアウトした場合等、SMTPサーバーが受け付けている可能性があるので再送信しない
+			if (transport.dataStarted) throw e;
+
+			//MAIL FROM等で、サーバーから切断されていたことがわかったので、接続し直して一度だけ再送信する
+			Shell.SHELL_LOGGER.warn("smtp connection failed. reconnecting.", e);
+		}
+
+		transport = transport();
+		transport.sendMessage(message, message.getAllRecipients());
+	}
+
+	//SMTPサーバーからの応答が得られなかった
+	private static boolean disconnected(MessagingException e) {
+		//切断されていた場合も、応答コードなしで送信失敗として報告される
+		if (e instanceof SMTPSendFailedException) return ((SMTPSendFailedException) e).getReturnCode() < 0;
+
+		return !(e instanceof SendFailedException);
+	}
+
+	private TrackingTransport transport() throws MessagingException {
+		TrackingTransport transport = transportThreadLocal.get();
+		if (transport == null) {
+			transport = new TrackingTransport(session);
+			transportThreadLocal.set(transport);
+			transports.add(transport);
+		}
+
+		if (!transport.isConnected()) transport.connect();
+
+		return transport;
+	}
+
+	/**
+	 * メールの内容の送信（DATA）を開始したかを記録する
+	 */
+	private static class TrackingTransport extends SMTPTransport {
+
+		//送信中のメールについて、DATAを送信した
+		private boolean dataStarted;
+
+		private TrackingTransport(Session session) {
+			//Session#getTransport(String)と同じく、接続先はセッションの設定を使用する
+			super(session, new URLName("smtp", null, -1, null, null, null));
+		}
+
+		@Override
+		public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+			dataStarted = false;
+			super.sendMessage(message, addresses);
+		}
+
+		@Override
+		protected OutputStream data() throws MessagingException {
+			dataStarted = true;
+			return super.data();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package jp.ats.relay;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link PipelineDaemon}内で常駐する処理間で、次処理に引き渡したファイルを通知する容量制限付きのチャネル<br>
+ * 引き渡したファイル自体は通常通り次処理のキューディレクトリに置かれているので、プロセスが停止しても失われることはない<br>
+ * 容量を超えた場合、次処理はキューディレクトリの一覧から処理対象を取得する
+ */
+class StageChannel {
+
+	private final BlockingQueue<Path> queue;
+
+	private final AtomicBoolean spilled = new AtomicBoolean(false);
+
+	/**
+	 * @param capacity 容量
+	 */
+	StageChannel(int capacity) {
+		queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * 前処理のworkerスレッドが実行
+	 * @param path 次処理のキューディレクトリに引き渡したファイル
+	 */
+	void offer(Path path) {
+		//前処理の処理を止めないよう、待たない
+		if (!queue.offer(path)) spilled.set(true);
+	}
+
+	/**
+	 * 前回の呼び出し以降に、容量を超えたことがあったかを返す<br>
+	 * 次処理のmainスレッドが実行
+	 * @return キューディレクトリの一覧を取得する必要がある場合true
+	 */
+	boolean takeSpilled() {
+		return spilled.getAndSet(false);
+	}
+
+	/**
+	 * 次処理のmainスレッドが実行
+	 * @param millis 最大待機時間
+	 * @return 引き渡されたファイル 時間内に引き渡しがなかった場合null
+	 * @throws InterruptedException
+	 */
+	Path poll(long millis) throws InterruptedException {
+		return queue.poll(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 次処理のmainスレッドが実行
+	 * @param targets 引き渡されたファイルの格納先
+	 */
+	void drainTo(Collection<Path> targets) {
+		queue.drainTo(targets);
+	}
+}
@@ -0,0 +1,150 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * 次処理のキューディレクトリ内に作成する、次処理からは見えない一時ファイル<br>
+ * 公開時は{@link Handoff}によるリネームのみで次処理の処理対象となる<br>
+ * 一時ファイル名には作成した処理を表す名前が含まれ、公開、破棄前にプロセスが停止した場合は、
+ * 作成した処理の次回のロック取得時に{@link #sweep(Path, String)}で削除される
+ */
+class StagedOutput {
+
+	/**
+	 * フレームワークがキューディレクトリ内に作成するファイル名の接頭辞
+	 */
+	static final String HIDDEN_PREFIX = ".";
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	//.公開時のファイル名.作成した処理を表す名前.tmp
+	private static final Pattern temporaryPattern = Pattern.compile(
+		"^\\..+\\.[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\\.tmp$");
+
+	private final Path temporary;
+
+	private final Path destination;
+
+	private final FileChannel channel;
+
+	private StagedOutput(Path temporary, Path destination, FileChannel channel) {
+		this.temporary = temporary;
+		this.destination = destination;
+		this.channel = channel;
+	}
+
+	/**
+	 * @param directory 公開先のキューディレクトリ
+	 * @param owner 作成する処理を表す名前 {@link #ownerOf(Path)}で作成する
+	 * @return 書き込み可能な状態の一時ファイル
+	 * @throws IOException
+	 */
+	static StagedOutput create(Path directory, String owner) throws IOException {
+		//公開時のファイル名は、QueueProcessでファイルを移動する場合と同じ形式
+		String name = System.currentTimeMillis() + "." + UUID.randomUUID().toString();
+
+		Path destination = directory.resolve(name);
+		Path temporary = temporaryOf(destination, owner);
+
+		FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+		return new StagedOutput(temporary, destination, channel);
+	}
+
+	/**
+	 * @param destination 公開時のパス
+	 * @param owner 作成する処理を表す名前
+	 * @return destinationと同じディレクトリ内の、次処理からは見えない一時ファイルのパス
+	 */
+	static Path temporaryOf(Path destination, String owner) {
+		return destination.resolveSibling(HIDDEN_PREFIX + destination.getFileName() + "." + owner + TEMPORARY_SUFFIX);
+	}
+
+	/**
+	 * 複数の前処理が同じキューディレクトリに出力する場合でも、他の処理の一時ファイルを削除しないように、
+	 * 一時ファイル名に含める処理ごとの名前を作成する
+	 * @param lockDirectory 作成する処理のロックディレクトリ
+	 * @return 処理ごとに一意の名前
+	 */
+	static String ownerOf(Path lockDirectory) {
+		return UUID.nameUUIDFromBytes(
+			lockDirectory.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8)).toString();
+	}
+
+	/**
+	 * 前回の実行で、公開も破棄もされずに残った一時ファイルを削除する<br>
+	 * ロックを取得し、workerが動いていない状態で実行すること
+	 * @param directory 公開先のキューディレクトリ
+	 * @param owner 作成した処理を表す名前
+	 * @return 削除した件数
+	 * @throws IOException
+	 */
+	static int sweep(Path directory, String owner) throws IOException {
+		String suffix = "." + owner + TEMPORARY_SUFFIX;
+
+		int swept = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+			directory,
+			path -> isTemporary(path) && path.getFileName().toString().endsWith(suffix))) {
+			for (Path temporary : stream) {
+				if (Files.deleteIfExists(temporary)) swept++;
+			}
+		}
+
+		return swept;
+	}
+
+	/**
+	 * 接頭辞が同じでも、一時ファイルの形式に一致しないものは通常の処理対象として扱う
+	 * @param path 判定するファイル
+	 * @return 一時ファイルの場合true
+	 */
+	static boolean isTemporary(Path path) {
+		return temporaryPattern.matcher(path.getFileName().toString()).matches();
+	}
+
+	FileChannel channel() {
+		return channel;
+	}
+
+	Path temporary() {
+		return temporary;
+	}
+
+	Path destination() {
+		return destination;
+	}
+
+	/**
+	 * 書き込んだ内容を確定する<br>
+	 * リネーム後に中身のないファイルが見えることのないように、公開前に実行すること
+	 * @throws IOException
+	 */
+	void seal() throws IOException {
+		if (!channel.isOpen()) return;
+
+		channel.force(false);
+		channel.close();
+	}
+
+	/**
+	 * 一時ファイルを破棄する
+	 */
+	void discard() {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+
+		try {
+			Files.deleteIfExists(temporary);
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,75 @@
+package jp.ats.relay;
+
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * 複数の処理対象を、並行して処理する
+ * @param <T> 処理対象の型
+ */
+public interface TaskExecutor<T> {
+
+	/**
+	 * 処理対象を取得する際の流量制限を設定する
+	 * @param rateLimiter 流量制限 nullの場合は制限なし
+	 * @param sizeFunction 処理対象のバイト数を求める処理 バイト数の制限が有効な場合のみ使用される
+	 */
+	void setRateLimiter(RateLimiter rateLimiter, ToLongFunction<? super T> sizeFunction);
+
+	/**
+	 * workerを開始する
+	 */
+	void start();
+
+	/**
+	 * @return {@link #resize(int)}が可能かどうか
+	 */
+	boolean isResizable();
+
+	/**
+	 * @return 現在の同時実行数
+	 */
+	int getConcurrency();
+
+	/**
+	 * 実行中に同時実行数を変更する<br>
+	 * 処理対象を渡すスレッド（main）から、処理対象を渡していない間に実行すること
+	 * @param concurrency 変更後の同時実行数
+	 * @throws InterruptedException
+	 */
+	void resize(int concurrency) throws InterruptedException;
+
+	/**
+	 * 処理対象をworkerに処理させる
+	 * @param values 処理対象
+	 */
+	void execute(List<T> values);
+
+	/**
+	 * 処理対象をworkerに処理させる
+	 * @param values 処理対象
+	 */
+	void execute(Stream<T> values);
+
+	/**
+	 * 処理対象をworkerに処理させる<br>
+	 * chunkで指定した数を処理し終わるとintervalを実行する
+	 * @param values 処理対象
+	 * @param chunk 処理の一塊の数
+	 * @param interval インターバル処理
+	 * @throws InterruptedException
+	 */
+	void execute(Stream<T> values, int chunk, Runnable interval) throws InterruptedException;
+
+	/**
+	 * 処理対象が全てはけるまでmainスレッドを停止する
+	 * @throws InterruptedException
+	 */
+	void waitUntilDrained() throws InterruptedException;
+
+	/**
+	 * 処理対象が全てはけるまでmainスレッドを待たせ、workerスレッドを停止させる
+	 */
+	void shutdown();
+}
@@ -0,0 +1,16 @@
+package jp.ats.relay;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 複数スレッドから同時に使用可能なクラスであることを表す<br>
+ * このアノテーションが付与されたクラスは、{@link Shell#newInstance(String)}で生成されたインスタンスがプロセス内で共有される
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ThreadSafe {}
@@ -0,0 +1,190 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 処理済みファイルの削除をバックグラウンドで行う<br>
+ * 処理済みファイルはキューディレクトリ内の削除待ちディレクトリへリネームされ（{@link Handoff}）、専用スレッドがまとめて削除する<br>
+ * 削除待ちディレクトリはキューディレクトリの一覧に含まれないので、削除前にプロセスが停止しても再処理されることはなく、
+ * 残ったものは次回起動時に削除される<br>
+ * 削除スレッドは{@link #start()}から{@link #close()}までの間動く
+ */
+class Tombstones {
+
+	private static final Logger logger = LogManager.getLogger(Tombstones.class.getName());
+
+	/**
+	 * 削除待ちディレクトリ名
+	 */
+	static final String DIRECTORY_NAME = StagedOutput.HIDDEN_PREFIX + "tombstone";
+
+	//一度に削除する最大件数
+	private static final int BATCH_SIZE = 256;
+
+	private final Path directory;
+
+	//削除待ちディレクトリ内の名前を一意にするための、インスタンスごとの接頭辞と連番
+	private final String prefix = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+
+	private final Object drained = new Object();
+
+	//削除中の件数も含む
+	private int pending = 0;
+
+	private Thread reaper;
+
+	/**
+	 * @param queueDirectory 対象のキューディレクトリ
+	 */
+	Tombstones(Path queueDirectory) {
+		directory = queueDirectory.resolve(DIRECTORY_NAME);
+	}
+
+	/**
+	 * 削除スレッドを開始し、前回削除しきれなかったファイルを削除対象に加える
+	 */
+	synchronized void start() {
+		if (reaper != null) return;
+
+		try {
+			Files.createDirectories(directory);
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				stream.forEach(this::enqueue);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		reaper = new Thread(this::reap, "tombstone-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * 削除スレッドを停止する<br>
+	 * 削除されずに残ったものは、次回の{@link #start()}で削除対象となる<br>
+	 * 停止後も{@link #start()}で再開することが可能
+	 */
+	void close() {
+		Thread reaper;
+		synchronized (this) {
+			reaper = this.reaper;
+			this.reaper = null;
+		}
+
+		if (reaper == null) return;
+
+		reaper.interrupt();
+		try {
+			reaper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		//再開時には削除待ちディレクトリから改めて削除対象に加えるので、ここでは破棄する
+		synchronized (drained) {
+			pending -= queue.size();
+			queue.clear();
+			drained.notifyAll();
+		}
+	}
+
+	/**
+	 * 処理済みのファイルを削除待ちにする際の、リネーム先を返す<br>
+	 * 同一ディレクトリ内のリネームなので、削除よりも先に処理対象から外すことができる<br>
+	 * 削除前に同じ名前のファイルが再度処理された場合でも、削除待ちのものを置き換えないよう、呼び出しごとに異なるパスを返す
+	 * @param file 処理済みファイル
+	 * @return 削除待ちディレクトリ内のパス
+	 */
+	Path tombstoneOf(Path file) {
+		return directory.resolve(file.getFileName() + "." + prefix + "-" + sequence.incrementAndGet());
+	}
+
+	/**
+	 * @param path 判定するパス
+	 * @return 削除待ちディレクトリ内のパスの場合true
+	 */
+	boolean isTombstone(Path path) {
+		return directory.equals(path.getParent());
+	}
+
+	/**
+	 * {@link #tombstoneOf(Path)}へリネームしたファイルを削除対象に加える<br>
+	 * 存在しない場合は何もしない
+	 * @param tombstone 削除待ちディレクトリ内のパス
+	 */
+	void add(Path tombstone) {
+		enqueue(tombstone);
+	}
+
+	/**
+	 * 削除待ちのファイルがすべて削除されるまで待つ
+	 * @throws InterruptedException
+	 */
+	void awaitDrained() throws InterruptedException {
+		synchronized (drained) {
+			while (pending > 0) {
+				drained.wait();
+			}
+		}
+	}
+
+	private void enqueue(Path tombstone) {
+		synchronized (drained) {
+			pending++;
+		}
+
+		queue.add(tombstone);
+	}
+
+	private void reap() {
+		List<Path> batch = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			try {
+				Path first = queue.poll(1, TimeUnit.MINUTES);
+				if (first == null) continue;
+
+				batch.add(first);
+				queue.drainTo(batch, BATCH_SIZE - 1);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			batch.forEach(Tombstones::delete);
+
+			synchronized (drained) {
+				pending -= batch.size();
+				drained.notifyAll();
+			}
+
+			batch.clear();
+		}
+	}
+
+	private static void delete(Path tombstone) {
+		try {
+			Files.deleteIfExists(tombstone);
+		} catch (IOException e) {
+			//削除できなかったものは、次回起動時に再度削除を試みる
+			logger.warn("failed to delete [" + tombstone + "]", e);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package jp.ats.relay;
+
+import java.util.concurrent.ExecutorService;
+import java.util.function.UnaryOperator;
+
+/**
+ * 仮想スレッドの利用<br>
+ * このクラスはJava 21未満用で、仮想スレッドは利用できない<br>
+ * Java 21以降ではsrc/main/java21の同名クラスが使用される（Multi-Release JAR）
+ */
+class VirtualThreads {
+
+	/**
+	 * @return 仮想スレッドが利用可能かどうか
+	 */
+	static boolean isAvailable() {
+		return false;
+	}
+
+	/**
+	 * タスクごとに仮想スレッドを生成するExecutorServiceを返す
+	 * @param namePrefix スレッド名の接頭辞
+	 * @param decorator タスクを、スレッド上で実行する処理に変換する
+	 * @return ExecutorService
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String namePrefix, UnaryOperator<Runnable> decorator) {
+		throw new UnsupportedOperationException("virtual threads require Java 21 or later.");
+	}
+}
@@ -0,0 +1,213 @@
+package jp.ats.relay;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 処理の起動依頼を、処理中のプロセスへの通知と、一つのプロセスの起動にまとめる<br>
+ * 依頼側は、まず通知ファイルを作成し、ロックが取得されていれば処理中のプロセスにまかせる<br>
+ * ロックが取得されていなければ、起動予約ファイルを作成できた場合のみ起動する<br>
+ * 起動予約は、起動した処理がロックの取得を試みた後に解除されるので、その間に他の依頼が別のプロセスを起動することはない<br>
+ * 起動予約には識別子を記録して起動した処理に渡し、起動予約により起動されたのではない処理が解除しないようにする<br>
+ * 処理側は、ロック取得時に通知ファイルを削除し、ロック解放後に通知ファイルが作成されていれば再度処理する<br>
+ * 依頼側は通知してからロックを確認し、処理側はロックを解放してから通知を確認するので、どちらかが必ず依頼に気付く
+ */
+class WakeUp {
+
+	//起動した処理が、起動予約を解除せずに停止した場合に備える
+	private static final long CLAIM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final String PENDING_SUFFIX = ".pending";
+
+	private static final String CLAIM_SUFFIX = ".launching";
+
+	private static final String TAKEOVER_SUFFIX = ".takeover";
+
+	//CommandServer内で実行される処理を起動した、起動予約の識別子
+	private static final ThreadLocal<String> launchClaimThreadLocal = new ThreadLocal<>();
+
+	private final Path lockDirectory;
+
+	private final Path pending;
+
+	private final Path claim;
+
+	//期限切れの起動予約を引き継ぐ際のロック
+	private final Path takeover;
+
+	/**
+	 * @param lockDirectory 起動対象の処理のロックディレクトリ
+	 */
+	WakeUp(Path lockDirectory) {
+		this.lockDirectory = lockDirectory;
+
+		//キューディレクトリ内に置かれても処理対象とならないように
+		String name = StagedOutput.HIDDEN_PREFIX + lockDirectory.getFileName();
+		pending = lockDirectory.resolveSibling(name + PENDING_SUFFIX);
+		claim = lockDirectory.resolveSibling(name + CLAIM_SUFFIX);
+		takeover = lockDirectory.resolveSibling(name + TAKEOVER_SUFFIX);
+	}
+
+	/**
+	 * @param path 判定するファイル
+	 * @return 通知ファイル等、起動依頼のために作成するものの場合true
+	 */
+	static boolean isControlFile(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(StagedOutput.HIDDEN_PREFIX)
+			&& (name.endsWith(PENDING_SUFFIX) || name.endsWith(CLAIM_SUFFIX) || name.endsWith(TAKEOVER_SUFFIX));
+	}
+
+	/**
+	 * CommandServerが、起動依頼とともに受け取った起動予約の識別子を、依頼を実行するスレッドに設定する
+	 * @param launchClaim 起動予約の識別子 解除する場合null
+	 */
+	static void setLaunchClaim(String launchClaim) {
+		if (launchClaim == null) {
+			launchClaimThreadLocal.remove();
+		} else {
+			launchClaimThreadLocal.set(launchClaim);
+		}
+	}
+
+	/**
+	 * 起動を依頼する<br>
+	 * 依頼側が実行
+	 * @param next 起動に使用する{@link NextCommand}
+	 * @param command 起動対象の処理のコマンド
+	 */
+	void signal(NextCommand next, String command) {
+		String launchClaim = UUID.randomUUID().toString();
+		try {
+			//ロックを確認する前に通知しておくことで、ロック解放直前の処理も通知に気付く
+			try {
+				Files.createFile(pending);
+			} catch (FileAlreadyExistsException e) {}
+
+			//処理中であれば、ロック解放後に通知に気付いて再度処理する
+			if (!next.canExecute(lockDirectory)) return;
+
+			//他の依頼により起動中
+			if (!claim(launchClaim)) return;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		try {
+			next.execute(command, launchClaim);
+		} catch (RuntimeException e) {
+			//起動できなかったので、次の依頼で起動できるようにする
+			release(launchClaim);
+			throw e;
+		}
+	}
+
+	/**
+	 * 自身を起動した起動予約を解除する<br>
+	 * 以降の依頼は、ロックと通知ファイルで扱われる<br>
+	 * 起動予約により起動されたのではない処理は、他の処理のための起動予約を解除しないよう、何もしない<br>
+	 * 処理側が、ロックの取得を試みた後（取得できなかった場合を含む）と、終了時に実行
+	 */
+	void started() {
+		String launchClaim = launchClaimThreadLocal.get();
+		if (launchClaim == null) launchClaim = System.getenv(Constants.LAUNCH_CLAIM_VARIABLE);
+
+		if (launchClaim != null) release(launchClaim);
+	}
+
+	/**
+	 * 通知ファイルを削除する<br>
+	 * ロック取得直後に処理側が実行
+	 */
+	void accept() {
+		try {
+			Files.deleteIfExists(pending);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * 処理側が実行
+	 * @return 前回の{@link #accept()}以降に、起動が依頼された場合true
+	 */
+	boolean pending() {
+		return Files.exists(pending);
+	}
+
+	private boolean claim(String launchClaim) throws IOException {
+		if (create(launchClaim)) return true;
+
+		try {
+			//起動中
+			if (!isStale(claim)) return false;
+		} catch (NoSuchFileException e) {
+			//起動した処理が開始した
+		}
+
+		//確認と削除の間に他の依頼が引き継いで新しい予約を作成する場合があるので、引き継ぎはファイルロックで一つずつ行い、
+		//ロック内で期限切れを再確認してから削除する
+		try (FileChannel channel = FileChannel.open(takeover, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				//同じプロセス内の他の依頼が引き継ぎ中
+				return false;
+			}
+
+			//他のプロセスが引き継ぎ中
+			if (lock == null) return false;
+
+			try {
+				if (!isStale(claim)) return false;
+
+				//起動に失敗したとみなす
+				Files.delete(claim);
+			} catch (NoSuchFileException e) {
+				//起動した処理が開始したか、他の依頼が引き継ぎ中
+			} finally {
+				lock.release();
+			}
+		}
+
+		return create(launchClaim);
+	}
+
+	private boolean create(String launchClaim) throws IOException {
+		try {
+			//作成と同時に識別子を書き込む 書き込み途中に読まれても、識別子は一致しない
+			Files.write(claim, launchClaim.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	private static boolean isStale(Path claim) throws IOException {
+		return System.currentTimeMillis() - Files.getLastModifiedTime(claim).toMillis() >= CLAIM_TIMEOUT_MILLIS;
+	}
+
+	private void release(String launchClaim) {
+		try {
+			//他の依頼による起動予約は解除しない
+			if (!launchClaim.equals(new String(Files.readAllBytes(claim), StandardCharsets.UTF_8))) return;
+
+			Files.deleteIfExists(claim);
+		} catch (NoSuchFileException e) {
+			//解除済み
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package jp.ats.relay;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.UnaryOperator;
+
+/**
+ * 仮想スレッドの利用<br>
+ * このクラスはJava 21以降用（Multi-Release JAR）
+ */
+class VirtualThreads {
+
+	/**
+	 * @return 仮想スレッドが利用可能かどうか
+	 */
+	static boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * タスクごとに仮想スレッドを生成するExecutorServiceを返す
+	 * @param namePrefix スレッド名の接頭辞
+	 * @param decorator タスクを、スレッド上で実行する処理に変換する
+	 * @return ExecutorService
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String namePrefix, UnaryOperator<Runnable> decorator) {
+		ThreadFactory factory = Thread.ofVirtual().name(namePrefix, 1).factory();
+
+		//decoratorは生成を要求したスレッド（main）で実行される
+		return Executors.newThreadPerTaskExecutor(runnable -> factory.newThread(decorator.apply(runnable)));
+	}
+}
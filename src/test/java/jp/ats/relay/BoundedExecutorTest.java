@@ -0,0 +1,133 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+
+public class BoundedExecutorTest {
+
+	private final Set<Integer> processed = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	private final AtomicInteger peak = new AtomicInteger();
+
+	private final AtomicInteger errors = new AtomicInteger();
+
+	//仮想スレッドと同様に、タスクごとにスレッドを生成する
+	private final ExecutorService threadPerTask = Executors.newCachedThreadPool();
+
+	@After
+	public void after() {
+		threadPerTask.shutdownNow();
+	}
+
+	@Test
+	public void concurrencyIsBounded() throws InterruptedException {
+		BoundedExecutor<Integer> executor = new BoundedExecutor<>(3, this::consume, threadPerTask, disposer());
+		executor.start();
+
+		executor.execute(IntStream.range(0, 200).boxed());
+		executor.waitUntilDrained();
+
+		assertEquals(200, processed.size());
+		assertTrue("peak " + peak.get(), peak.get() <= 3);
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void resize() throws InterruptedException {
+		BoundedExecutor<Integer> executor = new BoundedExecutor<>(1, this::consume, threadPerTask, disposer());
+		executor.start();
+
+		int[] sizes = { 4, 2, 5, 1 };
+		int next = 0;
+		for (int size : sizes) {
+			executor.resize(size);
+			assertEquals(size, executor.getConcurrency());
+
+			peak.set(0);
+			executor.execute(IntStream.range(next, next + 100).boxed());
+			executor.waitUntilDrained();
+			next += 100;
+
+			//減らした場合も、以前のpermitが残らない
+			assertTrue("peak " + peak.get() + " > " + size, peak.get() <= size);
+		}
+
+		assertEquals(next, processed.size());
+	}
+
+	@Test
+	public void shrinkWhileRunning() throws InterruptedException {
+		BoundedExecutor<Integer> executor = new BoundedExecutor<>(4, this::consume, threadPerTask, disposer());
+		executor.start();
+
+		int[] counter = { 0 };
+		executor.execute(IntStream.range(0, 400).boxed(), 100, () -> {
+			//最初のchunk以降は1件ずつ
+			if (counter[0]++ == 0) {
+				executor.resize(1);
+				peak.set(0);
+			}
+		});
+
+		executor.waitUntilDrained();
+
+		assertEquals(400, processed.size());
+		assertEquals(1, peak.get());
+	}
+
+	@Test
+	public void failureReleasesPermit() throws InterruptedException {
+		BoundedExecutor<Integer> executor = new BoundedExecutor<>(2, value -> {
+			throw new IllegalStateException("failure " + value);
+		}, threadPerTask, disposer());
+
+		executor.execute(IntStream.range(0, 10).boxed());
+		executor.waitUntilDrained();
+
+		//失敗してもpermitが返却され、すべて実行される
+		assertEquals(10, errors.get());
+	}
+
+	private void consume(Integer value) {
+		int now = running.incrementAndGet();
+		peak.accumulateAndGet(now, Math::max);
+		try {
+			processed.add(value);
+			Thread.sleep(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	private <T> Disposer<T> disposer() {
+		return new Disposer<T>() {
+
+			@Override
+			public void onEvent(Throwable t, long sequence, T value) {
+				errors.incrementAndGet();
+			}
+
+			@Override
+			public void onStart(Throwable t) {}
+
+			@Override
+			public void onShutdown(Throwable t) {}
+		};
+	}
+}
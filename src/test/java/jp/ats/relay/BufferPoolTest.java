@@ -0,0 +1,186 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void sizeIsRoundedUp() {
+		BufferPool pool = new BufferPool(false);
+
+		ByteBuffer buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.capacity());
+		assertEquals(5000, buffer.limit());
+
+		ByteBuffer small = pool.acquireDirect(1);
+		assertEquals(4096, small.capacity());
+		assertTrue(small.isDirect());
+
+		pool.release(buffer);
+		pool.release(small);
+	}
+
+	@Test
+	public void unregisteredThreadReleasesToShared() throws InterruptedException {
+		BufferPool pool = new BufferPool(false);
+
+		//メール出力用のスレッド等、短命なスレッドで返却された
+		AtomicReference<ByteBuffer> released = new AtomicReference<>();
+		run(() -> {
+			ByteBuffer buffer = pool.acquire(4096);
+			pool.release(buffer);
+			released.set(buffer);
+		});
+
+		//スレッドの終了とともに失われず、他のスレッドで再利用される
+		assertSame(released.get(), pool.acquire(4096));
+	}
+
+	@Test
+	public void registeredThreadKeepsOwnBuffers() throws InterruptedException {
+		BufferPool pool = new BufferPool(false);
+
+		AtomicReference<ByteBuffer> reused = new AtomicReference<>();
+		AtomicReference<ByteBuffer> released = new AtomicReference<>();
+		run(() -> {
+			BufferPool.registerCurrentThread();
+
+			ByteBuffer buffer = pool.acquire(4096);
+			pool.release(buffer);
+
+			//同じスレッドでは、自分用のバッファから取得される
+			ByteBuffer again = pool.acquire(4096);
+			reused.set(again == buffer ? again : null);
+
+			pool.release(again);
+			released.set(again);
+		});
+
+		assertTrue(reused.get() != null);
+
+		//自分用に保持したものは、他のスレッドには渡されない
+		assertNotSame(released.get(), pool.acquire(4096));
+	}
+
+	@Test
+	public void registeredThreadOverflowsToShared() throws InterruptedException {
+		BufferPool pool = new BufferPool(false);
+
+		ByteBuffer[] buffers = new ByteBuffer[5];
+		run(() -> {
+			BufferPool.registerCurrentThread();
+
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = pool.acquire(4096);
+			}
+
+			for (ByteBuffer buffer : buffers) {
+				pool.release(buffer);
+			}
+		});
+
+		//自分用に保持できる数を超えたものは、共有される
+		assertSame(buffers[4], pool.acquire(4096));
+	}
+
+	@Test
+	public void oversizedIsNotPooled() {
+		BufferPool pool = new BufferPool(false);
+
+		ByteBuffer buffer = pool.acquire(5 * 1024 * 1024);
+		assertEquals(5 * 1024 * 1024, buffer.capacity());
+		pool.release(buffer);
+
+		assertNotSame(buffer, pool.acquire(5 * 1024 * 1024));
+	}
+
+	@Test
+	public void leakDetection() {
+		BufferPool pool = new BufferPool(true);
+
+		ByteBuffer released = pool.acquire(4096);
+		ByteBuffer leaked = pool.acquireDirect(8192);
+		pool.release(released);
+
+		List<Throwable> outstanding = pool.outstanding();
+		assertEquals(1, outstanding.size());
+		assertEquals("acquired here", outstanding.get(0).getMessage());
+
+		//二重返却
+		try {
+			pool.release(released);
+			fail();
+		} catch (IllegalStateException e) {}
+
+		//他で生成したもの
+		try {
+			pool.release(ByteBuffer.allocate(4096));
+			fail();
+		} catch (IllegalStateException e) {}
+
+		pool.release(leaked);
+		assertEquals(0, pool.outstanding().size());
+	}
+
+	@Test
+	public void leakDetectionDisabled() {
+		try {
+			new BufferPool(false).outstanding();
+			fail();
+		} catch (IllegalStateException e) {}
+	}
+
+	@Test
+	public void leakDetectionBySystemProperty() throws Exception {
+		Process process = new ProcessBuilder(
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-D" + BufferPool.LEAK_DETECTION_PROPERTY + "=true",
+			"-cp",
+			System.getProperty("java.class.path"),
+			Leaking.class.getName()).redirectErrorStream(true).start();
+
+		String output;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			output = reader.readLine();
+		}
+
+		assertEquals(0, process.waitFor());
+
+		//プロセス内で共有のインスタンスで、返却されていないものが検出される
+		assertEquals("1", output);
+	}
+
+	private static void run(Runnable runnable) throws InterruptedException {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		thread.join();
+	}
+
+	/**
+	 * バッファを一つ返却せずに、返却されていない数を出力する
+	 */
+	public static class Leaking {
+
+		public static void main(String[] args) {
+			BufferPool pool = BufferPool.getInstance();
+			pool.release(pool.acquire(4096));
+			pool.acquire(4096);
+
+			System.out.println(pool.outstanding().size());
+		}
+	}
+}
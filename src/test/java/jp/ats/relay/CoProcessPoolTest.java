@@ -0,0 +1,171 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CoProcessPoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void echo() throws InterruptedException {
+		CoProcessPool pool = new CoProcessPool(command(CoProcessStub.class), 2, 10000);
+		try {
+			for (int i = 0; i < 10; i++) {
+				byte[] request = ("request" + i).getBytes(StandardCharsets.UTF_8);
+				assertArrayEquals(request, pool.call(request));
+			}
+
+			assertArrayEquals(new byte[0], pool.call(new byte[0]));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void strayOutputIsRejected() throws Exception {
+		Path starts = folder.getRoot().toPath().resolve("starts");
+		CoProcessPool pool = new CoProcessPool(command(Noisy.class) + " " + starts, 1, 10000);
+		try {
+			pool.call("request".getBytes(StandardCharsets.UTF_8));
+			fail();
+		} catch (RuntimeException e) {
+			//巨大な配列を確保せずに、プロセスを停止して失敗する
+			assertTrue(e.getMessage(), e.getMessage().startsWith("co-process protocol violation"));
+		} finally {
+			pool.close();
+		}
+
+		//再実行はしない
+		assertEquals(1, Files.readAllLines(starts).size());
+	}
+
+	@Test
+	public void crashedProcessIsRetried() throws InterruptedException {
+		Path marker = folder.getRoot().toPath().resolve("crashed");
+		CoProcessPool pool = new CoProcessPool(command(CrashOnce.class) + " " + marker, 1, 10000);
+		try {
+			//最初に起動したものは要求の途中で終了し、新しく起動したもので再実行される
+			byte[] request = "request".getBytes(StandardCharsets.UTF_8);
+			assertArrayEquals(request, pool.call(request));
+			assertTrue(Files.exists(marker));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void hungProcessTimesOut() throws InterruptedException {
+		CoProcessPool pool = new CoProcessPool(command(Hanging.class), 1, 500);
+		try {
+			long start = System.nanoTime();
+			try {
+				pool.call("request".getBytes(StandardCharsets.UTF_8));
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+
+			//再実行はしない
+			assertTrue(System.nanoTime() - start < 5_000_000_000L);
+
+			//プロセスは停止され、許可が返却されている
+			try {
+				pool.call("request".getBytes(StandardCharsets.UTF_8));
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+		} finally {
+			pool.close();
+		}
+	}
+
+	private static String command(Class<?> main) {
+		return String.join(
+			" ",
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp",
+			System.getProperty("java.class.path"),
+			main.getName());
+	}
+
+	/**
+	 * 応答の前に、形式に従わない出力をする<br>
+	 * 起動ごとに、指定されたファイルに一行追加する
+	 */
+	public static class Noisy {
+
+		public static void main(String[] args) throws IOException {
+			Files.write(
+				Paths.get(args[0]),
+				"started\n".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+
+			DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+			PrintStream output = new PrintStream(System.out, true, "UTF-8");
+			while (true) {
+				input.readInt();
+				input.readFully(new byte[input.readInt()]);
+
+				output.print("loading configuration...\n");
+			}
+		}
+	}
+
+	/**
+	 * 最初に起動された場合のみ、要求を読み込んだ後、応答せずに終了する<br>
+	 * 以降は{@link CoProcessStub}として動作する
+	 */
+	public static class CrashOnce {
+
+		public static void main(String[] args) throws Exception {
+			Path marker = Paths.get(args[0]);
+			if (Files.exists(marker)) {
+				CoProcessStub.main(new String[0]);
+				return;
+			}
+
+			Files.createFile(marker);
+
+			DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+			input.readInt();
+			input.readFully(new byte[input.readInt()]);
+
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * 要求を読み込むが、応答しない
+	 */
+	public static class Hanging {
+
+		public static void main(String[] args) throws Exception {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+			input.readInt();
+			input.readFully(new byte[input.readInt()]);
+
+			Thread.sleep(Long.MAX_VALUE);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommandExecutorImplTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final CommandExecutor executor = new CommandExecutorImpl();
+
+	@Test
+	public void execute() throws InterruptedException {
+		List<String> lines = executor.execute(command(Lines.class), null, StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		assertEquals("line0", lines.get(0));
+	}
+
+	@Test
+	public void executeWithLineConsumer() throws InterruptedException {
+		List<String> lines = new ArrayList<>();
+		executor.execute(command(Lines.class), null, StandardCharsets.UTF_8, lines::add);
+
+		assertEquals(Arrays.asList("line0", "line1", "line2"), lines);
+	}
+
+	@Test
+	public void executeWithChunkConsumer() throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		executor.execute(command(Binary.class), null, chunk -> {
+			//バッファは再利用されるので、その場で取り出す
+			byte[] bytes = new byte[chunk.remaining()];
+			chunk.get(bytes);
+			out.write(bytes, 0, bytes.length);
+		});
+
+		//改行コードや文字コードで表せないバイトも、そのまま渡される
+		assertArrayEquals(Binary.content(), out.toByteArray());
+	}
+
+	@Test
+	public void executeWithRedirect() throws Exception {
+		Path output = folder.newFile().toPath();
+		executor.execute(command(Binary.class), null, output);
+
+		assertArrayEquals(Binary.content(), Files.readAllBytes(output));
+	}
+
+	@Test
+	public void errorIsTruncated() throws InterruptedException {
+		try {
+			executor.execute(command(Errors.class), null, StandardCharsets.UTF_8);
+			fail();
+		} catch (RuntimeException e) {
+			String message = e.getMessage();
+
+			//末尾のみ保持される
+			assertTrue(message, message.contains("(50 lines omitted)"));
+			assertTrue(message, message.contains("error149"));
+			assertFalse(message, message.contains("error49" + System.getProperty("line.separator")));
+			assertTrue(message, message.contains("error50"));
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void timeoutAfterStreamsAreClosed() throws Exception {
+		Path output = folder.newFile().toPath();
+		try {
+			//標準出力、標準エラー出力を閉じた後も動き続ける
+			executor.withTimeout(500, TimeUnit.MILLISECONDS).execute(command(Detached.class), null, output);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void waitingInsideConsumerFailsFast() throws InterruptedException {
+		CompletableFuture<Void> future = executor.executeAsync(command(Lines.class), null, StandardCharsets.UTF_8, line -> {
+			try {
+				//標準入出力用のスレッドで終了を待つと、停止してしまうことがある
+				executor.execute(command(Lines.class), null, StandardCharsets.UTF_8);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), causedBy(e, IllegalStateException.class));
+		}
+	}
+
+	@Test
+	public void launchingInsideConsumerIsAllowed() throws Exception {
+		//起動するだけであれば、標準入出力用のスレッドを塞がない
+		CompletableFuture<List<String>> inner = new CompletableFuture<>();
+		executor.executeAsync(command(Lines.class), null, StandardCharsets.UTF_8, line -> {
+			if (line.equals("line0"))
+				executor.executeAsync(command(Lines.class), null, StandardCharsets.UTF_8).whenComplete((r, t) -> {
+					if (t != null) {
+						inner.completeExceptionally(t);
+					} else {
+						inner.complete(r);
+					}
+				});
+		}).get();
+
+		assertEquals(3, inner.get().size());
+	}
+
+	private static boolean causedBy(Throwable t, Class<? extends Throwable> type) {
+		for (; t != null; t = t.getCause()) {
+			if (type.isInstance(t)) return true;
+		}
+
+		return false;
+	}
+
+	private static Consumer<ProcessBuilder> command(Class<?> main) {
+		return b -> b.command(
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp",
+			System.getProperty("java.class.path"),
+			main.getName());
+	}
+
+	/**
+	 * すべてのバイト値を出力する
+	 */
+	public static class Binary {
+
+		static byte[] content() {
+			byte[] content = new byte[256 * 1024];
+			for (int i = 0; i < content.length; i++) {
+				content[i] = (byte) i;
+			}
+
+			return content;
+		}
+
+		public static void main(String[] args) throws IOException {
+			System.out.write(content());
+			System.out.flush();
+		}
+	}
+
+	/**
+	 * 標準出力、標準エラー出力を閉じて、終了しない
+	 */
+	public static class Detached {
+
+		public static void main(String[] args) throws Exception {
+			System.out.close();
+			System.err.close();
+
+			Thread.sleep(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * 標準エラー出力に150行出力する
+	 */
+	public static class Errors {
+
+		public static void main(String[] args) {
+			for (int i = 0; i < 150; i++) {
+				System.err.println("error" + i);
+			}
+		}
+	}
+
+	/**
+	 * 3行出力する
+	 */
+	public static class Lines {
+
+		public static void main(String[] args) {
+			for (int i = 0; i < 3; i++) {
+				System.out.println("line" + i);
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommandResultCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final List<String> COMMAND = Arrays.asList("sort", "-u");
+
+	private static final byte[] INPUT = "input".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void keyDependsOnEveryPart() {
+		Map<String, String> environment = Collections.singletonMap("LANG", "C");
+		String key = CommandResultCache.key(COMMAND, null, environment, StandardCharsets.UTF_8, INPUT);
+
+		assertEquals(key, CommandResultCache.key(COMMAND, null, environment, StandardCharsets.UTF_8, INPUT));
+
+		assertNotEquals(key, CommandResultCache.key(Arrays.asList("sort"), null, environment, StandardCharsets.UTF_8, INPUT));
+		assertNotEquals(key, CommandResultCache.key(COMMAND, Paths.get("work"), environment, StandardCharsets.UTF_8, INPUT));
+		assertNotEquals(key, CommandResultCache.key(COMMAND, null, environment, StandardCharsets.ISO_8859_1, INPUT));
+		assertNotEquals(key, CommandResultCache.key(COMMAND, null, environment, StandardCharsets.UTF_8, new byte[0]));
+
+		//環境変数が異なると、結果が異なることがある
+		assertNotEquals(key, CommandResultCache.key(COMMAND, null, Collections.singletonMap("LANG", "ja_JP.UTF-8"), StandardCharsets.UTF_8, INPUT));
+
+		//区切りを移動しても同じキーにならない
+		assertNotEquals(
+			CommandResultCache.key(Arrays.asList("a", "b"), null, environment, StandardCharsets.UTF_8, INPUT),
+			CommandResultCache.key(Arrays.asList("a b"), null, environment, StandardCharsets.UTF_8, INPUT));
+	}
+
+	@Test
+	public void keyIgnoresEnvironmentOrder() {
+		Map<String, String> first = new LinkedHashMap<>();
+		first.put("A", "1");
+		first.put("B", "2");
+
+		Map<String, String> second = new LinkedHashMap<>();
+		second.put("B", "2");
+		second.put("A", "1");
+
+		assertEquals(
+			CommandResultCache.key(COMMAND, null, first, StandardCharsets.UTF_8, INPUT),
+			CommandResultCache.key(COMMAND, null, second, StandardCharsets.UTF_8, INPUT));
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		CommandResultCache cache = new CommandResultCache(2, 0, null);
+		cache.put("a", Arrays.asList("A"));
+		cache.put("b", Arrays.asList("B"));
+
+		//aを使用したので、bが最も長く使用されていない
+		assertEquals(Arrays.asList("A"), cache.get("a"));
+		cache.put("c", Arrays.asList("C"));
+
+		assertNull(cache.get("b"));
+		assertEquals(Arrays.asList("A"), cache.get("a"));
+		assertEquals(Arrays.asList("C"), cache.get("c"));
+
+		assertEquals(3, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void expiredIsDiscarded() throws InterruptedException {
+		CommandResultCache cache = new CommandResultCache(10, 50, null);
+		cache.put("a", Arrays.asList("A"));
+		assertEquals(Arrays.asList("A"), cache.get("a"));
+
+		Thread.sleep(100);
+
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void sharedThroughDirectory() throws IOException {
+		Path directory = folder.newFolder("cache").toPath();
+		new CommandResultCache(10, 0, directory).put("a", Arrays.asList("A", "", "日本語"));
+
+		//別のプロセスに相当する
+		CommandResultCache other = new CommandResultCache(10, 0, directory);
+		assertEquals(Arrays.asList("A", "", "日本語"), other.get("a"));
+	}
+
+	@Test
+	public void sweepRemovesExpiredAndLeftovers() throws IOException {
+		Path directory = folder.newFolder("cache").toPath();
+		CommandResultCache cache = new CommandResultCache(10, TimeUnit.MINUTES.toMillis(1), directory);
+		cache.put("a", Arrays.asList("A"));
+
+		long now = System.currentTimeMillis();
+
+		//書き込み途中で停止したもの
+		Path leftover = Files.write(directory.resolve(".a12345.tmp"), new byte[0]);
+		Files.setLastModifiedTime(leftover, FileTime.fromMillis(now - TimeUnit.HOURS.toMillis(1)));
+
+		//書き込み中のもの
+		Path writing = Files.write(directory.resolve(".a67890.tmp"), new byte[0]);
+
+		//壊れたもの
+		Files.write(directory.resolve("broken"), "broken".getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(2, cache.sweep(now));
+		assertFalse(Files.exists(leftover));
+		assertTrue(Files.exists(writing));
+		assertTrue(Files.exists(directory.resolve("a")));
+
+		//有効期間を過ぎた
+		assertEquals(1, cache.sweep(now + TimeUnit.MINUTES.toMillis(2)));
+		assertFalse(Files.exists(directory.resolve("a")));
+	}
+
+	@Test
+	public void sweepBoundsFileCount() throws IOException {
+		Path directory = folder.newFolder("cache").toPath();
+		CommandResultCache cache = new CommandResultCache(3, 0, directory);
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			Path file = Files.write(directory.resolve("key" + i), Arrays.asList(String.valueOf(Long.MAX_VALUE), "value"), StandardCharsets.UTF_8);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(now - TimeUnit.MINUTES.toMillis(10 - i)));
+		}
+
+		assertEquals(7, cache.sweep(now));
+
+		//新しいものが残る
+		try (Stream<Path> stream = Files.list(directory)) {
+			assertEquals(3, stream.count());
+		}
+
+		assertTrue(Files.exists(directory.resolve("key9")));
+		assertFalse(Files.exists(directory.resolve("key6")));
+	}
+
+	@Test
+	public void bytesAreNotCached() throws InterruptedException {
+		Executed delegate = new Executed(new byte[] { (byte) 0xff, 0x00, (byte) 0x80, '\n' });
+		CommandExecutor executor = delegate.withCache(new CommandResultCache(10, 0, null));
+
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			executor.execute(b -> b.command("binary"), null, (Consumer<ByteBuffer>) buffer -> {
+				out.write(buffer.array(), buffer.position(), buffer.remaining());
+			});
+
+			//文字列に変換されず、そのまま渡される
+			assertArrayEquals(delegate.output, out.toByteArray());
+		}
+
+		assertEquals(2, delegate.count.get());
+
+		//行で受け取る場合は保持される
+		executor.execute(b -> b.command("lines"), null, StandardCharsets.UTF_8);
+		executor.execute(b -> b.command("lines"), null, StandardCharsets.UTF_8);
+		assertEquals(3, delegate.count.get());
+
+		//環境変数が異なる場合は保持したものを使用しない
+		executor.execute(b -> {
+			b.command("lines");
+			b.environment().put("RELAY_TEST", "1");
+		}, null, StandardCharsets.UTF_8);
+		assertEquals(4, delegate.count.get());
+	}
+
+	/**
+	 * 実行回数を数え、常に同じ出力を返す
+	 */
+	private static class Executed extends CommandExecutor {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final byte[] output;
+
+		private Executed(byte[] output) {
+			this.output = output;
+		}
+
+		@Override
+		public List<String> execute(Consumer<ProcessBuilder> configFunction, InputStream in, Charset charset) {
+			count.incrementAndGet();
+			return Arrays.asList(new String(output, charset));
+		}
+
+		@Override
+		public void execute(Consumer<ProcessBuilder> configFunction, InputStream in, Consumer<ByteBuffer> chunkConsumer) {
+			count.incrementAndGet();
+			chunkConsumer.accept(ByteBuffer.wrap(output));
+		}
+	}
+}
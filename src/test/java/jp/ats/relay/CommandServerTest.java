@@ -0,0 +1,201 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommandServerTest {
+
+	//CommandServerはクラス名から生成するので、実行結果はstaticに保持する
+	private static final BlockingQueue<String[]> executed = new LinkedBlockingQueue<>();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private Path home;
+
+	private int port;
+
+	private Thread server;
+
+	@Before
+	public void before() throws IOException {
+		executed.clear();
+
+		home = folder.getRoot().toPath();
+		manager = new FileSystemResourceManager(home);
+
+		//使用されていないポート
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+
+		Properties config = new Properties();
+		config.setProperty("project-name", "command-server");
+		config.setProperty("halt-file", "halt");
+		config.setProperty("assessment-dir", "assessment");
+		config.setProperty("next-command-class", CommandServerNextCommand.class.getName());
+		config.setProperty("command-executor-class", CommandExecutorImpl.class.getName());
+		config.setProperty("command-server-port", String.valueOf(port));
+		store(Constants.CONFIG_PROPERTIES, config);
+
+		Files.createDirectories(home.resolve("assessment"));
+	}
+
+	@After
+	public void after() throws Exception {
+		if (server == null) return;
+
+		Files.createFile(home.resolve("halt"));
+		server.join(10000);
+		assertFalse(server.isAlive());
+	}
+
+	@Test
+	public void mappedCommandIsDispatched() throws Exception {
+		Properties commands = new Properties();
+		commands.setProperty("next", Recorder.class.getName() + " a b");
+		store(Constants.COMMAND_SERVER_PROPERTIES, commands);
+
+		startServer();
+
+		assertTrue(request("next"));
+
+		//定義の起動パラメータで実行される
+		assertArrayEquals(new String[] { "a", "b" }, executed.poll(10, TimeUnit.SECONDS));
+
+		//次工程として依頼した場合も、新しいプロセスではなくCommandServer内で実行される
+		dispatch(() -> new CommandServerNextCommand().execute("next"));
+
+		assertArrayEquals(new String[] { "a", "b" }, executed.poll(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void unmappedCommandIsRejected() throws Exception {
+		Properties commands = new Properties();
+		commands.setProperty("next", Recorder.class.getName());
+		store(Constants.COMMAND_SERVER_PROPERTIES, commands);
+
+		startServer();
+
+		//サーバー側で定義されていないものは実行されない
+		assertFalse(request(Recorder.class.getName()));
+		assertNull(executed.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void newProcessWithoutServer() throws Exception {
+		Path marker = home.resolve("marker");
+		String command = String.join(
+			" ",
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp",
+			System.getProperty("java.class.path"),
+			Marker.class.getName(),
+			marker.toString());
+
+		//定義されていても、CommandServerが起動していない
+		Properties commands = new Properties();
+		commands.setProperty(command, Recorder.class.getName());
+		store(Constants.COMMAND_SERVER_PROPERTIES, commands);
+
+		dispatch(() -> new CommandServerNextCommand().execute(command, "claim"));
+
+		//NextCommandImplと同様に新しいプロセスで起動される
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!Files.exists(marker) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+
+		//書き込み中の場合に備えて
+		Thread.sleep(100);
+
+		//起動予約の識別子が渡される
+		assertEquals("claim", new String(Files.readAllBytes(marker), StandardCharsets.UTF_8));
+		assertNull(executed.poll());
+	}
+
+	private void store(String resource, Properties properties) throws IOException {
+		Path file = manager.resolvePath(resource);
+		Files.createDirectories(file.getParent());
+		try (OutputStream output = Files.newOutputStream(file)) {
+			properties.store(output, null);
+		}
+	}
+
+	private void startServer() {
+		server = new Thread(() -> Shell.dispatch(new String[0], manager, new CommandServer()));
+		server.start();
+	}
+
+	//待ち受けが開始されるまで繰り返す
+	private boolean request(String command) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				return CommandServer.request(port, 1000, command, null);
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline) throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private void dispatch(Runnable runnable) {
+		Shell.dispatch(new String[0], manager, new TestShellClient() {
+
+			@Override
+			public void execute() {
+				runnable.run();
+			}
+		});
+	}
+
+	/**
+	 * CommandServer内で実行される
+	 */
+	public static class Recorder extends TestShellClient {
+
+		@Override
+		public void execute() {
+			String[] args = Shell.args();
+			assertNotNull(args);
+			executed.add(args);
+		}
+	}
+
+	/**
+	 * 新しいプロセスで起動され、起動予約の識別子を出力する
+	 */
+	public static class Marker {
+
+		public static void main(String[] args) throws IOException {
+			String launchClaim = System.getenv(Constants.LAUNCH_CLAIM_VARIABLE);
+			Files.write(Paths.get(args[0]), String.valueOf(launchClaim).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrencyControllerTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private long now = 0;
+
+	@Test
+	public void withoutSamplesOnlyLimitIsApplied() {
+		ConcurrencyController controller = new ConcurrencyController(8, now);
+
+		assertEquals(5, controller.adjust(5, 100, now += SECOND));
+
+		//残件数を超えない
+		assertEquals(2, controller.adjust(5, 2, now += SECOND));
+
+		//最低1はある
+		assertEquals(1, controller.adjust(5, 0, now += SECOND));
+	}
+
+	@Test
+	public void additiveIncrease() {
+		ConcurrencyController controller = new ConcurrencyController(8, now);
+
+		record(controller, 10, MILLI);
+		assertEquals(3, controller.adjust(2, 100, now += SECOND));
+
+		//増やしてスループットが向上した
+		record(controller, 20, MILLI);
+		assertEquals(4, controller.adjust(3, 100, now += SECOND));
+	}
+
+	@Test
+	public void stepBackWhenIncreaseDidNotHelp() {
+		ConcurrencyController controller = new ConcurrencyController(8, now);
+
+		record(controller, 20, MILLI);
+		assertEquals(4, controller.adjust(3, 100, now += SECOND));
+
+		//増やしてもスループットが変わらなかった
+		record(controller, 20, MILLI);
+		assertEquals(3, controller.adjust(4, 100, now += SECOND));
+
+		//減らした後は、再度増やしてみる
+		record(controller, 20, MILLI);
+		assertEquals(4, controller.adjust(3, 100, now += SECOND));
+	}
+
+	@Test
+	public void multiplicativeDecreaseOnLatency() {
+		ConcurrencyController controller = new ConcurrencyController(16, now);
+
+		record(controller, 100, MILLI);
+		assertEquals(9, controller.adjust(8, 1000, now += SECOND));
+
+		//DB等の下流が飽和し、一件あたりの処理時間が基準値の2倍を超えた
+		record(controller, 100, MILLI * 3);
+		assertEquals(6, controller.adjust(9, 1000, now += SECOND));
+
+		//回復すれば再び増やす
+		record(controller, 200, MILLI);
+		assertEquals(7, controller.adjust(6, 1000, now += SECOND));
+	}
+
+	@Test
+	public void baselineFollowsSustainedChange() {
+		ConcurrencyController controller = new ConcurrencyController(64, now);
+
+		record(controller, 100, MILLI);
+		int current = controller.adjust(32, 1000, now += SECOND);
+
+		//処理対象の性質が変わり、処理時間が恒常的に長くなった
+		int decreases = 0;
+		for (int i = 0; i < 30; i++) {
+			record(controller, 100, MILLI * 3);
+			int next = controller.adjust(current, 1000, now += SECOND);
+			if (next < current) decreases++;
+			current = next;
+		}
+
+		//基準値が追従し、減らし続けることはない
+		assertTrue(decreases < 30);
+		record(controller, 100, MILLI * 3);
+		assertTrue(controller.adjust(current, 1000, now += SECOND) >= current - 1);
+	}
+
+	@Test
+	public void cappedByMaxConcurrencyAndBacklog() {
+		ConcurrencyController controller = new ConcurrencyController(3, now);
+
+		record(controller, 10, MILLI);
+		assertEquals(3, controller.adjust(3, 100, now += SECOND));
+
+		record(controller, 10, MILLI);
+		assertEquals(2, controller.adjust(3, 2, now += SECOND));
+
+		//減らす場合も1未満にはならない
+		record(controller, 10, MILLI * 100);
+		assertEquals(1, controller.adjust(1, 100, now += SECOND));
+	}
+
+	private static void record(ConcurrencyController controller, int count, long nanos) {
+		for (int i = 0; i < count; i++) {
+			controller.record(nanos);
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+import jp.ats.relay.ConcurrentExecutor.Prefetcher;
+
+public class ConcurrentExecutorTest {
+
+	private final Set<Integer> processed = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger duplicates = new AtomicInteger();
+
+	private final AtomicInteger running = new AtomicInteger();
+
+	//resizeごとに、その間に同時に実行されていた最大数
+	private final AtomicInteger peak = new AtomicInteger();
+
+	private final Set<String> threadNames = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	@Test
+	public void resizeWhileRunning() throws InterruptedException {
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(2, this::consume, threadFactory(), disposer());
+		executor.start();
+		try {
+			assertTrue(executor.isResizable());
+
+			int[] sizes = { 2, 6, 1, 4, 4, 3 };
+			int next = 0;
+			for (int size : sizes) {
+				executor.resize(size);
+				assertEquals(size, executor.getConcurrency());
+
+				peak.set(0);
+				executor.execute(IntStream.range(next, next + 200).boxed());
+				executor.waitUntilDrained();
+				next += 200;
+
+				//worker数を超えて同時に実行されない
+				assertTrue("peak " + peak.get() + " > " + size, peak.get() <= size);
+			}
+
+			assertEquals(next, processed.size());
+			assertEquals(0, duplicates.get());
+
+			//スレッドは再利用され、増やした分のみ生成される
+			assertTrue(threadNames.size() <= 6);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void resizeBetweenChunks() throws InterruptedException {
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(1, this::consume, threadFactory(), disposer());
+		executor.start();
+		try {
+			int[] resizes = { 0 };
+			executor.execute(IntStream.range(0, 1000).boxed(), 100, () -> {
+				try {
+					//QueueProcessのintervalと同様に、chunkごとに調整する
+					executor.resize(executor.getConcurrency() % 4 + 1);
+					resizes[0]++;
+				} catch (InterruptedException e) {
+					fail();
+				}
+			});
+
+			executor.waitUntilDrained();
+
+			assertEquals(10, resizes[0]);
+			assertEquals(1000, processed.size());
+			assertEquals(0, duplicates.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void resizeBeforeStart() throws InterruptedException {
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(1, this::consume, threadFactory(), disposer());
+		executor.resize(3);
+		assertEquals(3, executor.getConcurrency());
+
+		executor.start();
+		try {
+			executor.execute(IntStream.range(0, 100).boxed());
+			executor.waitUntilDrained();
+
+			assertEquals(100, processed.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void notUniformWorkersAreNotResizable() throws InterruptedException {
+		Consumer<Integer> first = this::consume;
+		Consumer<Integer> second = this::consume;
+
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(threadFactory(), disposer(), first, second);
+		assertFalse(executor.isResizable());
+
+		try {
+			executor.resize(3);
+			fail();
+		} catch (UnsupportedOperationException e) {}
+	}
+
+	@Test
+	public void rateLimitIsShared() throws InterruptedException {
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(4, this::consume, threadFactory(), disposer());
+		executor.setRateLimiter(new RateLimiter(100, 0), value -> 0);
+		executor.start();
+		try {
+			long start = System.nanoTime();
+			executor.execute(IntStream.range(0, 150).boxed());
+			executor.waitUntilDrained();
+			long elapsed = System.nanoTime() - start;
+
+			//溜まっていた100件を除いた50件分
+			assertTrue(elapsed >= 400_000_000L);
+			assertEquals(150, processed.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void prefetchIsBoundedByBudget() throws InterruptedException {
+		//大きさの異なるものを、枠に収まる範囲で複数先読みする
+		Loader loader = new Loader(value -> (value % 3 + 1) * 10L);
+		ConcurrentExecutor<Integer> executor = prefetching(4, 4, 50, loader);
+		executor.start();
+		try {
+			executor.execute(IntStream.range(0, 300).boxed());
+			executor.waitUntilDrained();
+
+			assertEquals(300, processed.size());
+			assertEquals(0, duplicates.get());
+			assertEquals(0, loader.mismatches.get());
+
+			//処理workerに渡されて返却されるまでの分を含めて、枠を超えない
+			assertTrue("peak " + loader.peak.get(), loader.peak.get() <= 50);
+			assertEquals(0, loader.held.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void prefetchIsInOrder() throws InterruptedException {
+		//一件で枠をすべて使うので、一件ずつ読み込まれる
+		Loader loader = new Loader(value -> 100L);
+		ConcurrentExecutor<Integer> executor = prefetching(4, 4, 100, loader);
+		executor.start();
+		try {
+			executor.execute(IntStream.range(0, 100).boxed());
+			executor.waitUntilDrained();
+
+			//I/O workerが複数でも、渡された順に枠を確保する
+			List<Integer> expected = new ArrayList<>();
+			IntStream.range(0, 100).forEach(expected::add);
+			assertEquals(expected, loader.order);
+
+			assertEquals(100, loader.peak.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void oversizedIsPrefetchedAlone() throws InterruptedException {
+		//一件で上限を超えるものも、他に保持しているものがなければ読み込まれる
+		Loader loader = new Loader(value -> value % 10 == 0 ? 1000L : 10L);
+		ConcurrentExecutor<Integer> executor = prefetching(2, 2, 100, loader);
+		executor.start();
+		try {
+			executor.execute(IntStream.range(0, 100).boxed());
+			executor.waitUntilDrained();
+
+			assertEquals(100, processed.size());
+			assertEquals(0, loader.mismatches.get());
+			assertEquals(1000, loader.peak.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void failedPrefetchIsPassedAsNull() throws InterruptedException {
+		Set<Integer> notLoaded = ConcurrentHashMap.newKeySet();
+		Loader loader = new Loader(value -> 30L) {
+
+			@Override
+			public Integer load(Integer value, long maxBytes) throws Exception {
+				if (value % 2 == 1) throw new IllegalStateException("failed: " + value);
+				return super.load(value, maxBytes);
+			}
+		};
+
+		ConcurrentExecutor<Integer> executor = new ConcurrentExecutor<>(
+			2,
+			(Integer value, Integer loaded) -> {
+				if (loaded == null) notLoaded.add(value);
+				consume(value);
+			},
+			2,
+			60,
+			loader,
+			threadFactory(),
+			quietDisposer());
+		executor.start();
+		try {
+			executor.execute(IntStream.range(0, 100).boxed());
+			executor.waitUntilDrained();
+
+			//失敗したものの枠は解放され、先読みなしで処理される
+			assertEquals(100, processed.size());
+			assertEquals(50, notLoaded.size());
+			notLoaded.forEach(value -> assertEquals(1, value % 2));
+			assertEquals(0, loader.held.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private ConcurrentExecutor<Integer> prefetching(int concurrency, int ioConcurrency, long maxPrefetchBytes, Loader loader) {
+		return new ConcurrentExecutor<>(
+			concurrency,
+			(Integer value, Integer loaded) -> {
+				if (!value.equals(loaded)) loader.mismatches.incrementAndGet();
+				consume(value);
+			},
+			ioConcurrency,
+			maxPrefetchBytes,
+			loader,
+			threadFactory(),
+			disposer());
+	}
+
+	/**
+	 * 読み込んでから返却されるまでの合計バイト数を記録する
+	 */
+	private static class Loader implements Prefetcher<Integer, Integer> {
+
+		private final ToLongFunction<Integer> sizeFunction;
+
+		private final AtomicInteger held = new AtomicInteger();
+
+		private final AtomicInteger peak = new AtomicInteger();
+
+		private final AtomicInteger mismatches = new AtomicInteger();
+
+		private final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+		private Loader(ToLongFunction<Integer> sizeFunction) {
+			this.sizeFunction = sizeFunction;
+		}
+
+		@Override
+		public long size(Integer value) {
+			return sizeFunction.applyAsLong(value);
+		}
+
+		@Override
+		public Integer load(Integer value, long maxBytes) throws Exception {
+			//確保した枠が渡される
+			if (maxBytes != size(value)) mismatches.incrementAndGet();
+
+			order.add(value);
+			peak.accumulateAndGet(held.addAndGet((int) size(value)), Math::max);
+
+			return value;
+		}
+
+		@Override
+		public void release(Integer loaded) {
+			held.addAndGet((int) -size(loaded));
+		}
+	}
+
+	private void consume(Integer value) {
+		int now = running.incrementAndGet();
+		peak.accumulateAndGet(now, Math::max);
+		threadNames.add(Thread.currentThread().getName());
+		try {
+			if (!processed.add(value)) duplicates.incrementAndGet();
+
+			Thread.sleep(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running.decrementAndGet();
+		}
+	}
+
+	private ThreadFactory threadFactory() {
+		return runnable -> new Thread(runnable, "test-" + threadCounter.incrementAndGet());
+	}
+
+	private static <T> Disposer<T> quietDisposer() {
+		return new Disposer<T>() {
+
+			@Override
+			public void onEvent(Throwable t, long sequence, T value) {}
+
+			@Override
+			public void onStart(Throwable t) {}
+
+			@Override
+			public void onShutdown(Throwable t) {}
+		};
+	}
+
+	private static <T> Disposer<T> disposer() {
+		return new Disposer<T>() {
+
+			@Override
+			public void onEvent(Throwable t, long sequence, T value) {
+				t.printStackTrace();
+			}
+
+			@Override
+			public void onStart(Throwable t) {
+				t.printStackTrace();
+			}
+
+			@Override
+			public void onShutdown(Throwable t) {
+				t.printStackTrace();
+			}
+		};
+	}
+}
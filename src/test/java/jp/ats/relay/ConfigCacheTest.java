@@ -0,0 +1,115 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private Path file;
+
+	@Before
+	public void before() throws IOException {
+		Path home = folder.getRoot().toPath();
+		manager = new FileSystemResourceManager(home);
+
+		file = manager.resolvePath(Constants.CONFIG_PROPERTIES).toAbsolutePath().normalize();
+		Files.createDirectories(file.getParent());
+		write("first");
+	}
+
+	@Test
+	public void loadedOnce() {
+		Properties properties = ConfigCache.properties(manager, Constants.CONFIG_PROPERTIES);
+		assertSame(properties, ConfigCache.properties(manager, Constants.CONFIG_PROPERTIES));
+		assertSame(ConfigCache.config(manager), ConfigCache.config(manager));
+
+		assertEquals("first", ConfigCache.config(manager).getProjectName());
+	}
+
+	@Test
+	public void snapshotIsImmutable() {
+		Properties properties = ConfigCache.properties(manager, Constants.CONFIG_PROPERTIES);
+		try {
+			properties.setProperty("project-name", "changed");
+			fail();
+		} catch (UnsupportedOperationException e) {}
+	}
+
+	@Test
+	public void incompleteConfigIsNotSwapped() throws IOException {
+		Config config = ConfigCache.config(manager);
+
+		//書き込み途中
+		Files.write(file, "project-name=second\nhalt-file=halt\n".getBytes(StandardCharsets.UTF_8));
+		assertFalse(ConfigCache.reload(file));
+
+		//変更前の内容を使い続ける
+		assertSame(config, ConfigCache.config(manager));
+		assertNotNull(ConfigCache.config(manager).getHaltFile());
+
+		write("second");
+		assertTrue(ConfigCache.reload(file));
+		assertEquals("second", ConfigCache.config(manager).getProjectName());
+	}
+
+	@Test
+	public void invalidValueIsNotSwapped() throws IOException {
+		Config config = ConfigCache.config(manager);
+
+		Files.write(
+			file,
+			(content("second") + "shared-worker-count=eight\n").getBytes(StandardCharsets.UTF_8));
+		assertFalse(ConfigCache.reload(file));
+
+		assertSame(config, ConfigCache.config(manager));
+	}
+
+	@Test
+	public void reloadedOnChange() throws Exception {
+		assertEquals("first", ConfigCache.config(manager).getProjectName());
+
+		//書き込みが止んだ後で読み込み直される
+		write("second");
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!"second".equals(ConfigCache.config(manager).getProjectName())) {
+			if (System.currentTimeMillis() > deadline) fail("not reloaded.");
+			Thread.sleep(50);
+		}
+	}
+
+	private void write(String projectName) throws IOException {
+		Files.write(file, content(projectName).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String content(String projectName) {
+		return String.join(
+			"\n",
+			"project-name=" + projectName,
+			"halt-file=halt",
+			"assessment-dir=assessment",
+			"next-command-class=" + NextCommandImpl.class.getName(),
+			"command-executor-class=" + CommandExecutorImpl.class.getName(),
+			"");
+	}
+}
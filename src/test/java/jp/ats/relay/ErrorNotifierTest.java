@@ -0,0 +1,128 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ErrorNotifierTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void groupedByRootCauseAndLocation() {
+		ErrorNotifier notifier = new ErrorNotifier();
+
+		//処理対象ごとにメッセージが異なる
+		for (int i = 0; i < 3; i++) {
+			notifier.add(wrapped("failed on item " + i));
+		}
+
+		notifier.add(other());
+
+		String digest = notifier.buildDigest(0);
+
+		assertTrue(digest, digest.contains("前回の通知以降に発生したエラー: 4件（2種類）"));
+		assertTrue(digest, digest.contains("[1] 3件"));
+		assertTrue(digest, digest.contains("[2] 1件"));
+
+		//最初の一件の内容が含まれる
+		assertTrue(digest, digest.contains("failed on item 0"));
+		assertFalse(digest, digest.contains("failed on item 1"));
+	}
+
+	@Test
+	public void wrapperIsIgnored() {
+		ErrorNotifier notifier = new ErrorNotifier();
+
+		//同じ根本原因が、異なる例外に包まれている
+		notifier.add(wrapped("first"));
+		notifier.add(new IllegalStateException(wrapped("second").getCause()));
+
+		String digest = notifier.buildDigest(0);
+		assertTrue(digest, digest.contains("2件（1種類）"));
+	}
+
+	@Test
+	public void droppedAreCounted() {
+		ErrorNotifier notifier = new ErrorNotifier();
+		notifier.add(other());
+
+		String digest = notifier.buildDigest(5);
+		assertTrue(digest, digest.contains("内容を記録できなかったエラー: 5件"));
+	}
+
+	@Test
+	public void instancePerConfig() throws IOException {
+		Path first = home("first");
+		Path second = home("second");
+
+		ErrorNotifier[] notifiers = new ErrorNotifier[3];
+		dispatch(new FileSystemResourceManager(first), () -> notifiers[0] = ErrorNotifier.getInstance());
+
+		//起動ごとにResourceManagerが生成されても、同じ設定ファイルであれば共有する
+		dispatch(new FileSystemResourceManager(first), () -> notifiers[1] = ErrorNotifier.getInstance());
+		dispatch(new FileSystemResourceManager(second), () -> notifiers[2] = ErrorNotifier.getInstance());
+
+		assertNotNull(notifiers[0]);
+		assertSame(notifiers[0], notifiers[1]);
+		assertNotSame(notifiers[0], notifiers[2]);
+
+		//Shell外
+		assertNull(ErrorNotifier.getInstance());
+	}
+
+	private static Throwable wrapped(String message) {
+		return new RuntimeException(new IOException(message));
+	}
+
+	private static Throwable other() {
+		return new IllegalArgumentException("other");
+	}
+
+	private Path home(String projectName) throws IOException {
+		Path home = folder.newFolder(projectName).toPath();
+		Path file = new FileSystemResourceManager(home).resolvePath(Constants.CONFIG_PROPERTIES);
+		Files.createDirectories(file.getParent());
+		Files.write(
+			file,
+			String.join(
+				"\n",
+				"project-name=" + projectName,
+				"halt-file=halt",
+				"assessment-dir=assessment",
+				"next-command-class=" + NextCommandImpl.class.getName(),
+				"command-executor-class=" + CommandExecutorImpl.class.getName(),
+				"").getBytes(StandardCharsets.UTF_8));
+
+		return home;
+	}
+
+	private static void dispatch(ResourceManager manager, Runnable process) {
+		Shell.dispatch(new String[0], manager, new ShellClient() {
+
+			@Override
+			public void execute() {
+				process.run();
+			}
+
+			@Override
+			public boolean usesDatabase() {
+				return false;
+			}
+		});
+	}
+}
@@ -0,0 +1,82 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FilePrefetcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final FilePrefetcher prefetcher = new FilePrefetcher();
+
+	@Test
+	public void sizeIsPooledCapacity() throws IOException {
+		Path file = write(5000);
+
+		//ファイルサイズではなく、実際に取得されるバッファの大きさ
+		assertEquals(8192, prefetcher.size(file));
+
+		//存在しない
+		assertEquals(0, prefetcher.size(folder.getRoot().toPath().resolve("none")));
+	}
+
+	@Test
+	public void contentIsLoaded() throws Exception {
+		Path file = write(5000);
+
+		ByteBuffer buffer = prefetcher.load(file, prefetcher.size(file));
+		try {
+			assertEquals(5000, buffer.remaining());
+			for (int i = 0; i < 5000; i++) {
+				assertEquals((byte) i, buffer.get(i));
+			}
+		} finally {
+			prefetcher.release(buffer);
+		}
+	}
+
+	@Test
+	public void grownFileIsNotLoaded() throws Exception {
+		Path file = write(5000);
+		long reserved = prefetcher.size(file);
+
+		//枠の確保後に大きくなった
+		Files.write(file, new byte[8192], StandardOpenOption.APPEND);
+
+		try {
+			prefetcher.load(file, reserved);
+			fail();
+		} catch (IOException e) {}
+
+		//確保した枠に収まる範囲の変更は読み込まれる
+		Path other = write(5000);
+		reserved = prefetcher.size(other);
+		Files.write(other, new byte[1000], StandardOpenOption.APPEND);
+
+		ByteBuffer buffer = prefetcher.load(other, reserved);
+		assertEquals(6000, buffer.remaining());
+		prefetcher.release(buffer);
+	}
+
+	private Path write(int size) throws IOException {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) i;
+		}
+
+		Path file = folder.newFile().toPath();
+		Files.write(file, bytes);
+		return file;
+	}
+}
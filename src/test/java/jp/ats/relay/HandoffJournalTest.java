@@ -0,0 +1,300 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jp.ats.relay.Handoff.Rename;
+
+public class HandoffJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path queue;
+
+	private Path next;
+
+	private String owner;
+
+	@Before
+	public void before() throws IOException {
+		queue = folder.newFolder("queue").toPath();
+		next = folder.newFolder("next").toPath();
+		owner = StagedOutput.ownerOf(folder.getRoot().toPath().resolve("lock"));
+	}
+
+	@Test
+	public void compactTruncatesWhenAllDone() throws IOException {
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+
+		for (int i = 0; i < 10; i++) {
+			Handoff handoff = handoff("input" + i);
+			journal.intent(handoff);
+			journal.committed(handoff);
+			handoff.complete();
+			journal.done(handoff);
+		}
+
+		assertTrue(Files.size(journalFile()) > 0);
+		assertEquals(Files.size(journalFile()), journal.size());
+		assertEquals(0, journal.compact());
+		assertEquals(0, Files.size(journalFile()));
+		assertEquals(0, journal.size());
+	}
+
+	@Test
+	public void compactKeepsFailedHandoff() throws IOException {
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+
+		Handoff done = handoff("done");
+		journal.intent(done);
+		journal.committed(done);
+		done.complete();
+		journal.done(done);
+
+		//commit後、引き渡しに失敗した
+		Handoff failed = handoff("failed");
+		journal.intent(failed);
+		journal.committed(failed);
+
+		//ロールバックされた
+		Handoff rolledBack = handoff("rolled-back");
+		journal.intent(rolledBack);
+		journal.rolledBack(rolledBack);
+
+		assertEquals(1, journal.compact());
+
+		//書き直した後も追記できる
+		Handoff later = handoff("later");
+		journal.intent(later);
+		journal.committed(later);
+		journal.close();
+
+		//次回のロック取得時に、失敗したものが再実行される
+		HandoffJournal recovering = new HandoffJournal(queue, owner);
+		assertEquals(2, recovering.recover(id -> false));
+
+		assertPublished(failed);
+		assertPublished(later);
+		assertEquals(0, Files.size(journalFile()));
+	}
+
+	@Test
+	public void recoverAsksUncommittedEntries() throws IOException {
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+
+		//commit前に停止したもの
+		Handoff committed = handoff("committed");
+		journal.intent(committed);
+		Handoff uncommitted = handoff("uncommitted");
+		journal.intent(uncommitted);
+		journal.close();
+
+		Set<String> asked = new HashSet<>();
+		HandoffJournal recovering = new HandoffJournal(queue, owner);
+		assertEquals(1, recovering.recover(id -> {
+			asked.add(id);
+			return id.equals(committed.id());
+		}));
+
+		assertEquals(new HashSet<>(Arrays.asList(committed.id(), uncommitted.id())), asked);
+
+		assertPublished(committed);
+
+		//commitされていないものは、出力を破棄して処理対象を残す
+		assertDiscarded(uncommitted);
+	}
+
+	@Test
+	public void recoverDiscardsRolledBack() throws IOException {
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+
+		Handoff rolledBack = handoff("rolled-back");
+		journal.intent(rolledBack);
+		journal.rolledBack(rolledBack);
+		journal.close();
+
+		HandoffJournal recovering = new HandoffJournal(queue, owner);
+		assertEquals(0, recovering.recover(id -> {
+			throw new AssertionError("rolled back entry must not be asked.");
+		}));
+
+		assertDiscarded(rolledBack);
+	}
+
+	@Test
+	public void recoverIgnoresPartialLine() throws IOException {
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+
+		Handoff handoff = handoff("input");
+		journal.intent(handoff);
+		journal.committed(handoff);
+		journal.close();
+
+		//DONEの記録の途中で停止した
+		Files.write(journalFile(), ("D\t" + handoff.id().substring(0, 4)).getBytes(), StandardOpenOption.APPEND);
+
+		HandoffJournal recovering = new HandoffJournal(queue, owner);
+		assertEquals(1, recovering.recover(id -> false));
+		assertPublished(handoff);
+	}
+
+	@Test
+	public void completeIsIdempotent() throws IOException {
+		Handoff handoff = handoff("input");
+		handoff.complete();
+		handoff.complete();
+
+		assertPublished(handoff);
+	}
+
+	@Test
+	public void missingTargetDirectoryIsNotCompleted() throws IOException {
+		Path input = Files.write(queue.resolve("input"), "input".getBytes());
+		Path result = Files.write(queue.resolve("result"), "result".getBytes());
+
+		//次処理のキューディレクトリが削除された、または設定を誤った
+		Path missing = folder.getRoot().toPath().resolve("missing");
+		Path tombstone = queue.resolve(Tombstones.DIRECTORY_NAME).resolve("input");
+		Files.createDirectories(tombstone.getParent());
+
+		Handoff handoff = new Handoff(
+			UUID.randomUUID().toString(),
+			owner,
+			Arrays.asList(new Rename(result, missing.resolve("result")), new Rename(input, tombstone)));
+
+		HandoffJournal journal = new HandoffJournal(queue, owner);
+		journal.recover(id -> false);
+		journal.intent(handoff);
+		journal.committed(handoff);
+
+		try {
+			handoff.complete();
+			fail();
+		} catch (NoSuchFileException e) {}
+
+		//処理結果は引き渡されず、処理対象も削除待ちにならない
+		assertTrue(Files.exists(result));
+		assertTrue(Files.exists(input));
+		assertFalse(Files.exists(tombstone));
+
+		//次回起動時の再実行でも、完了扱いにしない
+		try {
+			new HandoffJournal(queue, owner).recover(id -> false);
+			fail();
+		} catch (NoSuchFileException e) {}
+
+		assertTrue(Files.exists(result));
+		assertTrue(Files.exists(input));
+
+		//ディレクトリが復旧されれば引き渡される
+		Files.createDirectories(missing);
+		assertEquals(1, new HandoffJournal(queue, owner).recover(id -> false));
+		assertPublished(handoff);
+	}
+
+	@Test
+	public void resumeAfterTargetIsConsumed() throws IOException {
+		Handoff handoff = handoff("input");
+		handoff.complete();
+
+		//完了の記録前に停止し、その間に次処理と削除スレッドが移動先を処理した
+		for (Rename rename : handoff.renames()) {
+			Files.delete(rename.target());
+		}
+
+		//初回の実行では完了扱いにしない
+		try {
+			handoff.complete();
+			fail();
+		} catch (NoSuchFileException e) {}
+
+		handoff.resume();
+	}
+
+	@Test
+	public void moveAcrossFileSystems() throws IOException {
+		Path shm = Paths.get("/dev/shm");
+		assumeTrue(Files.isDirectory(shm) && !Files.getFileStore(shm).equals(Files.getFileStore(next)));
+
+		Path result = Files.write(Files.createTempFile(shm, "result", null), "result".getBytes());
+		try {
+			Path target = next.resolve("published");
+			Handoff handoff = new Handoff(UUID.randomUUID().toString(), owner, Arrays.asList(new Rename(result, target)));
+			handoff.complete();
+
+			assertFalse(Files.exists(result));
+			assertEquals("result", new String(Files.readAllBytes(target)));
+
+			//コピーに使用した一時ファイルは残らない
+			assertEquals(0, StagedOutput.sweep(next, owner));
+		} finally {
+			Files.deleteIfExists(result);
+		}
+	}
+
+	/**
+	 * 次処理への出力と、処理対象の削除待ちへの移動からなる引き渡し処理
+	 */
+	private Handoff handoff(String inputName) throws IOException {
+		Path input = Files.write(queue.resolve(inputName), inputName.getBytes());
+
+		StagedOutput output = StagedOutput.create(next, owner);
+		output.channel().write(ByteBuffer.wrap(inputName.getBytes()));
+		output.seal();
+
+		Path tombstone = queue.resolve(Tombstones.DIRECTORY_NAME).resolve(inputName);
+		Files.createDirectories(tombstone.getParent());
+
+		return new Handoff(
+			UUID.randomUUID().toString(),
+			owner,
+			Arrays.asList(new Rename(output.temporary(), output.destination()), new Rename(input, tombstone)));
+	}
+
+	private static void assertPublished(Handoff handoff) {
+		for (Rename rename : handoff.renames()) {
+			assertFalse(Files.exists(rename.source()));
+			assertTrue(Files.exists(rename.target()));
+		}
+	}
+
+	private static void assertDiscarded(Handoff handoff) {
+		Rename output = handoff.renames().get(0);
+		assertFalse(Files.exists(output.source()));
+		assertFalse(Files.exists(output.target()));
+
+		Rename input = handoff.renames().get(1);
+		assertTrue(Files.exists(input.source()));
+		assertFalse(Files.exists(input.target()));
+	}
+
+	private Path journalFile() {
+		return queue.resolve(HandoffJournal.FILE_NAME);
+	}
+}
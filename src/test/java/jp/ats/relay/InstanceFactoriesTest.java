@@ -0,0 +1,117 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class InstanceFactoriesTest {
+
+	@Test
+	public void newInstanceEachTime() {
+		Object first = InstanceFactories.factory(Plain.class.getName()).get();
+		Object second = InstanceFactories.factory(Plain.class.getName()).get();
+		assertNotSame(first, second);
+	}
+
+	@Test
+	public void constructorRequestsOtherInstance() {
+		//コンストラクタ内で、さらに他のクラスのインスタンスを要求する
+		Outer outer = InstanceFactories.<Outer> factory(Outer.class.getName()).get();
+
+		assertSame(outer, InstanceFactories.factory(Outer.class.getName()).get());
+		assertSame(outer.inner, InstanceFactories.factory(Inner.class.getName()).get());
+	}
+
+	@Test
+	public void singletonIsCreatedOnce() throws Exception {
+		int threads = 8;
+		CyclicBarrier barrier = new CyclicBarrier(threads);
+		List<Object> instances = new ArrayList<>();
+		List<Thread> list = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					barrier.await();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+
+				Object instance = InstanceFactories.factory(Slow.class.getName()).get();
+				synchronized (instances) {
+					instances.add(instance);
+				}
+			});
+
+			thread.start();
+			list.add(thread);
+		}
+
+		for (Thread thread : list) {
+			thread.join();
+		}
+
+		assertEquals(1, Slow.created.get());
+		instances.forEach(instance -> assertSame(instances.get(0), instance));
+	}
+
+	@Test
+	public void validate() {
+		InstanceFactories.validate(Plain.class.getName(), Object.class);
+
+		try {
+			InstanceFactories.validate(Plain.class.getName(), Runnable.class);
+			fail();
+		} catch (IllegalStateException e) {}
+
+		try {
+			InstanceFactories.validate("jp.ats.relay.NotExists", Object.class);
+			fail();
+		} catch (IllegalStateException e) {}
+
+		//ThreadSafeのものは、コンストラクタの失敗も検出する
+		try {
+			InstanceFactories.validate(Failing.class.getName(), Object.class);
+			fail();
+		} catch (IllegalArgumentException e) {}
+	}
+
+	public static class Plain {}
+
+	@ThreadSafe
+	public static class Outer {
+
+		private final Inner inner = InstanceFactories.<Inner> factory(Inner.class.getName()).get();
+	}
+
+	@ThreadSafe
+	public static class Inner {}
+
+	@ThreadSafe
+	public static class Slow {
+
+		private static final AtomicInteger created = new AtomicInteger();
+
+		public Slow() throws InterruptedException {
+			created.incrementAndGet();
+
+			//他のスレッドが生成を待つ間に
+			Thread.sleep(100);
+		}
+	}
+
+	@ThreadSafe
+	public static class Failing {
+
+		public Failing() {
+			throw new IllegalArgumentException();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+public class MailBuilderTest {
+
+	//JavaMailが一度に読み込む大きさより十分に大きくする
+	private static final long ATTACHMENT_SIZE = 32L * 1024 * 1024;
+
+	@Test
+	public void streamLargeAttachment() throws Exception {
+		Generated attachment = new Generated(ATTACHMENT_SIZE);
+
+		MailBuilder builder = builder();
+		builder.attach(attachment, "application/octet-stream", "large.bin");
+
+		//添付ファイルは、別スレッドで読み込まれながらエンコードされる
+		MimeMessage parsed;
+		try (InputStream mail = builder.newInputStream()) {
+			parsed = new MimeMessage(Session.getInstance(new Properties()), mail);
+
+			BodyPart part = ((MimeMultipart) parsed.getContent()).getBodyPart(1);
+			assertArrayEquals(new String[] { "base64" }, part.getHeader("Content-Transfer-Encoding"));
+			assertEquals("large.bin", part.getFileName());
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			long size = drain(new DigestInputStream(part.getInputStream(), digest));
+
+			assertEquals(ATTACHMENT_SIZE, size);
+			assertArrayEquals(attachment.digest.digest(), digest.digest());
+		}
+
+		//一度だけ読み込まれ、クローズされる
+		assertEquals(1, attachment.opened);
+		assertTrue(attachment.closed);
+	}
+
+	@Test
+	public void streamAttachmentOnlyOnce() throws Exception {
+		MailBuilder builder = builder();
+		builder.attach(new Generated(1024), "application/octet-stream", "small.bin");
+
+		builder.writeTo(new Discarded());
+
+		try {
+			builder.writeTo(new Discarded());
+			fail();
+		} catch (IOException | MessagingException e) {
+			//入力ストリームは再度読み込めない
+		}
+	}
+
+	@Test
+	public void attachBytes() throws Exception {
+		MailBuilder builder = builder();
+		byte[] data = { 0, 1, 2, (byte) 0xff };
+		builder.attach(data, "application/octet-stream", "bytes.bin");
+
+		MimeMessage parsed = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(builder.build()));
+		BodyPart part = ((MimeMultipart) parsed.getContent()).getBodyPart(1);
+
+		try (InputStream input = part.getInputStream()) {
+			byte[] read = new byte[data.length];
+			assertEquals(data.length, input.read(read));
+			assertArrayEquals(data, read);
+			assertEquals(-1, input.read());
+		}
+	}
+
+	private static MailBuilder builder() throws MessagingException {
+		MailBuilder builder = new MailBuilder(new MimeMessage(Session.getInstance(new Properties())));
+		builder.setFrom("from@example.com");
+		builder.addMailTo("to@example.com");
+		builder.setSubject("subject");
+		builder.setMessage("message");
+		return builder;
+	}
+
+	private static long drain(InputStream input) throws IOException {
+		byte[] buffer = new byte[8192];
+		long size = 0;
+		for (int read; (read = input.read(buffer)) > 0;) {
+			size += read;
+		}
+
+		return size;
+	}
+
+	/**
+	 * 内容を生成しながら返し、返した内容のハッシュ値を計算する
+	 */
+	private static class Generated extends InputStream {
+
+		private final MessageDigest digest;
+
+		private final long size;
+
+		private long position;
+
+		//出力するスレッドで更新される
+		private volatile int opened;
+
+		private volatile boolean closed;
+
+		private Generated(long size) throws Exception {
+			this.size = size;
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+
+		@Override
+		public int read() {
+			if (position == 0) opened++;
+			if (position >= size) return -1;
+
+			int b = (int) ((position * 31 + (position >>> 13)) & 0xff);
+			position++;
+			digest.update((byte) b);
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= size) return -1;
+
+			int read = 0;
+			for (; read < len; read++) {
+				int value = read();
+				if (value < 0) break;
+				b[off + read] = (byte) value;
+			}
+
+			return read;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static class Discarded extends OutputStream {
+
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}
+}
@@ -0,0 +1,168 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MailMergeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private final Map<String, MailResult> reported = new ConcurrentHashMap<>();
+
+	private final Set<String> sent = ConcurrentHashMap.newKeySet();
+
+	@Before
+	public void before() throws IOException {
+		manager = new FileSystemResourceManager(folder.getRoot().toPath());
+
+		Path file = manager.resolvePath(Constants.CONFIG_PROPERTIES);
+		Files.createDirectories(file.getParent());
+		Files.write(
+			file,
+			String.join(
+				"\n",
+				"project-name=mail-merge",
+				"halt-file=halt",
+				"assessment-dir=assessment",
+				"next-command-class=" + NextCommandImpl.class.getName(),
+				"command-executor-class=" + CommandExecutorImpl.class.getName(),
+				"").getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void allRecipientsAreSent() throws Exception {
+		merge(mails -> {
+			List<MailResult> results = new ArrayList<>();
+			for (MailBuilder mail : mails) {
+				sent.add(mail.getRecipients().get(0).getAddress());
+				results.add(new MailResult(mail, null));
+			}
+
+			return results;
+		}, 10, this::record);
+
+		assertEquals(10, sent.size());
+		assertEquals(10, reported.size());
+		reported.values().forEach(result -> assertTrue(result.succeeded()));
+	}
+
+	@Test
+	public void failingConsumerDoesNotLoseResults() throws Exception {
+		merge(mails -> {
+			List<MailResult> results = new ArrayList<>();
+			mails.forEach(mail -> results.add(new MailResult(mail, null)));
+			return results;
+		}, 10, (values, result) -> {
+			record(values, result);
+
+			//送信結果の処理が、一部の宛先で失敗する
+			if (values.get(MailTemplate.TO).startsWith("to3@")) throw new IllegalStateException("consumer failure");
+		});
+
+		//同じまとまりの、残りの送信結果も渡される
+		assertEquals(10, reported.size());
+	}
+
+	@Test
+	public void failingSenderIsReported() throws Exception {
+		merge(mails -> {
+			throw new IllegalStateException("sender failure");
+		}, 10, this::record);
+
+		assertEquals(10, reported.size());
+		reported.values().forEach(result -> {
+			assertFalse(result.succeeded());
+			assertEquals("sender failure", result.getError().getMessage());
+		});
+	}
+
+	@Test
+	public void renderFailureIsReported() throws Exception {
+		merge(mails -> {
+			List<MailResult> results = new ArrayList<>();
+			mails.forEach(mail -> results.add(new MailResult(mail, null)));
+			return results;
+		}, 3, this::record, values -> {
+			//宛先アドレスのないもの
+			if (values.get(MailTemplate.TO).startsWith("to1@")) values.remove(MailTemplate.TO);
+		});
+
+		assertEquals(3, reported.size());
+
+		//作成に失敗したものは、メールなしで渡される
+		MailResult failed = reported.get("none");
+		assertFalse(failed.succeeded());
+		assertNull(failed.getMail());
+	}
+
+	private void record(Map<String, String> values, MailResult result) {
+		reported.put(values.getOrDefault(MailTemplate.TO, "none"), result);
+	}
+
+	private void merge(MailSender sender, int count, BiConsumer<Map<String, String>, MailResult> resultConsumer)
+		throws Exception {
+		merge(sender, count, resultConsumer, values -> {});
+	}
+
+	private void merge(
+		MailSender sender,
+		int count,
+		BiConsumer<Map<String, String>, MailResult> resultConsumer,
+		Consumer<Map<String, String>> modifier)
+		throws Exception {
+		MailTemplate template = MailTemplate.builder("from@example.com", "件名 ${name}", "本文 ${name}").build();
+
+		List<Map<String, String>> recipients = IntStream.range(0, count).mapToObj(i -> {
+			Map<String, String> values = new HashMap<>();
+			values.put(MailTemplate.TO, "to" + i + "@example.com");
+			values.put("name", "name" + i);
+			modifier.accept(values);
+			return values;
+		}).collect(Collectors.toList());
+
+		Throwable[] failure = { null };
+		Shell.dispatch(new String[0], manager, new ShellClient() {
+
+			@Override
+			public void execute() {
+				try {
+					new MailMerge(template, sender, 2, 4).send(recipients.stream(), resultConsumer);
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+
+			@Override
+			public boolean usesDatabase() {
+				return false;
+			}
+		});
+
+		assertNull(failure[0]);
+	}
+}
@@ -0,0 +1,102 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import org.junit.Test;
+
+public class MailTemplateTest {
+
+	@Test
+	public void shortTextIsOneWord() throws Exception {
+		String encoded = MailTemplate.encode("件名");
+
+		assertEquals(1, encoded.split(" ").length);
+		assertEquals("件名", MimeUtility.decodeText(encoded));
+	}
+
+	@Test
+	public void longTextIsSplitIntoWords() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append("あいうえおabc");
+		}
+
+		String encoded = MailTemplate.encode(text.toString());
+
+		String[] words = encoded.split(" ");
+		assertTrue(words.length > 1);
+
+		//RFC 2047の上限
+		for (String word : words) {
+			assertTrue(word, word.length() <= 75);
+			assertTrue(word, word.startsWith("=?UTF-8?B?") && word.endsWith("?="));
+		}
+
+		assertEquals(text.toString(), MimeUtility.decodeText(encoded));
+	}
+
+	@Test
+	public void charactersAreNotSplit() throws Exception {
+		//3バイトの文字で、45バイトの境界をまたぐ
+		String text = "a" + repeat("漢", 30);
+		assertEquals(text, decodeEachWord(MailTemplate.encode(text)));
+
+		//サロゲートペア（4バイト）
+		String emoji = "a" + repeat(new String(Character.toChars(0x1F600)), 30);
+		assertEquals(emoji, decodeEachWord(MailTemplate.encode(emoji)));
+	}
+
+	@Test
+	public void emptyText() {
+		assertEquals("", MailTemplate.encode(""));
+	}
+
+	@Test
+	public void renderedSubjectIsDecodable() throws Exception {
+		MailTemplate template = MailTemplate.builder("from@example.com", "${name}様 ご注文（${number}）の発送について", "本文").build();
+
+		Map<String, String> values = new HashMap<>();
+		values.put(MailTemplate.TO, "to@example.com");
+		values.put("name", repeat("長い名前", 10));
+		values.put("number", "12345");
+
+		MimeMessage message = template.render(values).prepare();
+
+		assertEquals(repeat("長い名前", 10) + "様 ご注文（12345）の発送について", message.getSubject());
+	}
+
+	@Test
+	public void valueWithoutPlaceholder() throws Exception {
+		MailTemplate template = MailTemplate.builder("from@example.com", "お知らせ", "本文").build();
+
+		MimeMessage message = template.render(Collections.singletonMap(MailTemplate.TO, "to@example.com")).prepare();
+
+		assertEquals("お知らせ", message.getSubject());
+	}
+
+	/**
+	 * 各encoded-wordが、単独で正しく復号できることを確認しながら連結する
+	 */
+	private static String decodeEachWord(String encoded) throws Exception {
+		StringBuilder result = new StringBuilder();
+		for (String word : encoded.split(" ")) {
+			String decoded = MimeUtility.decodeWord(word);
+			assertTrue(word, decoded.indexOf('\uFFFD') < 0);
+			result.append(decoded);
+		}
+
+		return result.toString();
+	}
+
+	private static String repeat(String text, int count) {
+		return String.join("", Collections.nCopies(count, text));
+	}
+}
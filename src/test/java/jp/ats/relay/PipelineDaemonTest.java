@@ -0,0 +1,277 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PipelineDaemonTest {
+
+	//処理はクラス名から生成されるので、結果はstaticに保持する
+	private static final Map<String, AtomicInteger> processed = new ConcurrentHashMap<>();
+
+	private static volatile boolean failing;
+
+	private static volatile boolean lastStopped;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private Path home;
+
+	@Before
+	public void before() throws IOException {
+		processed.clear();
+		failing = false;
+		lastStopped = false;
+
+		home = folder.getRoot().toPath();
+		manager = new FileSystemResourceManager(home);
+
+		write(
+			Constants.CONFIG_PROPERTIES,
+			"project-name=pipeline-daemon",
+			"halt-file=halt",
+			"assessment-dir=assessment",
+			"next-command-class=" + NextCommandStub.class.getName(),
+			"command-executor-class=" + CommandExecutorImpl.class.getName());
+
+		Files.createDirectories(home.resolve("assessment"));
+		Files.createDirectories(home.resolve("first"));
+		Files.createDirectories(home.resolve("last"));
+	}
+
+	@Test
+	public void passedThroughChannel() throws Exception {
+		config(100, 3000);
+		put("first", 20);
+
+		Thread daemon = start();
+		try {
+			//キューディレクトリの再確認を待たずに、次処理に渡される
+			assertTrue(await(20, 2000));
+		} finally {
+			halt(daemon);
+		}
+
+		processed.forEach((name, count) -> assertEquals(name, 1, count.get()));
+		assertEquals(0, QueueProcess.countQueueDirectory(home.resolve("first")));
+		assertEquals(0, QueueProcess.countQueueDirectory(home.resolve("last")));
+	}
+
+	@Test
+	public void spilledAreProcessedOnce() throws Exception {
+		//チャネルに入りきらなかったものは、キューディレクトリから取得される
+		//チャネルとキューディレクトリの両方にあるものも、一度だけ処理される
+		config(2, 3000);
+		put("first", 100);
+
+		Thread daemon = start();
+		try {
+			assertTrue(await(100, 2000));
+		} finally {
+			halt(daemon);
+		}
+
+		processed.forEach((name, count) -> assertEquals(name, 1, count.get()));
+		assertEquals(0, QueueProcess.countQueueDirectory(home.resolve("last")));
+		assertErrorFree("last");
+	}
+
+	@Test
+	public void externalFilesAreRescanned() throws Exception {
+		config(100, 200);
+
+		Thread daemon = start();
+		try {
+			//前処理を経由せずに置かれたもの
+			put("last", 10);
+
+			assertTrue(await(10, 5000));
+		} finally {
+			halt(daemon);
+		}
+
+		processed.forEach((name, count) -> assertEquals(name, 1, count.get()));
+		assertEquals(0, QueueProcess.countQueueDirectory(home.resolve("last")));
+	}
+
+	@Test(timeout = 10000)
+	public void failedStageStopsDaemon() throws Exception {
+		config(100, 200);
+		failing = true;
+
+		//停止ファイルがなくても終了する
+		Shell.dispatch(new String[0], manager, new PipelineDaemon());
+
+		assertTrue(lastStopped);
+		assertFalse(Files.exists(home.resolve("halt")));
+
+		//ロックは解放されている
+		assertFalse(Files.exists(home.resolve("first.lock")));
+		assertFalse(Files.exists(home.resolve("last.lock")));
+	}
+
+	private void config(int capacity, long rescanMillis) throws IOException {
+		write(
+			Constants.PIPELINE_PROPERTIES,
+			"stages=" + First.class.getName() + " " + Last.class.getName(),
+			"channel-capacity=" + capacity,
+			"rescan-millis=" + rescanMillis);
+	}
+
+	private void write(String resource, String... lines) throws IOException {
+		Path file = manager.resolvePath(resource);
+		Files.createDirectories(file.getParent());
+		Files.write(file, (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void put(String queue, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			Files.write(home.resolve(queue).resolve(queue + i), new byte[0]);
+		}
+	}
+
+	private Thread start() {
+		Thread daemon = new Thread(() -> Shell.dispatch(new String[0], manager, new PipelineDaemon()));
+		daemon.start();
+		return daemon;
+	}
+
+	private void halt(Thread daemon) throws IOException, InterruptedException {
+		Files.createFile(home.resolve("halt"));
+		daemon.join(10000);
+
+		assertFalse(daemon.isAlive());
+		assertTrue(lastStopped);
+	}
+
+	private static boolean await(int count, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (processed.size() < count) {
+			if (System.currentTimeMillis() > deadline) return false;
+			Thread.sleep(10);
+		}
+
+		return true;
+	}
+
+	private void assertErrorFree(String queue) throws IOException {
+		try (Stream<Path> files = Files.list(home.resolve(queue))) {
+			assertEquals(0, files.filter(path -> path.getFileName().toString().contains(".ERROR.")).count());
+		}
+	}
+
+	/**
+	 * 処理対象をそのまま次処理に渡す
+	 */
+	public static class First extends Stage {
+
+		public First() {
+			super("first", "last");
+		}
+
+		@Override
+		protected void preProcessWithLock() {
+			if (failing) throw new IllegalStateException("failing stage");
+		}
+
+		@Override
+		protected Path process(Path next) {
+			return next;
+		}
+	}
+
+	/**
+	 * 受け取った処理対象を記録する
+	 */
+	public static class Last extends Stage {
+
+		public Last() {
+			super("last", null);
+		}
+
+		@Override
+		protected void postProcessWithLock() {
+			lastStopped = true;
+		}
+
+		@Override
+		protected Path process(Path next) {
+			processed.computeIfAbsent(next.getFileName().toString(), key -> new AtomicInteger()).incrementAndGet();
+			return null;
+		}
+	}
+
+	private static abstract class Stage extends QueueProcess {
+
+		private final String name;
+
+		private final String next;
+
+		private Stage(String name, String next) {
+			this.name = name;
+			this.next = next;
+		}
+
+		@Override
+		protected Path getQueueDirectory() {
+			return Shell.resourceManager().home().resolve(name);
+		}
+
+		@Override
+		protected Path getLockDirectory() {
+			return Shell.resourceManager().home().resolve(name + ".lock");
+		}
+
+		@Override
+		protected String getNextCommandPath() {
+			return next;
+		}
+
+		@Override
+		protected boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		protected Path getNextCommandLockDirectory() {
+			return Shell.resourceManager().home().resolve(next + ".lock");
+		}
+
+		@Override
+		protected Path getNextCommandQueueDirectory() {
+			return Shell.resourceManager().home().resolve(next);
+		}
+
+		@Override
+		protected int getMaxConcurrency() {
+			return 2;
+		}
+
+		@Override
+		protected String getSpeedFileName() {
+			return name + ".speed";
+		}
+
+		@Override
+		public boolean usesDatabase() {
+			return false;
+		}
+	}
+}
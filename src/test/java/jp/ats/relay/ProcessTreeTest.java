@@ -0,0 +1,70 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ProcessTreeTest {
+
+	@Test
+	public void descendantsAreKilled() throws Exception {
+		assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+		//孫プロセスを起動し、そのpidを出力してから待つ
+		Process process = new ProcessBuilder("/bin/sh", "-c", "sleep 300 & echo $!; wait").start();
+
+		String grandchild;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			grandchild = reader.readLine().trim();
+			assertTrue(isAlive(grandchild));
+
+			ProcessTree.kill(process);
+
+			assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (isAlive(grandchild) && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertFalse(isAlive(grandchild));
+	}
+
+	@Test
+	public void killFinishedProcess() throws Exception {
+		assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+
+		Process process = new ProcessBuilder("/bin/sh", "-c", "exit 0").start();
+		process.waitFor();
+
+		//終了済みでも失敗しない
+		ProcessTree.kill(process);
+	}
+
+	/**
+	 * 回収されていない停止済みのプロセスは、停止したものとみなす
+	 */
+	private static boolean isAlive(String pid) throws IOException, InterruptedException {
+		Process ps = new ProcessBuilder("ps", "-o", "stat=", "-p", pid).redirectErrorStream(true).start();
+
+		String stat;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream(), StandardCharsets.UTF_8))) {
+			stat = reader.readLine();
+		}
+
+		ps.waitFor();
+
+		return stat != null && !stat.trim().isEmpty() && !stat.trim().startsWith("Z");
+	}
+}
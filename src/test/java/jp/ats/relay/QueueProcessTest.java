@@ -0,0 +1,536 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.blendee.jdbc.BTransaction;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jp.ats.relay.ConcurrentExecutor.Disposer;
+
+public class QueueProcessTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private Path queue;
+
+	@Before
+	public void before() throws IOException {
+		Path home = folder.getRoot().toPath();
+		manager = new FileSystemResourceManager(home);
+
+		Path file = manager.resolvePath(Constants.CONFIG_PROPERTIES);
+		Files.createDirectories(file.getParent());
+		Files.write(
+			file,
+			String.join(
+				"\n",
+				"project-name=queue-process",
+				"halt-file=halt",
+				"assessment-dir=assessment",
+				"next-command-class=" + NextCommandStub.class.getName(),
+				"command-executor-class=" + CommandExecutorImpl.class.getName(),
+				"").getBytes(StandardCharsets.UTF_8));
+
+		Files.createDirectories(home.resolve("assessment"));
+		queue = Files.createDirectories(home.resolve("queue"));
+	}
+
+	@Test
+	public void prefetchedContentIsPassed() throws IOException {
+		Map<String, byte[]> contents = new ConcurrentHashMap<>();
+		for (int i = 0; i < 50; i++) {
+			//プールのバッファの大きさをまたぐように
+			byte[] content = new byte[i * 300];
+			for (int j = 0; j < content.length; j++) {
+				content[j] = (byte) (i + j);
+			}
+
+			Path file = queue.resolve("file" + i);
+			Files.write(file, content);
+			contents.put(file.getFileName().toString(), content);
+		}
+
+		Map<String, byte[]> prefetched = new ConcurrentHashMap<>();
+		TestProcess process = new TestProcess("prefetch", 4, path -> {
+			ByteBuffer buffer = QueueProcess.prefetched();
+			assertNotNull(buffer);
+
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			prefetched.put(path.getFileName().toString(), bytes);
+			return null;
+		});
+		process.prefetchConcurrency = 2;
+		process.maxPrefetchBytes = 64 * 1024;
+
+		dispatch(process);
+
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+		assertEquals(contents.size(), prefetched.size());
+		contents.forEach((name, content) -> assertArrayEquals(name, content, prefetched.get(name)));
+	}
+
+	@Test
+	public void inputIsPassedToNext() throws IOException {
+		Path next = Files.createDirectories(folder.getRoot().toPath().resolve("next"));
+
+		Map<String, byte[]> contents = new ConcurrentHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			byte[] content = ("content" + i).getBytes(StandardCharsets.UTF_8);
+			Files.write(queue.resolve("file" + i), content);
+			contents.put("content" + i, content);
+		}
+
+		//処理対象をそのまま次処理に渡す
+		TestProcess process = new TestProcess("pass", 2, path -> path);
+		process.nextQueue = next;
+		process.usesJournal = true;
+
+		dispatch(process);
+
+		//引き渡しがすべて完了し、ジャーナルに残っていない
+		assertEquals(0, Files.size(queue.resolve(HandoffJournal.FILE_NAME)));
+
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+		assertEquals(20, QueueProcess.countQueueDirectory(next));
+
+		try (Stream<Path> files = Files.list(next)) {
+			files.forEach(file -> {
+				try {
+					String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+					assertNotNull(contents.remove(content));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+
+		//エラーとして退避されたものもない
+		try (Stream<Path> files = Files.list(queue)) {
+			assertEquals(0, files.filter(path -> path.getFileName().toString().contains(".ERROR.")).count());
+		}
+	}
+
+	@Test
+	public void commandOutputIsPassedToNext() throws IOException {
+		Path next = Files.createDirectories(folder.getRoot().toPath().resolve("next"));
+
+		for (int i = 0; i < 5; i++) {
+			Files.write(queue.resolve("file" + i), new byte[0]);
+		}
+
+		Set<String> visible = ConcurrentHashMap.newKeySet();
+		AtomicInteger done = new AtomicInteger();
+		QueueProcess[] holder = { null };
+
+		//一件ずつ処理し、引き渡し済みのものと区別する
+		TestProcess process = new TestProcess("command", 1, path -> {
+			try {
+				Path output = holder[0].createNextOutputFile();
+				CommandExecutor.getInstance().execute(
+					output,
+					Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+					"-cp",
+					System.getProperty("java.class.path"),
+					CommandExecutorImplTest.Lines.class.getName());
+
+				//processが終了するまでは、次処理の処理対象とならない
+				if (QueueProcess.countQueueDirectory(next) > done.getAndIncrement()) visible.add(path.getFileName().toString());
+			} catch (IOException | InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+
+			return null;
+		});
+		process.nextQueue = next;
+		holder[0] = process;
+
+		dispatch(process);
+
+		assertEquals(Collections.emptySet(), visible);
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+		assertEquals(5, QueueProcess.countQueueDirectory(next));
+
+		try (Stream<Path> files = Files.list(next)) {
+			files.forEach(file -> {
+				try {
+					assertEquals(Arrays.asList("line0", "line1", "line2"), Files.readAllLines(file));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+	}
+
+	@Test
+	public void resideTakesChannelAndQueue() throws IOException {
+		StageChannel channel = new StageChannel(100);
+		for (int i = 0; i < 10; i++) {
+			Path file = Files.write(queue.resolve("file" + i), new byte[0]);
+
+			//キューディレクトリとチャネルの両方にあるものは、一度だけ処理される
+			channel.offer(file);
+		}
+
+		Map<String, AtomicInteger> processed = new ConcurrentHashMap<>();
+		QueueProcess[] holder = { null };
+		TestProcess process = new TestProcess("reside", 2, path -> {
+			String name = path.getFileName().toString();
+			if (processed.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet() > 1) return null;
+
+			try {
+				//常駐中に前処理から引き渡されたもの
+				if (name.equals("file0")) channel.offer(Files.write(queue.resolve("late"), new byte[0]));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+
+			if (name.equals("late")) holder[0].stopResiding();
+
+			return null;
+		});
+		holder[0] = process;
+
+		Shell.dispatch(new String[0], manager, new ShellClient() {
+
+			@Override
+			public void execute() {
+				//キューディレクトリの再確認を待たずに、チャネルから受け取る
+				process.reside(channel, 60000);
+			}
+
+			@Override
+			public boolean usesDatabase() {
+				return false;
+			}
+		});
+
+		assertEquals(11, processed.size());
+		processed.forEach((name, count) -> assertEquals(name, 1, count.get()));
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+
+		//ロックは解放されている
+		assertFalse(Files.exists(process.getLockDirectory()));
+	}
+
+	@Test
+	public void reaperIsStoppedAfterStart() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			Files.write(queue.resolve("file" + i), new byte[0]);
+		}
+
+		Set<Thread> before = TombstonesTest.reapers();
+
+		dispatch(new TestProcess("reaper", 2, path -> null));
+
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+
+		//処理済みファイルの削除スレッドが残らない
+		Set<Thread> remaining = TombstonesTest.reapers();
+		remaining.removeAll(before);
+		assertEquals(Collections.emptySet(), remaining);
+	}
+
+	@Test
+	public void workersSurviveRounds() throws IOException {
+		Files.write(manager.resolvePath(Constants.DATABASE_PROPERTIES), new byte[0]);
+
+		AtomicInteger begun = new AtomicInteger();
+		Shell.resetDatabase(new Shell.Database() {
+
+			@Override
+			public void start(Properties initValues) {}
+
+			@Override
+			public void execute(Shell.Transactional process) throws Exception {
+				begun.incrementAndGet();
+				process.execute(transaction());
+			}
+		});
+
+		try {
+			for (int i = 0; i < 20; i++) {
+				Files.write(queue.resolve("first" + i), new byte[0]);
+			}
+
+			//ロック解放時に処理対象があるので、ロックを取得し直して処理する
+			int[] rounds = { 0 };
+			Map<String, Thread> threads = new ConcurrentHashMap<>();
+			Map<Thread, Object> transactionsByThread = new ConcurrentHashMap<>();
+			Set<String> mismatches = ConcurrentHashMap.newKeySet();
+
+			TestProcess process = new TestProcess("rounds", 4, path -> {
+				String name = path.getFileName().toString();
+				Thread thread = Thread.currentThread();
+				threads.put(name, thread);
+
+				//Shellの状態はworkerスレッドに保持され続ける
+				if (Shell.resourceManager() != manager || Shell.args() == null) mismatches.add(name);
+
+				Object transaction = transactionsByThread.putIfAbsent(thread, Shell.transaction());
+				if (transaction != null && transaction != Shell.transaction()) mismatches.add(name);
+
+				sleep(2);
+				return null;
+			});
+			process.usesDatabase = true;
+			process.postProcess = () -> {
+				if (rounds[0]++ > 0) return;
+
+				try {
+					for (int i = 0; i < 20; i++) {
+						Files.write(queue.resolve("second" + i), new byte[0]);
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			};
+
+			dispatch(process);
+
+			assertEquals(2, rounds[0]);
+			assertEquals(40, threads.size());
+			assertEquals(Collections.emptySet(), mismatches);
+			assertEquals(0, QueueProcess.countQueueDirectory(queue));
+
+			//二回目のロック取得時も、同じworkerが同じトランザクションで処理する
+			Set<Thread> firstThreads = threads.entrySet().stream()
+				.filter(entry -> entry.getKey().startsWith("first"))
+				.map(Map.Entry::getValue)
+				.collect(Collectors.toSet());
+			threads.entrySet().stream()
+				.filter(entry -> entry.getKey().startsWith("second"))
+				.forEach(entry -> assertTrue(entry.getKey(), firstThreads.contains(entry.getValue())));
+
+			//トランザクションはworkerごとに一度だけ開始される
+			assertEquals(transactionsByThread.size(), begun.get());
+		} finally {
+			Shell.resetDatabase(Shell.Database.BLENDEE);
+		}
+	}
+
+	@Test
+	public void resizeWhileExecutingLosesNothing() throws IOException {
+		for (int i = 0; i < 600; i++) {
+			Files.write(queue.resolve(String.format("file%03d", i)), new byte[0]);
+		}
+
+		Map<String, AtomicInteger> processed = new ConcurrentHashMap<>();
+		List<Integer> resizes = Collections.synchronizedList(new ArrayList<>());
+
+		TestProcess process = new TestProcess("resize", 8, path -> {
+			String name = path.getFileName().toString();
+			processed.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+
+			//途中から一件あたりの処理時間が悪化し、worker数が減らされる
+			sleep(name.compareTo("file200") < 0 ? 1 : 5);
+			return null;
+		});
+		process.usesAdaptiveConcurrency = true;
+		process.resizes = resizes;
+
+		dispatch(process);
+
+		//処理対象を渡している途中でworker数が変更された
+		assertFalse(resizes.isEmpty());
+
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+		assertEquals(600, processed.size());
+		processed.forEach((name, count) -> assertEquals(name, 1, count.get()));
+
+		//エラーとして退避されたものもない
+		try (Stream<Path> files = Files.list(queue)) {
+			assertEquals(0, files.filter(path -> path.getFileName().toString().contains(".ERROR.")).count());
+		}
+	}
+
+	private static BTransaction transaction() {
+		return (BTransaction) Proxy.newProxyInstance(
+			BTransaction.class.getClassLoader(),
+			new Class<?>[] { BTransaction.class },
+			(proxy, method, args) -> method.getName().equals("equals") ? proxy == args[0] : null);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void dispatch(QueueProcess process) {
+		Shell.dispatch(new String[0], manager, process);
+	}
+
+	/**
+	 * キューディレクトリのファイルを処理する処理 次処理は起動しない
+	 */
+	private class TestProcess extends QueueProcess {
+
+		private final String name;
+
+		private final int maxConcurrency;
+
+		private final Function<Path, Path> processor;
+
+		private int prefetchConcurrency;
+
+		private long maxPrefetchBytes;
+
+		private boolean usesDatabase;
+
+		//次処理がない場合はnull
+		private Path nextQueue;
+
+		private boolean usesJournal;
+
+		private boolean usesAdaptiveConcurrency;
+
+		private Runnable postProcess = () -> {};
+
+		//処理対象を渡している途中に行われたworker数の変更
+		private List<Integer> resizes;
+
+		private TestProcess(String name, int maxConcurrency, Function<Path, Path> processor) {
+			this.name = name;
+			this.maxConcurrency = maxConcurrency;
+			this.processor = processor;
+		}
+
+		@Override
+		protected Path getQueueDirectory() {
+			return queue;
+		}
+
+		@Override
+		protected Path getLockDirectory() {
+			return folder.getRoot().toPath().resolve(name + ".lock");
+		}
+
+		@Override
+		protected String getNextCommandPath() {
+			return "next";
+		}
+
+		@Override
+		protected boolean hasNext() {
+			return nextQueue != null;
+		}
+
+		@Override
+		protected Path getNextCommandLockDirectory() {
+			return folder.getRoot().toPath().resolve("next.lock");
+		}
+
+		@Override
+		protected Path getNextCommandQueueDirectory() {
+			return nextQueue;
+		}
+
+		@Override
+		protected int getMaxConcurrency() {
+			return maxConcurrency;
+		}
+
+		@Override
+		protected int getPrefetchConcurrency() {
+			return prefetchConcurrency;
+		}
+
+		@Override
+		protected long getMaxPrefetchBytes() {
+			return maxPrefetchBytes;
+		}
+
+		@Override
+		protected boolean usesJournal() {
+			return usesJournal;
+		}
+
+		@Override
+		protected boolean usesAdaptiveConcurrency() {
+			return usesAdaptiveConcurrency;
+		}
+
+		@Override
+		protected void postProcessWithLock() {
+			postProcess.run();
+		}
+
+		@Override
+		protected ConcurrentExecutor<Path> createConcurrentExecutor(int concurrency, AtomicLong speedCounter) {
+			if (resizes == null) return super.createConcurrentExecutor(concurrency, speedCounter);
+
+			boolean[] executing = { false };
+			return new ConcurrentExecutor<Path>(
+				concurrency,
+				this::consume,
+				Shell.threadFactory(this, "t-"),
+				Disposer.logging(Shell.SHELL_LOGGER)) {
+
+				@Override
+				public void execute(Stream<Path> values, int chunk, Runnable interval) throws InterruptedException {
+					executing[0] = true;
+					try {
+						super.execute(values, chunk, interval);
+					} finally {
+						executing[0] = false;
+					}
+				}
+
+				@Override
+				public synchronized void resize(int concurrency) throws InterruptedException {
+					if (executing[0] && concurrency != getConcurrency()) resizes.add(concurrency);
+					super.resize(concurrency);
+				}
+			};
+		}
+
+		@Override
+		protected Path process(Path next) {
+			return processor.apply(next);
+		}
+
+		@Override
+		protected String getSpeedFileName() {
+			return name + ".speed";
+		}
+
+		@Override
+		public boolean usesDatabase() {
+			return usesDatabase;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void unlimited() {
+		RateLimiter limiter = new RateLimiter();
+		assertFalse(limiter.limitsItems());
+		assertFalse(limiter.limitsBytes());
+
+		long now = System.nanoTime();
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(0, limiter.reserve(1024 * 1024, now));
+		}
+	}
+
+	@Test
+	public void burst() {
+		RateLimiter limiter = new RateLimiter(10, 0);
+		assertTrue(limiter.limitsItems());
+		assertFalse(limiter.limitsBytes());
+
+		long now = System.nanoTime();
+
+		//1秒分は待たずに取得できる
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.reserve(0, now));
+		}
+
+		//以降は1件ごとに0.1秒ずつ待ちが増える
+		assertEquals(SECOND / 10, limiter.reserve(0, now), 1000);
+		assertEquals(SECOND / 10 * 2, limiter.reserve(0, now), 1000);
+	}
+
+	@Test
+	public void refill() {
+		RateLimiter limiter = new RateLimiter(10, 0);
+
+		long now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			limiter.reserve(0, now);
+		}
+
+		//0.5秒で5件分補充される
+		now += SECOND / 2;
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, limiter.reserve(0, now));
+		}
+
+		assertTrue(limiter.reserve(0, now) > 0);
+	}
+
+	@Test
+	public void refillIsCappedAtBurst() {
+		RateLimiter limiter = new RateLimiter(10, 0);
+
+		//長時間空いても、溜められるのは1秒分まで
+		long now = System.nanoTime() + SECOND * 60;
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.reserve(0, now));
+		}
+
+		assertEquals(SECOND / 10, limiter.reserve(0, now), 1000);
+	}
+
+	@Test
+	public void borrowedPermitsDelayFollowers() {
+		RateLimiter limiter = new RateLimiter(0, 1000);
+
+		long now = System.nanoTime();
+
+		//1000バイト分溜まっているところに5000バイトを取得すると、4000バイト分の借りとなる
+		assertEquals(SECOND * 4, limiter.reserve(5000, now), 1000);
+
+		//後続は借りを返し終わるまで待つ
+		assertEquals(SECOND * 5, limiter.reserve(1000, now), 1000);
+	}
+
+	@Test
+	public void atLeastOnePermitIsKept() {
+		//1秒あたり1件未満でも、1件は溜められる
+		RateLimiter limiter = new RateLimiter(0.5, 0);
+
+		long now = System.nanoTime();
+		assertEquals(0, limiter.reserve(0, now));
+		assertEquals(SECOND * 2, limiter.reserve(0, now), 1000);
+	}
+
+	@Test
+	public void changeRate() {
+		RateLimiter limiter = new RateLimiter(100, 0);
+
+		long now = System.nanoTime();
+		for (int i = 0; i < 50; i++) {
+			limiter.reserve(0, now);
+		}
+
+		//小さくした場合、溜まっている分は新しい上限までとなる
+		limiter.setItemsPerSecond(10);
+		now = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.reserve(0, now));
+		}
+
+		assertTrue(limiter.reserve(0, now) > 0);
+
+		limiter.setItemsPerSecond(0);
+		assertFalse(limiter.limitsItems());
+		assertEquals(0, limiter.reserve(0, now));
+	}
+
+	@Test
+	public void acquireSharedByThreads() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(10, 0);
+
+		long start = System.nanoTime();
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				try {
+					for (int j = 0; j < 5; j++) {
+						limiter.acquire(0);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		//スレッド数にかかわらず、溜まっていた10件を除いた10件分の1秒程度かかる
+		long elapsed = System.nanoTime() - start;
+		assertTrue(elapsed >= SECOND * 9 / 10);
+		assertTrue(elapsed < SECOND * 3);
+	}
+}
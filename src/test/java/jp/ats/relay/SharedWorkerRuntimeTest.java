@@ -0,0 +1,85 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SharedWorkerRuntimeTest {
+
+	@Test
+	public void proportionalToBacklog() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 300, 100 },
+			new int[] { 1, 1 },
+			new int[] { 100, 100 },
+			8);
+
+		assertArrayEquals(new int[] { 6, 2 }, shares);
+	}
+
+	@Test
+	public void emptyStageGetsNothing() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 0, 50, 0 },
+			new int[] { 2, 1, 2 },
+			new int[] { 100, 100, 100 },
+			8);
+
+		assertArrayEquals(new int[] { 0, 8, 0 }, shares);
+	}
+
+	@Test
+	public void minShareIsKept() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 10000, 10 },
+			new int[] { 1, 3 },
+			new int[] { 100, 100 },
+			8);
+
+		//残件数が少なくても最小値は配分される
+		assertEquals(3, shares[1]);
+		assertEquals(8, Arrays.stream(shares).sum());
+	}
+
+	@Test
+	public void cappedByMaxAndBacklog() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 1000, 2 },
+			new int[] { 1, 1 },
+			new int[] { 3, 100 },
+			8);
+
+		//上限と残件数を超えて配分しない
+		assertArrayEquals(new int[] { 3, 2 }, shares);
+	}
+
+	@Test
+	public void remainderGoesToMostPressured() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 100, 100, 100 },
+			new int[] { 1, 1, 1 },
+			new int[] { 100, 100, 100 },
+			8);
+
+		assertEquals(8, Arrays.stream(shares).sum());
+		for (int share : shares) {
+			assertTrue(share == 2 || share == 3);
+		}
+	}
+
+	@Test
+	public void minsMayExceedWorkers() {
+		int[] shares = SharedWorkerRuntime.shares(
+			new int[] { 10, 10, 10 },
+			new int[] { 3, 3, 3 },
+			new int[] { 100, 100, 100 },
+			4);
+
+		//最小値の合計がworker数を超える場合は、worker数を超えて配分する
+		assertArrayEquals(new int[] { 3, 3, 3 }, shares);
+	}
+}
@@ -0,0 +1,208 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShellTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private final AtomicInteger starts = new AtomicInteger();
+
+	@Before
+	public void before() throws IOException {
+		manager = new FileSystemResourceManager(folder.getRoot().toPath());
+
+		write(
+			Constants.CONFIG_PROPERTIES,
+			"project-name=shell",
+			"halt-file=halt",
+			"assessment-dir=assessment",
+			"next-command-class=" + NextCommandImpl.class.getName(),
+			"command-executor-class=" + CommandExecutorImpl.class.getName());
+
+		write(Constants.DATABASE_PROPERTIES, "url=jdbc:none");
+
+		Shell.resetDatabase(new Shell.Database() {
+
+			@Override
+			public void start(Properties initValues) {
+				assertEquals("jdbc:none", initValues.getProperty("url"));
+
+				//初期化中に他のスレッドが到達するよう、時間をかける
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+
+				starts.incrementAndGet();
+			}
+
+			@Override
+			public void execute(Shell.Transactional process) {}
+		});
+	}
+
+	@After
+	public void after() {
+		Shell.resetDatabase(Shell.Database.BLENDEE);
+	}
+
+	@Test
+	public void databaseIsStartedOnDispatch() {
+		int[] startsOnExecute = { -1 };
+		Shell.dispatch(new String[0], manager, new ShellClient() {
+
+			@Override
+			public void start() {
+				//workerを起動する前に、初期化済み
+				startsOnExecute[0] = starts.get();
+			}
+
+			@Override
+			public void execute() {}
+
+			@Override
+			public boolean usesDatabase() {
+				return true;
+			}
+		});
+
+		assertEquals(1, startsOnExecute[0]);
+	}
+
+	@Test
+	public void databaseIsNotStartedWithoutDatabase() {
+		Shell.dispatch(new String[0], manager, new TestShellClient());
+
+		assertEquals(0, starts.get());
+	}
+
+	@Test
+	public void concurrentWorkersStartDatabaseOnce() throws Exception {
+		int workers = 8;
+		CyclicBarrier barrier = new CyclicBarrier(workers);
+		Throwable[] failure = { null };
+
+		//dispatch時の初期化を経由せず、workerが同時に初期化しようとする
+		Shell.dispatch(new String[0], manager, new ShellClient() {
+
+			@Override
+			public void execute() {
+				ShellClient worker = new ShellClient() {
+
+					@Override
+					public void execute() {}
+
+					@Override
+					public boolean usesDatabase() {
+						return true;
+					}
+				};
+
+				List<Thread> threads = new ArrayList<>();
+				for (int i = 0; i < workers; i++) {
+					Shell shell = Shell.wrap(worker, () -> {});
+					threads.add(new Thread(() -> {
+						try {
+							barrier.await();
+						} catch (Exception e) {
+							throw new IllegalStateException(e);
+						}
+
+						shell.run();
+					}));
+				}
+
+				threads.forEach(Thread::start);
+
+				try {
+					for (Thread thread : threads) {
+						thread.join();
+					}
+				} catch (InterruptedException e) {
+					failure[0] = e;
+				}
+			}
+
+			@Override
+			public boolean usesDatabase() {
+				return false;
+			}
+		});
+
+		assertNull(failure[0]);
+		assertEquals(1, starts.get());
+
+		//以降の初期化は何もしない
+		Shell.startDatabase(manager);
+		assertEquals(1, starts.get());
+	}
+
+	@Test
+	public void shutdownHookIsAddedOnDemand() throws Exception {
+		//他のテストの影響を受けないよう、新しいプロセスで確認する
+		Process process = new ProcessBuilder(
+			Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+			"-cp",
+			System.getProperty("java.class.path"),
+			ShutdownHook.class.getName()).redirectErrorStream(true).start();
+
+		List<String> output = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				output.add(line);
+			}
+		}
+
+		assertEquals(0, process.waitFor());
+
+		//Shellを使用しただけでは登録されず、終了時の処理の登録で登録され、終了時に実行される
+		assertEquals(Arrays.asList("false", "true", "shutdown"), output);
+	}
+
+	private void write(String resourceName, String... lines) throws IOException {
+		Path file = manager.resolvePath(resourceName);
+		Files.createDirectories(file.getParent());
+		Files.write(file, (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * 終了時の処理の登録前後で、ShutdownHookの登録状態を出力する
+	 */
+	public static class ShutdownHook {
+
+		public static void main(String[] args) {
+			System.out.println(Shell.shutdownHookAdded());
+
+			Shell.onShutdown(() -> System.out.println("shutdown"));
+
+			System.out.println(Shell.shutdownHookAdded());
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SmtpMailSenderTest {
+
+	private final List<Closeable> closeables = new ArrayList<>();
+
+	@After
+	public void after() {
+		closeables.forEach(Closeable::close);
+	}
+
+	@Test
+	public void connectionIsReused() throws Exception {
+		StandIn server = start(new StandIn(Integer.MAX_VALUE));
+		SmtpMailSender sender = sender(server, 1, 10000);
+
+		List<MailResult> results = sender.send(mails(5));
+
+		results.forEach(result -> assertTrue(String.valueOf(result.getError()), result.succeeded()));
+		assertEquals(5, server.messages.size());
+		assertEquals(1, server.connections.get());
+		assertTrue(server.messages.get(0).contains("Subject: subject0"));
+	}
+
+	@Test
+	public void reconnectWhenDisconnected() throws Exception {
+		//一通ごとに切断する
+		StandIn server = start(new StandIn(1));
+		SmtpMailSender sender = sender(server, 1, 10000);
+
+		List<MailResult> results = sender.send(mails(3));
+
+		results.forEach(result -> assertTrue(String.valueOf(result.getError()), result.succeeded()));
+		assertEquals(3, server.messages.size());
+		assertEquals(3, server.connections.get());
+	}
+
+	@Test
+	public void resendWhenDisconnectedBeforeData() throws Exception {
+		//MAIL FROMを受け取ったところで切断する
+		StandIn server = start(new StandIn(Integer.MAX_VALUE));
+		server.dropOnMailFrom.set(true);
+		SmtpMailSender sender = sender(server, 1, 10000);
+
+		List<MailResult> results = sender.send(mails(1));
+
+		//接続し直して再送信する
+		assertTrue(String.valueOf(results.get(0).getError()), results.get(0).succeeded());
+		assertEquals(1, server.messages.size());
+		assertEquals(2, server.connections.get());
+	}
+
+	@Test
+	public void noResendAfterData() throws Exception {
+		//内容を受け取ったところで、応答せずに切断する
+		StandIn server = start(new StandIn(Integer.MAX_VALUE));
+		server.dropAfterData.set(true);
+		SmtpMailSender sender = sender(server, 1, 10000);
+
+		List<MailResult> results = sender.send(mails(1));
+
+		//サーバーが受け付けている可能性があるので、再送信せずに失敗とする
+		assertFalse(results.get(0).succeeded());
+		assertTrue(results.get(0).getError() instanceof MessagingException);
+		assertEquals(1, server.messages.size());
+		assertEquals(1, server.connections.get());
+
+		//以降のメールは接続し直して送信する
+		results = sender.send(mails(1));
+		assertTrue(String.valueOf(results.get(0).getError()), results.get(0).succeeded());
+		assertEquals(2, server.messages.size());
+	}
+
+	@Test
+	public void unresponsiveServerTimesOut() throws Exception {
+		//接続は受け付けるが、応答しない
+		ServerSocket server = new ServerSocket(0);
+		List<Socket> accepted = new CopyOnWriteArrayList<>();
+		Thread acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					accepted.add(server.accept());
+				}
+			} catch (IOException e) {}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		closeables.add(() -> {
+			try {
+				server.close();
+				for (Socket socket : accepted) {
+					socket.close();
+				}
+			} catch (IOException e) {}
+		});
+
+		SmtpMailSender sender = new SmtpMailSender("localhost", server.getLocalPort(), 1, 1000, 500);
+		closeables.add(sender::close);
+
+		long start = System.nanoTime();
+		List<MailResult> results = sender.send(mails(1));
+
+		assertFalse(results.get(0).succeeded());
+		assertTrue(results.get(0).getError() instanceof MessagingException);
+
+		//再送信の分を含めても、タイムアウトの範囲内で終わる
+		assertTrue(System.nanoTime() - start < 10_000_000_000L);
+	}
+
+	private StandIn start(StandIn server) throws IOException {
+		server.start();
+		closeables.add(server::close);
+		return server;
+	}
+
+	private SmtpMailSender sender(StandIn server, int connections, long timeoutMillis) {
+		SmtpMailSender sender = new SmtpMailSender("localhost", server.port(), connections, timeoutMillis, timeoutMillis);
+		closeables.add(sender::close);
+		return sender;
+	}
+
+	private static List<MailBuilder> mails(int count) throws MessagingException {
+		List<MailBuilder> mails = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			MailBuilder mail = MailBuilder.getInstance();
+			mail.setFrom("from@example.com");
+			mail.addMailTo("to" + i + "@example.com");
+			mail.setSubject("subject" + i);
+			mail.setMessage("message" + i);
+			mails.add(mail);
+		}
+
+		return mails;
+	}
+
+	@FunctionalInterface
+	private interface Closeable {
+
+		void close();
+	}
+
+	/**
+	 * 受け取ったメールを保持するだけのSMTPサーバー
+	 */
+	private static class StandIn {
+
+		private final ServerSocket server;
+
+		//一接続あたりに受け付けるメール数 超えた場合は切断する
+		private final int messagesPerConnection;
+
+		private final List<String> messages = new CopyOnWriteArrayList<>();
+
+		private final AtomicInteger connections = new AtomicInteger();
+
+		//次のMAIL FROMで、応答せずに切断する
+		private final AtomicBoolean dropOnMailFrom = new AtomicBoolean();
+
+		//次に内容を受け取った後、応答せずに切断する
+		private final AtomicBoolean dropAfterData = new AtomicBoolean();
+
+		private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+		private StandIn(int messagesPerConnection) throws IOException {
+			server = new ServerSocket(0);
+			this.messagesPerConnection = messagesPerConnection;
+		}
+
+		private int port() {
+			return server.getLocalPort();
+		}
+
+		private void start() {
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						sockets.add(socket);
+						connections.incrementAndGet();
+
+						Thread session = new Thread(() -> serve(socket));
+						session.setDaemon(true);
+						session.start();
+					}
+				} catch (IOException e) {}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private void serve(Socket socket) {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				OutputStream output = socket.getOutputStream();
+
+				reply(output, "220 stand-in");
+
+				int received = 0;
+				for (String line; (line = reader.readLine()) != null;) {
+					String command = line.toUpperCase();
+					if (command.startsWith("EHLO")) {
+						reply(output, "250-stand-in", "250 8BITMIME");
+					} else if (command.equals("DATA")) {
+						reply(output, "354 go ahead");
+
+						StringBuilder message = new StringBuilder();
+						for (String data; !(data = reader.readLine()).equals(".");) {
+							message.append(data).append("\n");
+						}
+
+						messages.add(message.toString());
+
+						if (dropAfterData.getAndSet(false)) return;
+
+						reply(output, "250 queued");
+
+						if (++received >= messagesPerConnection) return;
+					} else if (command.startsWith("MAIL FROM") && dropOnMailFrom.getAndSet(false)) {
+						return;
+					} else if (command.equals("QUIT")) {
+						reply(output, "221 bye");
+						return;
+					} else {
+						reply(output, "250 ok");
+					}
+				}
+			} catch (SocketException e) {
+				//切断された
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		private static void reply(OutputStream output, String... lines) throws IOException {
+			for (String line : Arrays.asList(lines)) {
+				output.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+			}
+
+			output.flush();
+		}
+
+		private void close() {
+			try {
+				server.close();
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StageChannelTest {
+
+	@Test
+	public void spilledWhenFull() throws InterruptedException {
+		StageChannel channel = new StageChannel(2);
+
+		channel.offer(Paths.get("a"));
+		channel.offer(Paths.get("b"));
+		assertFalse(channel.takeSpilled());
+
+		//入りきらなかったものは、キューディレクトリから取得してもらう
+		channel.offer(Paths.get("c"));
+		assertTrue(channel.takeSpilled());
+
+		//取得するとリセットされる
+		assertFalse(channel.takeSpilled());
+
+		assertEquals(Paths.get("a"), channel.poll(1));
+
+		Set<Path> targets = new LinkedHashSet<>();
+		channel.drainTo(targets);
+		assertEquals(new LinkedHashSet<>(Arrays.asList(Paths.get("b"))), targets);
+
+		assertNull(channel.poll(1));
+	}
+
+	@Test
+	public void pollWaits() throws InterruptedException {
+		StageChannel channel = new StageChannel(1);
+
+		Thread offering = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {}
+
+			channel.offer(Paths.get("a"));
+		});
+		offering.start();
+
+		assertEquals(Paths.get("a"), channel.poll(10000));
+		offering.join();
+	}
+}
@@ -0,0 +1,102 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagedOutputTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void stagedOutputIsHidden() throws IOException {
+		Path queue = folder.newFolder("queue").toPath();
+		String owner = StagedOutput.ownerOf(folder.getRoot().toPath().resolve("lock"));
+
+		StagedOutput output = StagedOutput.create(queue, owner);
+		output.channel().write(ByteBuffer.wrap("data".getBytes()));
+		output.seal();
+
+		assertTrue(StagedOutput.isTemporary(output.temporary()));
+		assertFalse(StagedOutput.isTemporary(output.destination()));
+		assertEquals(queue, output.destination().getParent());
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+	}
+
+	@Test
+	public void ownerIsStable() {
+		Path lock = folder.getRoot().toPath().resolve("lock");
+		assertEquals(StagedOutput.ownerOf(lock), StagedOutput.ownerOf(lock.getParent().resolve("./lock")));
+		assertNotEquals(StagedOutput.ownerOf(lock), StagedOutput.ownerOf(folder.getRoot().toPath().resolve("other-lock")));
+	}
+
+	@Test
+	public void sweepRemovesOnlyOwnTemporaries() throws IOException {
+		Path queue = folder.newFolder("queue").toPath();
+		String owner = StagedOutput.ownerOf(folder.getRoot().toPath().resolve("lock"));
+		String other = StagedOutput.ownerOf(folder.getRoot().toPath().resolve("other-lock"));
+
+		//前回のプロセスが公開も破棄もせずに停止した
+		StagedOutput orphan1 = StagedOutput.create(queue, owner);
+		orphan1.seal();
+		StagedOutput orphan2 = StagedOutput.create(queue, owner);
+		orphan2.seal();
+
+		//同じキューディレクトリに出力する他の処理の一時ファイル
+		StagedOutput others = StagedOutput.create(queue, other);
+		others.seal();
+
+		//公開済みのもの
+		Path published = queue.resolve("published");
+		Files.write(published, new byte[0]);
+
+		assertEquals(2, StagedOutput.sweep(queue, owner));
+
+		assertFalse(Files.exists(orphan1.temporary()));
+		assertFalse(Files.exists(orphan2.temporary()));
+		assertTrue(Files.exists(others.temporary()));
+		assertTrue(Files.exists(published));
+
+		assertEquals(0, StagedOutput.sweep(queue, owner));
+	}
+
+	@Test
+	public void discard() throws IOException {
+		Path queue = folder.newFolder("queue").toPath();
+
+		StagedOutput output = StagedOutput.create(queue, StagedOutput.ownerOf(queue));
+		output.discard();
+
+		assertFalse(Files.exists(output.temporary()));
+		assertFalse(output.channel().isOpen());
+	}
+
+	@Test
+	public void otherDotFilesAreListed() throws IOException {
+		Path queue = folder.newFolder("queue").toPath();
+		Path lock = queue.resolve("lock");
+
+		//フレームワークが作成するもの
+		StagedOutput.create(queue, StagedOutput.ownerOf(lock)).seal();
+		Files.createFile(queue.resolve(HandoffJournal.FILE_NAME));
+		new WakeUp(lock).signal(command -> {}, "next");
+		Files.createDirectory(queue.resolve(Tombstones.DIRECTORY_NAME));
+
+		//利用者が置いた、接頭辞が同じもの
+		Files.createFile(queue.resolve(".data"));
+		Files.createFile(queue.resolve(".data.tmp"));
+
+		assertEquals(2, QueueProcess.countQueueDirectory(queue));
+	}
+}
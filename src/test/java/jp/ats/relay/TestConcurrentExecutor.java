@@ -31,7 +31,7 @@ public class TestConcurrentExecutor {
 		};
 
 		List<WorkHandler<PathEvent>> workHandlers = IntStream.range(0, concurrency).mapToObj(i -> workHandler).collect(Collectors.toList());
-		@SuppressWarnings("unchecked")
+		@SuppressWarnings({ "unchecked", "rawtypes" })
 		WorkHandler<PathEvent>[] workHandlerArray = workHandlers.toArray(new WorkHandler[workHandlers.size()]);
 
 		ExceptionHandler<PathEvent> exceptionHandler = new ExceptionHandler<PathEvent>() {
@@ -0,0 +1,125 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TombstonesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sameNameConsumedTwice() throws Exception {
+		Path queue = folder.newFolder("queue").toPath();
+		Tombstones tombstones = new Tombstones(queue);
+		tombstones.start();
+
+		Path file = Files.write(queue.resolve("input"), "1".getBytes());
+		Path first = tombstones.tombstoneOf(file);
+		Files.move(file, first);
+
+		//削除前に、同じ名前のファイルが再度置かれ、処理された
+		Files.write(file, "2".getBytes());
+		Path second = tombstones.tombstoneOf(file);
+		assertNotEquals(first, second);
+		Files.move(file, second);
+
+		assertTrue(tombstones.isTombstone(first));
+		assertTrue(tombstones.isTombstone(second));
+		assertFalse(tombstones.isTombstone(file));
+
+		tombstones.add(first);
+		tombstones.add(second);
+		tombstones.awaitDrained();
+
+		assertFalse(Files.exists(first));
+		assertFalse(Files.exists(second));
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+
+		tombstones.close();
+	}
+
+	@Test
+	public void leftoversAreReapedOnStart() throws Exception {
+		Path queue = folder.newFolder("queue").toPath();
+
+		//前回のプロセスが削除前に停止した
+		Tombstones previous = new Tombstones(queue);
+		Path directory = previous.tombstoneOf(queue.resolve("input")).getParent();
+		Files.createDirectories(directory);
+		for (int i = 0; i < 10; i++) {
+			Files.write(previous.tombstoneOf(queue.resolve("input")), new byte[0]);
+		}
+
+		Tombstones tombstones = new Tombstones(queue);
+		tombstones.start();
+		tombstones.awaitDrained();
+
+		try (Stream<Path> stream = Files.list(directory)) {
+			assertEquals(0, stream.count());
+		}
+
+		tombstones.close();
+	}
+
+	@Test
+	public void addMissingFile() throws IOException, InterruptedException {
+		Path queue = folder.newFolder("queue").toPath();
+		Tombstones tombstones = new Tombstones(queue);
+		tombstones.start();
+
+		//存在しない場合は何もしない
+		tombstones.add(tombstones.tombstoneOf(queue.resolve("missing")));
+		tombstones.awaitDrained();
+
+		tombstones.close();
+	}
+
+	@Test
+	public void closeStopsReaper() throws Exception {
+		Path queue = folder.newFolder("queue").toPath();
+		Tombstones tombstones = new Tombstones(queue);
+
+		Set<Thread> before = reapers();
+		tombstones.start();
+
+		Set<Thread> started = reapers();
+		started.removeAll(before);
+		assertEquals(1, started.size());
+
+		tombstones.close();
+		assertFalse(started.iterator().next().isAlive());
+
+		//停止中に削除待ちにしたものは、再開時に削除される
+		Path file = Files.write(queue.resolve("input"), new byte[0]);
+		Path tombstone = tombstones.tombstoneOf(file);
+		Files.move(file, tombstone);
+		tombstones.add(tombstone);
+
+		tombstones.close();
+		tombstones.start();
+		tombstones.awaitDrained();
+		assertFalse(Files.exists(tombstone));
+
+		tombstones.close();
+	}
+
+	static Set<Thread> reapers() {
+		return Thread.getAllStackTraces().keySet().stream()
+			.filter(thread -> thread.getName().equals("tombstone-reaper"))
+			.collect(Collectors.toSet());
+	}
+}
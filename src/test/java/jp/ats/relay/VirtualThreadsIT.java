@@ -0,0 +1,174 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Multi-Release JARの、Java 21以降用のクラスを使用するテスト<br>
+ * java21プロファイルで、パッケージ後のJARに対してfailsafeで実行される
+ */
+public class VirtualThreadsIT {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ResourceManager manager;
+
+	private Path queue;
+
+	@Before
+	public void before() throws IOException {
+		assumeTrue(javaVersion() >= 21);
+
+		Path home = folder.getRoot().toPath();
+		manager = new FileSystemResourceManager(home);
+
+		Path file = manager.resolvePath(Constants.CONFIG_PROPERTIES);
+		Files.createDirectories(file.getParent());
+		Files.write(
+			file,
+			String.join(
+				"\n",
+				"project-name=virtual-threads",
+				"halt-file=halt",
+				"assessment-dir=assessment",
+				"next-command-class=" + NextCommandImpl.class.getName(),
+				"command-executor-class=" + CommandExecutorImpl.class.getName(),
+				"").getBytes(StandardCharsets.UTF_8));
+
+		Files.createDirectories(home.resolve("assessment"));
+		queue = Files.createDirectories(home.resolve("queue"));
+	}
+
+	@Test
+	public void java21ClassIsLoaded() throws InterruptedException {
+		//Java 21未満用のクラスが読み込まれている場合はfalse
+		assertTrue(VirtualThreads.isAvailable());
+
+		Set<String> names = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("vt-", runnable -> runnable);
+		for (int i = 0; i < 10; i++) {
+			executor.execute(() -> names.add(Thread.currentThread().getName()));
+		}
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		//タスクごとに生成される
+		assertEquals(10, names.size());
+		names.forEach(name -> assertTrue(name, name.startsWith("vt-")));
+	}
+
+	@Test
+	public void queueProcessUsesVirtualThreads() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			Files.write(queue.resolve("file" + i), new byte[0]);
+		}
+
+		AtomicInteger created = new AtomicInteger();
+		Set<String> names = ConcurrentHashMap.newKeySet();
+		Set<String> noShell = ConcurrentHashMap.newKeySet();
+
+		QueueProcess process = new QueueProcess() {
+
+			@Override
+			protected TaskExecutor<Path> createVirtualThreadExecutor(int concurrency, AtomicLong speedCounter) {
+				created.incrementAndGet();
+				return super.createVirtualThreadExecutor(concurrency, speedCounter);
+			}
+
+			@Override
+			protected boolean usesVirtualThreads() {
+				return true;
+			}
+
+			@Override
+			protected Path process(Path next) {
+				names.add(Thread.currentThread().getName());
+
+				//仮想スレッドごとにShellが生成される
+				if (Shell.resourceManager() != manager) noShell.add(next.getFileName().toString());
+
+				return null;
+			}
+
+			@Override
+			protected Path getQueueDirectory() {
+				return queue;
+			}
+
+			@Override
+			protected Path getLockDirectory() {
+				return folder.getRoot().toPath().resolve("lock");
+			}
+
+			@Override
+			protected String getNextCommandPath() {
+				return null;
+			}
+
+			@Override
+			protected boolean hasNext() {
+				return false;
+			}
+
+			@Override
+			protected Path getNextCommandLockDirectory() {
+				return null;
+			}
+
+			@Override
+			protected Path getNextCommandQueueDirectory() {
+				return null;
+			}
+
+			@Override
+			protected int getMaxConcurrency() {
+				return 8;
+			}
+
+			@Override
+			protected String getSpeedFileName() {
+				return "virtual-threads.speed";
+			}
+
+			@Override
+			public boolean usesDatabase() {
+				return false;
+			}
+		};
+
+		Shell.dispatch(new String[0], manager, process);
+
+		assertEquals(1, created.get());
+		assertEquals(0, QueueProcess.countQueueDirectory(queue));
+		assertEquals(0, noShell.size());
+		names.forEach(name -> assertTrue(name, name.startsWith("v-")));
+	}
+
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version");
+
+		//1.8等
+		if (version.startsWith("1.")) return Integer.parseInt(version.substring(2));
+
+		return Integer.parseInt(version);
+	}
+}
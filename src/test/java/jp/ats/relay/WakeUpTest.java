@@ -0,0 +1,202 @@
+package jp.ats.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WakeUpTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path lock;
+
+	private final AtomicInteger launched = new AtomicInteger();
+
+	//起動予約の識別子
+	private final List<String> claims = new ArrayList<>();
+
+	//起動すると、ロックを取得せずにそのまま残る
+	private final NextCommand next = new NextCommand() {
+
+		@Override
+		public void execute(String command) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void execute(String command, String launchClaim) {
+			launched.incrementAndGet();
+			synchronized (claims) {
+				claims.add(launchClaim);
+			}
+		}
+	};
+
+	@Before
+	public void before() {
+		lock = folder.getRoot().toPath().resolve("lock");
+	}
+
+	@Test
+	public void launchOnlyOnce() {
+		WakeUp wakeUp = new WakeUp(lock);
+
+		wakeUp.signal(next, "next");
+		wakeUp.signal(next, "next");
+		wakeUp.signal(next, "next");
+
+		//起動した処理がロックを取得するまでは、起動しない
+		assertEquals(1, launched.get());
+		assertTrue(wakeUp.pending());
+	}
+
+	@Test
+	public void lockedProcessIsNotified() throws IOException {
+		WakeUp wakeUp = new WakeUp(lock);
+		Files.createDirectory(lock);
+
+		wakeUp.signal(next, "next");
+
+		assertEquals(0, launched.get());
+		assertTrue(wakeUp.pending());
+
+		wakeUp.accept();
+		assertFalse(wakeUp.pending());
+	}
+
+	@Test
+	public void launchAgainAfterStarted() throws IOException {
+		WakeUp wakeUp = new WakeUp(lock);
+
+		wakeUp.signal(next, "next");
+
+		//起動した処理がロックを取得し、処理を終えてロックを解放した
+		Files.createDirectory(lock);
+		started(wakeUp, claims.get(0));
+		wakeUp.signal(next, "next");
+		assertEquals(1, launched.get());
+
+		Files.delete(lock);
+		wakeUp.signal(next, "next");
+		assertEquals(2, launched.get());
+	}
+
+	@Test
+	public void otherProcessKeepsClaim() throws IOException {
+		WakeUp wakeUp = new WakeUp(lock);
+
+		wakeUp.signal(next, "next");
+
+		//起動予約によらずに起動された処理が、ロックの取得に失敗した
+		Files.createDirectory(lock);
+		wakeUp.started();
+
+		//他の起動予約により起動された処理
+		started(wakeUp, "other");
+		Files.delete(lock);
+
+		//起動した処理がロックを取得するまでは、起動しない
+		wakeUp.signal(next, "next");
+		assertEquals(1, launched.get());
+
+		//起動した処理が、ロックの取得を試みた
+		started(wakeUp, claims.get(0));
+		wakeUp.signal(next, "next");
+		assertEquals(2, launched.get());
+
+		//依頼ごとに識別子は異なる
+		assertNotEquals(claims.get(0), claims.get(1));
+	}
+
+	@Test
+	public void failedLaunchIsReleased() {
+		WakeUp wakeUp = new WakeUp(lock);
+
+		try {
+			wakeUp.signal(command -> {
+				throw new IllegalStateException();
+			}, "next");
+			fail();
+		} catch (IllegalStateException e) {}
+
+		wakeUp.signal(next, "next");
+		assertEquals(1, launched.get());
+	}
+
+	@Test
+	public void staleClaimIsTakenOverOnce() throws Exception {
+		WakeUp wakeUp = new WakeUp(lock);
+		wakeUp.signal(next, "next");
+
+		//起動した処理が、予約を解除せずに停止した
+		expire();
+
+		int takers = 8;
+		CyclicBarrier barrier = new CyclicBarrier(takers);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < takers; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					barrier.await();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+
+				new WakeUp(lock).signal(next, "next");
+			});
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		//引き継ぎは一つだけ
+		assertEquals(2, launched.get());
+
+		//引き継いだ予約は、起動した処理がロックを取得するまで有効
+		new WakeUp(lock).signal(next, "next");
+		assertEquals(2, launched.get());
+	}
+
+	//起動予約により起動された処理として実行する
+	private static void started(WakeUp wakeUp, String launchClaim) {
+		WakeUp.setLaunchClaim(launchClaim);
+		try {
+			wakeUp.started();
+		} finally {
+			WakeUp.setLaunchClaim(null);
+		}
+	}
+
+	//起動予約を期限切れにする
+	private void expire() throws IOException {
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+			Path claim = files.filter(path -> path.getFileName().toString().endsWith(".launching")).findFirst().get();
+			Files.setLastModifiedTime(
+				claim,
+				FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2)));
+		}
+	}
+}